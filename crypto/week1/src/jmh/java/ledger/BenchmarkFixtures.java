@@ -0,0 +1,62 @@
+package ledger;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+
+/**
+ * Signed transactions for the benchmarks. Output values are all 0, which is valid and costs the same
+ * to check as any other value, so the shape of a transaction is all the benchmarks vary.
+ */
+public class BenchmarkFixtures {
+
+    private BenchmarkFixtures() {
+    }
+
+    public static KeyPair keyPair() throws GeneralSecurityException {
+        return KeyPairGenerator.getInstance("RSA").generateKeyPair();
+    }
+
+    /** Creates a transaction out of thin air with {@code outputs} outputs to {@code owner} */
+    public static Transaction coinbase(KeyPair owner, int outputs) {
+        Transaction tx = new Transaction();
+        for (int i = 0; i < outputs; i++) {
+            tx.addOutput(0, owner.getPublic());
+        }
+        tx.finalize();
+        return tx;
+    }
+
+    /**
+     * Creates a transaction spending output {@code parentIndexes[i]} of {@code parents[i]} for each
+     * i, into {@code outputs} outputs to {@code owner}, signed by {@code owner}
+     */
+    public static Transaction spend(KeyPair owner, Transaction[] parents, int[] parentIndexes, int outputs)
+            throws GeneralSecurityException {
+        Transaction tx = new Transaction();
+        for (int i = 0; i < parents.length; i++) {
+            tx.addInput(parents[i].getHash(), parentIndexes[i]);
+        }
+        for (int i = 0; i < outputs; i++) {
+            tx.addOutput(0, owner.getPublic());
+        }
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        for (int i = 0; i < parents.length; i++) {
+            signature.initSign(owner.getPrivate());
+            signature.update(tx.getRawDataToSign(i));
+            tx.addSignature(signature.sign(), i);
+        }
+        tx.finalize();
+        return tx;
+    }
+
+    /** Creates a pool holding every output of {@code tx} */
+    public static UTXOPool poolOf(Transaction tx) {
+        UTXOPool pool = new UTXOPool();
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            pool.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+        }
+        return pool;
+    }
+}
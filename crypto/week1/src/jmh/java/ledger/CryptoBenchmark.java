@@ -0,0 +1,60 @@
+package ledger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks of {@link Crypto#verifySignature(PublicKey, byte[], byte[])} on valid and invalid signatures */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoBenchmark {
+
+    /** Outputs of the signed transaction, which sets the size of the signed data */
+    @Param({"1", "16"})
+    private int outputs;
+
+    private PublicKey publicKey;
+    private byte[] message;
+    private byte[] signature;
+    private byte[] wrongSignature;
+
+    @Setup(Level.Trial)
+    public void signMessage() throws GeneralSecurityException {
+        KeyPair owner = BenchmarkFixtures.keyPair();
+        Transaction root = BenchmarkFixtures.coinbase(owner, 1);
+        Transaction tx = BenchmarkFixtures.spend(owner, new Transaction[]{root}, new int[]{0}, outputs);
+        publicKey = owner.getPublic();
+        message = tx.getRawDataToSign(0);
+        signature = tx.getInput(0).signature;
+        wrongSignature = signature.clone();
+        wrongSignature[wrongSignature.length / 2] ^= 1;
+    }
+
+    @Benchmark
+    public boolean verifyValid() {
+        return Crypto.verifySignature(publicKey, message, signature);
+    }
+
+    @Benchmark
+    public boolean verifyInvalid() {
+        return Crypto.verifySignature(publicKey, message, wrongSignature);
+    }
+}
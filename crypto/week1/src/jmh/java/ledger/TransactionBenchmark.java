@@ -0,0 +1,67 @@
+package ledger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks of serializing and hashing a {@link Transaction} of several shapes */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransactionBenchmark {
+
+    @Param({"1", "4", "16"})
+    private int inputs;
+
+    @Param({"1", "4", "16"})
+    private int outputs;
+
+    private Transaction tx;
+
+    @Setup(Level.Trial)
+    public void createTransaction() throws GeneralSecurityException {
+        KeyPair owner = BenchmarkFixtures.keyPair();
+        Transaction root = BenchmarkFixtures.coinbase(owner, inputs);
+        Transaction[] parents = new Transaction[inputs];
+        Arrays.fill(parents, root);
+        int[] indexes = new int[inputs];
+        for (int i = 0; i < inputs; i++) {
+            indexes[i] = i;
+        }
+        tx = BenchmarkFixtures.spend(owner, parents, indexes, outputs);
+    }
+
+    @Benchmark
+    public byte[] getRawTx() {
+        return tx.getRawTx();
+    }
+
+    @Benchmark
+    public byte[] getRawDataToSign() {
+        return tx.getRawDataToSign(0);
+    }
+
+    /** Serializes and hashes the transaction again, as finalize() does each time it is called */
+    @Benchmark
+    public byte[] finalizeTx() {
+        tx.finalize();
+        return tx.getHash();
+    }
+}
@@ -0,0 +1,123 @@
+package ledger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of {@link TxHandler#isValidTx(Transaction)} and of
+ * {@link TxHandler#handleTxs(Transaction[])} on a chain of transactions given children first, and on
+ * a batch where every transaction has a double spending twin
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TxHandlerBenchmark {
+
+    @Param({"10", "100"})
+    private int batchSize;
+
+    @Param({"1", "4"})
+    private int inputs;
+
+    @Param({"1", "4"})
+    private int outputs;
+
+    private UTXOPool utxoPool;
+    private TxHandler validator;
+    private Transaction single;
+    private Transaction[] chained;
+    private Transaction[] conflicting;
+
+    /** Handler for the handleTxs benchmarks, fresh for every call since handleTxs changes its pool */
+    private TxHandler txHandler;
+
+    @Setup(Level.Trial)
+    public void createTransactions() throws GeneralSecurityException {
+        KeyPair owner = BenchmarkFixtures.keyPair();
+        // enough root outputs for every input of the chain, and of the conflicting batch
+        Transaction root = BenchmarkFixtures.coinbase(owner, batchSize * inputs);
+        utxoPool = BenchmarkFixtures.poolOf(root);
+        validator = new TxHandler(utxoPool);
+        single = spendRoot(owner, root, 0);
+
+        // each transaction spends output 0 of the one before and inputs - 1 outputs of root
+        chained = new Transaction[batchSize];
+        Transaction parent = null;
+        for (int i = 0; i < batchSize; i++) {
+            Transaction[] parents = new Transaction[inputs];
+            int[] indexes = new int[inputs];
+            for (int j = 0; j < inputs; j++) {
+                parents[j] = root;
+                indexes[j] = i * inputs + j;
+            }
+            if (parent != null) {
+                parents[0] = parent;
+                indexes[0] = 0;
+            }
+            parent = BenchmarkFixtures.spend(owner, parents, indexes, outputs);
+            chained[batchSize - 1 - i] = parent;
+        }
+
+        // pairs of transactions spending the same root outputs, only the first of each is accepted
+        conflicting = new Transaction[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            conflicting[i] = spendRoot(owner, root, i / 2 * inputs);
+            if (i % 2 == 1) {
+                // a different output count, so the twin has a different hash
+                conflicting[i] = spendRoot(owner, root, i / 2 * inputs, outputs + 1);
+            }
+        }
+    }
+
+    private Transaction spendRoot(KeyPair owner, Transaction root, int first) throws GeneralSecurityException {
+        return spendRoot(owner, root, first, outputs);
+    }
+
+    private Transaction spendRoot(KeyPair owner, Transaction root, int first, int outputCount) throws GeneralSecurityException {
+        Transaction[] parents = new Transaction[inputs];
+        Arrays.fill(parents, root);
+        int[] indexes = new int[inputs];
+        for (int j = 0; j < inputs; j++) {
+            indexes[j] = first + j;
+        }
+        return BenchmarkFixtures.spend(owner, parents, indexes, outputCount);
+    }
+
+    @Setup(Level.Invocation)
+    public void createHandler() {
+        txHandler = new TxHandler(utxoPool);
+    }
+
+    @Benchmark
+    public boolean isValidTx() {
+        return validator.isValidTx(single);
+    }
+
+    @Benchmark
+    public Transaction[] handleChainedTxs() {
+        return txHandler.handleTxs(chained);
+    }
+
+    @Benchmark
+    public Transaction[] handleConflictingTxs() {
+        return txHandler.handleTxs(conflicting);
+    }
+}
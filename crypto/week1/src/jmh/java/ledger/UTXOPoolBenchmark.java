@@ -0,0 +1,96 @@
+package ledger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of {@link UTXOPool} lookups and changes at several pool sizes. Lookups cycle through
+ * UTXOs in random order, so larger pools also measure cache misses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UTXOPoolBenchmark {
+
+    /** UTXOs looked up in turn, a power of two so the next one is picked with a mask */
+    private static final int PROBES = 1 << 12;
+
+    @Param({"1000", "100000", "1000000"})
+    private int size;
+
+    private UTXOPool utxoPool;
+    private UTXO[] present;
+    private UTXO[] absent;
+    private Transaction.Output output;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void createPool() {
+        Random random = new Random(42);
+        Transaction tx = new Transaction();
+        tx.addOutput(1, null);
+        output = tx.getOutput(0);
+        utxoPool = new UTXOPool();
+        UTXO[] all = new UTXO[size];
+        for (int i = 0; i < size; i++) {
+            all[i] = randomUTXO(random);
+            utxoPool.addUTXO(all[i], output);
+        }
+        present = new UTXO[PROBES];
+        absent = new UTXO[PROBES];
+        for (int i = 0; i < PROBES; i++) {
+            present[i] = all[random.nextInt(size)];
+            absent[i] = randomUTXO(random);
+        }
+    }
+
+    private static UTXO randomUTXO(Random random) {
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        return new UTXO(hash, random.nextInt(4));
+    }
+
+    @Benchmark
+    public boolean containsPresent() {
+        return utxoPool.contains(present[next++ & (PROBES - 1)]);
+    }
+
+    @Benchmark
+    public boolean containsAbsent() {
+        return utxoPool.contains(absent[next++ & (PROBES - 1)]);
+    }
+
+    /** Adds a UTXO and removes it again, so the pool keeps its size */
+    @Benchmark
+    public UTXOPool addRemove() {
+        UTXO utxo = absent[next++ & (PROBES - 1)];
+        utxoPool.addUTXO(utxo, output);
+        utxoPool.removeUTXO(utxo);
+        return utxoPool;
+    }
+
+    /** Removes a UTXO and adds it back, so the pool keeps its size */
+    @Benchmark
+    public UTXOPool removeAdd() {
+        UTXO utxo = present[next++ & (PROBES - 1)];
+        utxoPool.removeUTXO(utxo);
+        utxoPool.addUTXO(utxo, output);
+        return utxoPool;
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Exact amounts as long counts of satoshis, the smallest fraction of a coin.
+ * <p>
+ * Output values are doubles, which cannot add up coin fractions exactly. Every whole number of
+ * satoshis up to {@link #MAX_SATOSHIS} has exactly one double coin value, so converting a value
+ * with {@link #toSatoshis(double)} and back with {@link #toCoins(long)} gives the same double, and
+ * sums of satoshis are exact. Amounts outside that range, or doubles between two satoshi amounts,
+ * are not amounts at all.
+ */
+public class Amounts {
+
+    /** Satoshis in one coin */
+    public static final long COIN = 100000000L;
+
+    /** The largest amount: all the coins there will ever be, in satoshis */
+    public static final long MAX_SATOSHIS = 21000000L * COIN;
+
+    /**
+     * Amounts summed per block by {@link #sum(long[], int, int)} without overflow checks. Blocks of
+     * amounts up to MAX_SATOSHIS cannot overflow a long.
+     */
+    private static final int SUM_BLOCK = (int) Math.min(4096, Long.MAX_VALUE / MAX_SATOSHIS);
+
+    private Amounts() {
+    }
+
+    /**
+     * @return true if {@code coins} is a whole number of satoshis between -MAX_SATOSHIS and
+     *         MAX_SATOSHIS, so that {@code toSatoshis(coins)} is exact
+     */
+    public static boolean isAmount(double coins) {
+        if (!(Math.abs(coins) <= (double) MAX_SATOSHIS / COIN)) {
+            return false;
+        }
+        return toCoins(Math.round(coins * COIN)) == coins;
+    }
+
+    /**
+     * @return the number of satoshis {@code coins} is worth
+     * @throws IllegalArgumentException if {@code coins} is not a whole number of satoshis between
+     *                                  -MAX_SATOSHIS and MAX_SATOSHIS
+     */
+    public static long toSatoshis(double coins) {
+        if (!isAmount(coins)) {
+            throw new IllegalArgumentException("Not an amount of whole satoshis: " + coins);
+        }
+        return Math.round(coins * COIN);
+    }
+
+    /**
+     * @return the value in coins of {@code satoshis}
+     * @throws IllegalArgumentException if {@code satoshis} is not between -MAX_SATOSHIS and
+     *                                  MAX_SATOSHIS
+     */
+    public static double toCoins(long satoshis) {
+        if (satoshis < -MAX_SATOSHIS || satoshis > MAX_SATOSHIS) {
+            throw new IllegalArgumentException("Amount out of range: " + satoshis + " satoshis");
+        }
+        return (double) satoshis / COIN;
+    }
+
+    /** @return the exact sum of {@code amounts} */
+    public static long sum(long[] amounts) {
+        return sum(amounts, 0, amounts.length);
+    }
+
+    /**
+     * Sums the amounts in [from, to) of {@code amounts}. Blocks of amounts are added with plain
+     * additions and range checks the JIT can vectorize, and only the block totals are added with an
+     * overflow check.
+     *
+     * @return the exact sum of the amounts
+     * @throws IllegalArgumentException if an amount is negative or larger than MAX_SATOSHIS
+     * @throws ArithmeticException      if the sum overflows a long
+     */
+    public static long sum(long[] amounts, int from, int to) {
+        if (from < 0 || from > to || to > amounts.length) {
+            throw new IndexOutOfBoundsException("Range [" + from + ", " + to + ") of " + amounts.length + " amounts");
+        }
+        long total = 0;
+        for (int start = from; start < to; start += SUM_BLOCK) {
+            int end = Math.min(to, start + SUM_BLOCK);
+            long block = 0;
+            // negative as soon as one amount is negative or above MAX_SATOSHIS
+            long outOfRange = 0;
+            for (int i = start; i < end; i++) {
+                long amount = amounts[i];
+                block += amount;
+                outOfRange |= amount | (MAX_SATOSHIS - amount);
+            }
+            if (outOfRange < 0) {
+                throw new IllegalArgumentException("Amount out of range in [" + start + ", " + end + ")");
+            }
+            total = Math.addExact(total, block);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,542 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Picks the most valuable set of mutually valid transactions from a large pending set that fits in
+ * a size budget, for a producer to propose as its next epoch.
+ * <p>
+ * A transaction pays the sum of the values it claims minus the sum of its output values as fee, and
+ * its size is the size of its raw transaction. Since a transaction can only be taken along with the
+ * pending transactions it claims outputs from, candidates are ranked by the fee per byte of their
+ * ancestor package: the transaction with every pending ancestor not taken yet. The packages are kept
+ * in a max-heap. Taking a package lowers the package fee and size of the descendants of its
+ * transactions, which are updated in place in the heap, drops every pending transaction that spends
+ * an output the package spent, along with its descendants, and skips packages that no longer fit.
+ * <p>
+ * Transactions are checked against the pool and each other for everything except signatures:
+ * claimed outputs must exist, outputs must be non-negative and covered by the inputs, and no output
+ * may be spent twice. Signatures are expected to have been checked when the transactions were
+ * received, for example by a {@link Mempool}, since verifying a large pending set would take far
+ * longer than building the template. Like the ancestor limits of other nodes, transactions with
+ * more than {@code maxAncestors} pending ancestors are left out, which bounds the work per
+ * transaction taken.
+ */
+public class BlockTemplateBuilder {
+
+    /** Default limit on the pending ancestors of a transaction */
+    public static final int DEFAULT_MAX_ANCESTORS = 25;
+
+    private static final byte PENDING = 0;
+    private static final byte TAKEN = 1;
+    private static final byte DROPPED = 2;
+
+    private static final int[] NONE = new int[0];
+
+    /** The transactions of a template, in an order handleTxs accepts them in, with their totals */
+    public static class Template {
+        private final Transaction[] transactions;
+        private final double fees;
+        private final long size;
+
+        Template(Transaction[] transactions, double fees, long size) {
+            this.transactions = transactions;
+            this.fees = fees;
+            this.size = size;
+        }
+
+        /** @return the transactions, every one after the transactions it claims outputs from */
+        public Transaction[] getTransactions() {
+            return transactions.clone();
+        }
+
+        /** @return the sum of the fees of the transactions */
+        public double getFees() {
+            return fees;
+        }
+
+        /** @return the sum of the raw sizes of the transactions, in bytes */
+        public long getSize() {
+            return size;
+        }
+    }
+
+    private final UTXOPool utxoPool;
+    private int maxAncestors = DEFAULT_MAX_ANCESTORS;
+
+    /* State of the running build, indexed by candidate */
+    private List<Transaction> candidates;
+    private double[] fee;
+    private int[] size;
+    private int[][] parents;
+    private int[][] children;
+    private int[][] ancestors;
+    private double[] packageFee;
+    private long[] packageSize;
+    private byte[] state;
+    private boolean[] contested;
+    private HashMap<UTXO, int[]> spenders;
+    private int[] stamp;
+    private int stampCount;
+
+    /* Max-heap of candidates by package fee rate, with the heap position of each candidate or -1 */
+    private int[] heap;
+    private int heapSize;
+    private int[] position;
+
+    /** Creates a builder for templates spending the outputs of {@code utxoPool}, which it only reads */
+    public BlockTemplateBuilder(UTXOPool utxoPool) {
+        this.utxoPool = utxoPool;
+    }
+
+    /** Leaves out transactions with more than {@code maxAncestors} pending ancestors */
+    public BlockTemplateBuilder setMaxAncestors(int maxAncestors) {
+        if (maxAncestors < 0) {
+            throw new IllegalArgumentException("Ancestor limit must not be negative: " + maxAncestors);
+        }
+        this.maxAncestors = maxAncestors;
+        return this;
+    }
+
+    /**
+     * @return the template of highest fee the builder finds among {@code candidates} within
+     *         {@code maxBytes} of raw transactions
+     */
+    public Template build(List<Transaction> candidates, long maxBytes) {
+        this.candidates = candidates;
+        int n = candidates.size();
+        fee = new double[n];
+        size = new int[n];
+        parents = new int[n][];
+        state = new byte[n];
+        contested = new boolean[n];
+        stamp = new int[n];
+        stampCount = 0;
+        try {
+            resolveInputs();
+            int[] order = topologicalOrder();
+            computePackages(order);
+            return select(maxBytes);
+        } finally {
+            this.candidates = null;
+            fee = null;
+            size = null;
+            parents = null;
+            children = null;
+            ancestors = null;
+            packageFee = null;
+            packageSize = null;
+            state = null;
+            contested = null;
+            spenders = null;
+            stamp = null;
+            heap = null;
+            position = null;
+        }
+    }
+
+    /*
+     * Resolves every input against the pool or another candidate, recording the fee, size and
+     * pending parents of each candidate and who spends each output. Drops invalid candidates.
+     */
+    private void resolveInputs() {
+        int n = candidates.size();
+        HashMap<ByteBuffer, Integer> byHash = new HashMap<>(n * 2);
+        for (int i = 0; i < n; i++) {
+            byte[] hash = candidates.get(i).getHash();
+            if (hash == null || byHash.containsKey(ByteBuffer.wrap(hash))) {
+                state[i] = DROPPED;
+            } else {
+                byHash.put(ByteBuffer.wrap(hash), i);
+            }
+        }
+        spenders = new HashMap<>(n * 2);
+        int[] parentBuffer = new int[4];
+        for (int i = 0; i < n; i++) {
+            parents[i] = NONE;
+            if (state[i] == DROPPED) {
+                continue;
+            }
+            Transaction tx = candidates.get(i);
+            double inputTotal = 0;
+            int parentCount = 0;
+            boolean valid = true;
+            for (int j = 0; j < tx.numInputs() && valid; j++) {
+                Transaction.Input in = tx.getInput(j);
+                if (in.prevTxHash == null || in.outputIndex < 0) {
+                    valid = false;
+                    break;
+                }
+                Transaction.Output claimed = utxoPool.getTxOutput(in.prevTxHash, in.outputIndex);
+                if (claimed == null) {
+                    Integer parent = byHash.get(ByteBuffer.wrap(in.prevTxHash));
+                    claimed = parent == null || parent == i ? null : candidates.get(parent).getOutput(in.outputIndex);
+                    if (claimed == null) {
+                        valid = false;
+                        break;
+                    }
+                    if (indexOf(parentBuffer, parentCount, parent) < 0) {
+                        if (parentCount == parentBuffer.length) {
+                            parentBuffer = Arrays.copyOf(parentBuffer, parentCount * 2);
+                        }
+                        parentBuffer[parentCount++] = parent;
+                    }
+                }
+                inputTotal += claimed.value;
+                valid = addSpender(new UTXO(in.prevTxHash, in.outputIndex), i);
+            }
+            double outputTotal = 0;
+            for (int j = 0; j < tx.numOutputs() && valid; j++) {
+                double value = tx.getOutput(j).value;
+                valid = value >= 0;
+                outputTotal += value;
+            }
+            if (!valid || !(inputTotal >= outputTotal)) {
+                state[i] = DROPPED;
+                continue;
+            }
+            fee[i] = inputTotal - outputTotal;
+            size[i] = Math.max(1, tx.getRawTxSize());
+            parents[i] = Arrays.copyOf(parentBuffer, parentCount);
+        }
+    }
+
+    /* @return false if candidate i spends utxo twice, which makes it invalid */
+    private boolean addSpender(UTXO utxo, int i) {
+        int[] previous = spenders.get(utxo);
+        if (previous == null) {
+            spenders.put(utxo, new int[]{i});
+            return true;
+        }
+        if (indexOf(previous, previous.length, i) >= 0) {
+            return false;
+        }
+        int[] all = Arrays.copyOf(previous, previous.length + 1);
+        all[previous.length] = i;
+        spenders.put(utxo, all);
+        for (int spender : all) {
+            contested[spender] = true;
+        }
+        return true;
+    }
+
+    /*
+     * @return the candidates in an order where parents come before their children, leaving out, and
+     *         dropping, those with a dropped ancestor or in a cycle
+     */
+    private int[] topologicalOrder() {
+        int n = candidates.size();
+        int[] childCount = new int[n];
+        for (int i = 0; i < n; i++) {
+            for (int parent : parents[i]) {
+                childCount[parent]++;
+            }
+        }
+        children = new int[n][];
+        for (int i = 0; i < n; i++) {
+            children[i] = childCount[i] == 0 ? NONE : new int[childCount[i]];
+            childCount[i] = 0;
+        }
+        int[] missingParents = new int[n];
+        for (int i = 0; i < n; i++) {
+            for (int parent : parents[i]) {
+                children[parent][childCount[parent]++] = i;
+            }
+            missingParents[i] = parents[i].length;
+        }
+        int[] order = new int[n];
+        int length = 0;
+        for (int i = 0; i < n; i++) {
+            if (missingParents[i] == 0 && state[i] != DROPPED) {
+                order[length++] = i;
+            }
+        }
+        for (int k = 0; k < length; k++) {
+            for (int child : children[order[k]]) {
+                if (--missingParents[child] == 0 && state[child] != DROPPED) {
+                    order[length++] = child;
+                }
+            }
+        }
+        // whatever was not reached has a dropped ancestor or sits on a cycle
+        boolean[] reached = new boolean[n];
+        for (int k = 0; k < length; k++) {
+            reached[order[k]] = true;
+        }
+        for (int i = 0; i < n; i++) {
+            if (!reached[i]) {
+                state[i] = DROPPED;
+            }
+        }
+        return Arrays.copyOf(order, length);
+    }
+
+    /*
+     * Computes the ancestors of every candidate, parents first, and the fee and size of its package.
+     * Drops candidates over the ancestor limit or whose package spends an output twice.
+     */
+    private void computePackages(int[] order) {
+        int n = candidates.size();
+        int[] rank = new int[n];
+        for (int k = 0; k < order.length; k++) {
+            rank[order[k]] = k;
+        }
+        ancestors = new int[n][];
+        packageFee = new double[n];
+        packageSize = new long[n];
+        int[] buffer = new int[maxAncestors + 1];
+        for (int i : order) {
+            ancestors[i] = NONE;
+            boolean valid = true;
+            int count = 0;
+            int mark = ++stampCount;
+            for (int parent : parents[i]) {
+                if (state[parent] == DROPPED) {
+                    valid = false;
+                    break;
+                }
+                for (int k = -1; k < ancestors[parent].length && valid; k++) {
+                    int ancestor = k < 0 ? parent : ancestors[parent][k];
+                    if (stamp[ancestor] != mark) {
+                        stamp[ancestor] = mark;
+                        if (count == maxAncestors) {
+                            valid = false;
+                        } else {
+                            buffer[count++] = ancestor;
+                        }
+                    }
+                }
+            }
+            int[] own = sortByRank(Arrays.copyOf(buffer, valid ? count : 0), rank);
+            if (!valid || contestedTwice(own, i)) {
+                state[i] = DROPPED;
+                continue;
+            }
+            ancestors[i] = own;
+            packageFee[i] = fee[i];
+            packageSize[i] = size[i];
+            for (int ancestor : own) {
+                packageFee[i] += fee[ancestor];
+                packageSize[i] += size[ancestor];
+            }
+        }
+    }
+
+    private static int[] sortByRank(int[] txs, int[] rank) {
+        long[] keyed = new long[txs.length];
+        for (int k = 0; k < txs.length; k++) {
+            keyed[k] = (long) rank[txs[k]] << 32 | txs[k];
+        }
+        Arrays.sort(keyed);
+        for (int k = 0; k < txs.length; k++) {
+            txs[k] = (int) keyed[k];
+        }
+        return txs;
+    }
+
+    /* @return true if two transactions of the package of i spend the same output */
+    private boolean contestedTwice(int[] own, int i) {
+        HashMap<UTXO, Integer> spent = null;
+        for (int k = -1; k < own.length; k++) {
+            int member = k < 0 ? i : own[k];
+            if (!contested[member]) {
+                continue;
+            }
+            if (spent == null) {
+                spent = new HashMap<>();
+            }
+            for (Transaction.Input in : candidates.get(member).getInputs()) {
+                Integer other = spent.put(new UTXO(in.prevTxHash, in.outputIndex), member);
+                if (other != null && other != member) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /* Takes the best package that fits until none is left */
+    private Template select(long maxBytes) {
+        int n = candidates.size();
+        heap = new int[n];
+        heapSize = 0;
+        position = new int[n];
+        Arrays.fill(position, -1);
+        for (int i = 0; i < n; i++) {
+            if (state[i] == PENDING) {
+                push(i);
+            }
+        }
+        ArrayList<Transaction> taken = new ArrayList<>();
+        double fees = 0;
+        long used = 0;
+        while (heapSize > 0) {
+            int top = pop();
+            if (used + packageSize[top] > maxBytes) {
+                // it comes back if taking its ancestors through another package makes it smaller
+                continue;
+            }
+            used += packageSize[top];
+            fees += packageFee[top];
+            int[] members = Arrays.copyOf(ancestors[top], ancestors[top].length + 1);
+            members[members.length - 1] = top;
+            int count = 0;
+            for (int member : members) {
+                if (state[member] == PENDING) {
+                    members[count++] = member;
+                    state[member] = TAKEN;
+                    remove(member);
+                    taken.add(candidates.get(member));
+                }
+            }
+            for (int k = 0; k < count; k++) {
+                dropConflicts(members[k]);
+            }
+            for (int k = 0; k < count; k++) {
+                updateDescendants(members[k]);
+            }
+        }
+        return new Template(taken.toArray(new Transaction[taken.size()]), fees, used);
+    }
+
+    /* Drops every pending transaction spending an output taken transaction t spends, and its descendants */
+    private void dropConflicts(int t) {
+        if (!contested[t]) {
+            return;
+        }
+        for (Transaction.Input in : candidates.get(t).getInputs()) {
+            for (int spender : spenders.get(new UTXO(in.prevTxHash, in.outputIndex))) {
+                if (spender != t && state[spender] == PENDING) {
+                    dropWithDescendants(spender);
+                }
+            }
+        }
+    }
+
+    private void dropWithDescendants(int t) {
+        ArrayList<Integer> stack = new ArrayList<>();
+        stack.add(t);
+        while (!stack.isEmpty()) {
+            int next = stack.remove(stack.size() - 1);
+            if (state[next] != PENDING) {
+                continue;
+            }
+            state[next] = DROPPED;
+            remove(next);
+            for (int child : children[next]) {
+                stack.add(child);
+            }
+        }
+    }
+
+    /* Removes taken transaction t from the packages of its pending descendants, each once */
+    private void updateDescendants(int t) {
+        int mark = ++stampCount;
+        ArrayList<Integer> stack = new ArrayList<>();
+        for (int child : children[t]) {
+            stack.add(child);
+        }
+        while (!stack.isEmpty()) {
+            int next = stack.remove(stack.size() - 1);
+            if (stamp[next] == mark || state[next] == DROPPED) {
+                continue;
+            }
+            stamp[next] = mark;
+            // a descendant taken along with t is passed through, its own descendants still count t
+            if (state[next] == PENDING) {
+                packageFee[next] -= fee[t];
+                packageSize[next] -= size[t];
+                if (position[next] < 0) {
+                    push(next);
+                } else {
+                    siftUp(position[next]);
+                    siftDown(position[next]);
+                }
+            }
+            for (int child : children[next]) {
+                stack.add(child);
+            }
+        }
+    }
+
+    /* @return true if the package of a pays more per byte than that of b, the earlier one on ties */
+    private boolean better(int a, int b) {
+        double left = packageFee[a] * packageSize[b];
+        double right = packageFee[b] * packageSize[a];
+        return left > right || left == right && a < b;
+    }
+
+    private void push(int t) {
+        heap[heapSize] = t;
+        position[t] = heapSize;
+        siftUp(heapSize++);
+    }
+
+    private int pop() {
+        int top = heap[0];
+        remove(top);
+        return top;
+    }
+
+    private void remove(int t) {
+        int at = position[t];
+        if (at < 0) {
+            return;
+        }
+        position[t] = -1;
+        int last = heap[--heapSize];
+        if (at < heapSize) {
+            heap[at] = last;
+            position[last] = at;
+            siftUp(at);
+            siftDown(position[last]);
+        }
+    }
+
+    private void siftUp(int at) {
+        int t = heap[at];
+        while (at > 0) {
+            int parent = (at - 1) >>> 1;
+            if (!better(t, heap[parent])) {
+                break;
+            }
+            heap[at] = heap[parent];
+            position[heap[at]] = at;
+            at = parent;
+        }
+        heap[at] = t;
+        position[t] = at;
+    }
+
+    private void siftDown(int at) {
+        int t = heap[at];
+        while (true) {
+            int child = 2 * at + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && better(heap[child + 1], heap[child])) {
+                child++;
+            }
+            if (!better(heap[child], t)) {
+                break;
+            }
+            heap[at] = heap[child];
+            position[heap[at]] = at;
+            at = child;
+        }
+        heap[at] = t;
+        position[t] = at;
+    }
+
+    private static int indexOf(int[] array, int length, int value) {
+        for (int i = 0; i < length; i++) {
+            if (array[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,232 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A UTXOPool that several threads can read and modify at once.
+ * <p>
+ * Reads never lock: they go straight to a ConcurrentHashMap. Changes lock one of a fixed set of
+ * stripes, chosen by the hash code of the UTXO, so changes to unrelated UTXOs rarely wait for each
+ * other. {@link #trySpend(UTXO)} removes a UTXO only if it is still unspent, and
+ * {@link #trySpendAll(List)} spends several UTXOs or none of them. A batch locks the stripes of all
+ * its UTXOs in ascending order, so batches cannot deadlock and no other change can run between its
+ * check and its removals. Readers may still see a batch half applied.
+ * <p>
+ * {@link #apply(Transaction)} spends the inputs of a transaction and adds its outputs, so threads
+ * can apply independent transactions without a global lock.
+ */
+public class ConcurrentUTXOPool extends UTXOPool {
+
+    private static final int STRIPES = 64;
+
+    /** ConcurrentHashMap holds no null values, null outputs are stored as this one */
+    private static final Transaction.Output NULL_OUTPUT = new Transaction().new Output(0, null);
+
+    private final ConcurrentHashMap<UTXO, Transaction.Output> utxos;
+    private final ReentrantLock[] stripes;
+
+    /** Creates a new empty pool */
+    public ConcurrentUTXOPool() {
+        utxos = new ConcurrentHashMap<>();
+        stripes = new ReentrantLock[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /** Creates a new pool that is a copy of {@code uPool} */
+    public ConcurrentUTXOPool(UTXOPool uPool) {
+        this();
+        for (UTXO ut : uPool.getAllUTXO()) {
+            utxos.put(ut, wrap(uPool.getTxOutput(ut)));
+        }
+    }
+
+    @Override
+    public ConcurrentUTXOPool copy() {
+        return new ConcurrentUTXOPool(this);
+    }
+
+    /** @return the number of UTXOs in the pool */
+    @Override
+    public int size() {
+        return utxos.size();
+    }
+
+    @Override
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        ReentrantLock lock = stripeOf(utxo);
+        lock.lock();
+        try {
+            utxos.put(utxo, wrap(txOut));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void removeUTXO(UTXO utxo) {
+        trySpend(utxo);
+    }
+
+    @Override
+    public void removeUTXO(byte[] txHash, int index) {
+        if (txHash != null) {
+            trySpend(UTXO.probe(txHash, index));
+        }
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(UTXO ut) {
+        return unwrap(utxos.get(ut));
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        return txHash == null ? null : getTxOutput(UTXO.probe(txHash, index));
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        return utxos.containsKey(utxo);
+    }
+
+    @Override
+    public boolean contains(byte[] txHash, int index) {
+        return txHash != null && contains(UTXO.probe(txHash, index));
+    }
+
+    @Override
+    public ArrayList<UTXO> getAllUTXO() {
+        return new ArrayList<UTXO>(utxos.keySet());
+    }
+
+    /**
+     * Removes {@code utxo} if it is in the pool. Of several threads spending the same UTXO, exactly
+     * one succeeds.
+     *
+     * @return true if this call removed {@code utxo}, false if it was not in the pool
+     */
+    public boolean trySpend(UTXO utxo) {
+        ReentrantLock lock = stripeOf(utxo);
+        lock.lock();
+        try {
+            return utxos.remove(utxo) != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes every UTXO of {@code toSpend} if all of them are in the pool and none is listed twice,
+     * and removes none of them otherwise.
+     *
+     * @return the outputs of the spent UTXOs in the order of {@code toSpend}, or null if nothing was
+     *         spent
+     */
+    public Transaction.Output[] trySpendAll(List<UTXO> toSpend) {
+        if (hasDuplicates(toSpend)) {
+            return null;
+        }
+        int[] locked = stripeIndexes(toSpend);
+        for (int stripe : locked) {
+            stripes[stripe].lock();
+        }
+        try {
+            Transaction.Output[] spent = new Transaction.Output[toSpend.size()];
+            for (int i = 0; i < spent.length; i++) {
+                UTXO utxo = toSpend.get(i);
+                spent[i] = utxos.get(utxo);
+                if (spent[i] == null) {
+                    return null;
+                }
+            }
+            for (int i = 0; i < spent.length; i++) {
+                utxos.remove(toSpend.get(i));
+                spent[i] = unwrap(spent[i]);
+            }
+            return spent;
+        } finally {
+            for (int i = locked.length - 1; i >= 0; i--) {
+                stripes[locked[i]].unlock();
+            }
+        }
+    }
+
+    /**
+     * Spends every input of {@code tx} with {@link #trySpendAll(List)} and, if that succeeds, adds
+     * every output of {@code tx}. Only the spends are checked; whether the transaction is valid is
+     * left to the caller.
+     *
+     * @return true if the inputs were spent and the outputs added, false if nothing changed
+     */
+    public boolean apply(Transaction tx) {
+        List<UTXO> inputs = new ArrayList<>(tx.numInputs());
+        for (Transaction.Input in : tx.getInputs()) {
+            if (in.prevTxHash == null) {
+                return false;
+            }
+            inputs.add(new UTXO(in.prevTxHash, in.outputIndex));
+        }
+        if (trySpendAll(inputs) == null) {
+            return false;
+        }
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+        }
+        return true;
+    }
+
+    private ReentrantLock stripeOf(UTXO utxo) {
+        return stripes[stripeIndex(utxo)];
+    }
+
+    private static int stripeIndex(UTXO utxo) {
+        int h = utxo.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    /* @return true if a UTXO is listed twice, checked before any stripe is locked */
+    private static boolean hasDuplicates(List<UTXO> utxos) {
+        if (utxos.size() < 2) {
+            return false;
+        }
+        HashSet<UTXO> seen = new HashSet<>(utxos.size() * 2);
+        for (UTXO utxo : utxos) {
+            if (!seen.add(utxo)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* @return the distinct stripes of utxos in ascending order, the order every batch locks them in */
+    private static int[] stripeIndexes(List<UTXO> utxos) {
+        boolean[] used = new boolean[STRIPES];
+        int count = 0;
+        for (UTXO utxo : utxos) {
+            int stripe = stripeIndex(utxo);
+            if (!used[stripe]) {
+                used[stripe] = true;
+                count++;
+            }
+        }
+        int[] indexes = new int[count];
+        for (int stripe = 0, i = 0; stripe < STRIPES; stripe++) {
+            if (used[stripe]) {
+                indexes[i++] = stripe;
+            }
+        }
+        return indexes;
+    }
+
+    private static Transaction.Output wrap(Transaction.Output txOut) {
+        return txOut == null ? NULL_OUTPUT : txOut;
+    }
+
+    private static Transaction.Output unwrap(Transaction.Output stored) {
+        return stored == NULL_OUTPUT ? null : stored;
+    }
+}
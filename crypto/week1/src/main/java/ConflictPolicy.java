@@ -0,0 +1,29 @@
+/**
+ * Decides which of two transactions of an epoch spending the same output is kept, when a TxHandler
+ * resolves the conflicts of an epoch through {@link TxHandler#setConflictPolicy(ConflictPolicy)}.
+ * <p>
+ * The incumbent is the transaction currently holding the output, which came earlier in the epoch
+ * array, and the challenger a later one claiming it too. Both are valid, with the outputs they claim
+ * from other transactions of the epoch taken as available, so an invalid transaction never wins an
+ * output. Fees are the sum of the values a transaction claims minus the sum of its output values.
+ * The losing transaction is dropped from the epoch.
+ */
+public interface ConflictPolicy {
+
+    /** Keeps the transaction that came first in the epoch */
+    ConflictPolicy FIRST_SEEN = (challenger, challengerFee, incumbent, incumbentFee) -> false;
+
+    /** Keeps the transaction paying the higher fee, the one that came first on equal fees */
+    ConflictPolicy HIGHEST_FEE = (challenger, challengerFee, incumbent, incumbentFee) -> challengerFee > incumbentFee;
+
+    /**
+     * Replaces the incumbent only by a transaction paying both a higher fee and a higher fee per byte
+     * of raw transaction, so that a replacement cannot take block space for less than it displaces
+     */
+    ConflictPolicy REPLACE_BY_FEE = (challenger, challengerFee, incumbent, incumbentFee) ->
+            challengerFee > incumbentFee
+                    && challengerFee / Math.max(1, challenger.getRawTxSize()) > incumbentFee / Math.max(1, incumbent.getRawTxSize());
+
+    /** @return true if {@code challenger} should spend the contested output instead of {@code incumbent} */
+    boolean prefers(Transaction challenger, double challengerFee, Transaction incumbent, double incumbentFee);
+}
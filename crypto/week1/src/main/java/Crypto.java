@@ -3,9 +3,101 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
+import java.util.List;
 
 public class Crypto {
 
+    private static final String ALGORITHM = "SHA256withRSA";
+
+    /** Outcome of verifying one signature */
+    public enum Verdict {
+        /** the signature is valid */
+        VALID,
+        /** the signature is well formed but does not match the message and key */
+        INVALID_SIGNATURE,
+        /** the signature or message is missing or cannot be parsed */
+        MALFORMED_SIGNATURE,
+        /** the public key is missing or not an RSA key */
+        INVALID_KEY
+    }
+
+    /** A signature to verify as part of {@link #verifyAll(List)} */
+    public static class VerifyRequest {
+        private final PublicKey pubKey;
+        private final byte[] message;
+        private final byte[] signature;
+
+        public VerifyRequest(PublicKey pubKey, byte[] message, byte[] signature) {
+            this.pubKey = pubKey;
+            this.message = message;
+            this.signature = signature;
+        }
+
+        public PublicKey getPubKey() {
+            return pubKey;
+        }
+
+        public byte[] getMessage() {
+            return message;
+        }
+
+        public byte[] getSignature() {
+            return signature;
+        }
+    }
+
+    /*
+     * A Signature object confined to one thread, remembering the key it was last initialized with so
+     * consecutive verifications under the same key skip initVerify. Signature.verify resets the
+     * object to its initialized state, so it can be reused right away.
+     */
+    private static class Verifier {
+        private final Signature sig;
+        private PublicKey key;
+
+        Verifier() {
+            try {
+                sig = Signature.getInstance(ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                // every Java platform is required to support SHA256withRSA
+                throw new IllegalStateException(ALGORITHM + " is not available", e);
+            }
+        }
+
+        Verdict verify(PublicKey pubKey, byte[] message, byte[] signature) {
+            if (pubKey == null) {
+                return Verdict.INVALID_KEY;
+            }
+            if (message == null || signature == null) {
+                return Verdict.MALFORMED_SIGNATURE;
+            }
+            try {
+                if (pubKey != key) {
+                    key = null;
+                    sig.initVerify(pubKey);
+                    key = pubKey;
+                }
+            } catch (InvalidKeyException e) {
+                return Verdict.INVALID_KEY;
+            }
+            try {
+                sig.update(message);
+                return sig.verify(signature) ? Verdict.VALID : Verdict.INVALID_SIGNATURE;
+            } catch (SignatureException e) {
+                // the object state is unspecified after a failure, initialize it again next time
+                key = null;
+                return Verdict.MALFORMED_SIGNATURE;
+            }
+        }
+    }
+
+    private static final ThreadLocal<Verifier> VERIFIERS = new ThreadLocal<Verifier>() {
+        @Override
+        protected Verifier initialValue() {
+            return new Verifier();
+        }
+    };
+
     /**
      * @return true is {@code signature} is a valid digital signature of {@code message} under the
      *         key {@code pubKey}. Internally, this uses RSA signature, but the student does not
@@ -13,24 +105,30 @@ public class Crypto {
      *         algorithm
      */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
-        Signature sig = null;
-        try {
-            sig = Signature.getInstance("SHA256withRSA");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
-        try {
-            sig.initVerify(pubKey);
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
-        }
-        try {
-            sig.update(message);
-            return sig.verify(signature);
-        } catch (SignatureException e) {
-            e.printStackTrace();
-        }
-        return false;
+        return verify(pubKey, message, signature) == Verdict.VALID;
+    }
+
+    /**
+     * @return the outcome of verifying {@code signature} of {@code message} under {@code pubKey},
+     *         telling invalid signatures apart from malformed input instead of only failing
+     */
+    public static Verdict verify(PublicKey pubKey, byte[] message, byte[] signature) {
+        return VERIFIERS.get().verify(pubKey, message, signature);
+    }
 
+    /**
+     * Verifies every request of {@code requests} with the verifier of the calling thread, so the
+     * signature setup is shared by the whole batch.
+     *
+     * @return the outcome of each request, in the order of {@code requests}
+     */
+    public static Verdict[] verifyAll(List<VerifyRequest> requests) {
+        Verifier verifier = VERIFIERS.get();
+        Verdict[] verdicts = new Verdict[requests.size()];
+        for (int i = 0; i < verdicts.length; i++) {
+            VerifyRequest request = requests.get(i);
+            verdicts[i] = verifier.verify(request.pubKey, request.message, request.signature);
+        }
+        return verdicts;
     }
 }
@@ -0,0 +1,315 @@
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Handles epochs through a {@link TxHandler} in three stages running at once, so that later epochs
+ * are prepared and verified while an earlier one is applied:
+ * <ol>
+ * <li>prepare: resolves the public key every input claims an output of, and serializes the data
+ * each signature covers on the worker pool;</li>
+ * <li>verify: verifies the signatures on the worker pool;</li>
+ * <li>apply: hands the epoch and its verdicts to {@code handleTxs}, on a single thread, which
+ * resolves dependencies and double spends against the live pool as always.</li>
+ * </ol>
+ * Each stage runs on a thread of its own and passes epochs on through a queue holding at most
+ * {@code queueCapacity} of them, so {@link #submit(Transaction[])} blocks once the stages fall
+ * behind instead of buffering without bound.
+ * <p>
+ * The prepare stage cannot read the live pool while it is being changed, so it resolves keys
+ * against a read snapshot: the transactions of the last {@value #RECENT_EPOCHS} epochs, then the
+ * pool the handler was created from. A verdict is only used if the apply step resolves the input to
+ * the same key, so inputs the snapshot resolves wrongly or not at all are verified inline, and the
+ * accepted transactions are the same as from calling {@code handleTxs} directly.
+ * <p>
+ * While a pipeline is open, its handler must only be used through it, and the snapshot pool must not
+ * be changed.
+ */
+public class EpochPipeline implements AutoCloseable {
+
+    /** Epochs whose transactions the prepare stage resolves keys against, besides the snapshot pool */
+    private static final int RECENT_EPOCHS = 16;
+
+    /** Inputs serialized, or verified, per fork/join task before it stops splitting its range */
+    private static final int TASK_BATCH = 16;
+
+    /** An epoch on its way through the stages */
+    private static class Epoch {
+        private final Transaction[] txs;
+        private final CompletableFuture<Transaction[]> result = new CompletableFuture<>();
+
+        /** The inputs to verify, as the transaction and input index of each, with the key it claims */
+        private ArrayList<Transaction> inputTxs;
+        private int[] inputIndexes;
+        private PublicKey[] keys;
+
+        /** The request for each input to verify, built by the prepare stage, and its outcome */
+        private Crypto.VerifyRequest[] requests;
+        private boolean[] valid;
+
+        private SignatureVerdicts verdicts;
+
+        Epoch(Transaction[] txs) {
+            this.txs = txs;
+        }
+    }
+
+    /** Passed down the stages by close() to stop them */
+    private static final Epoch END = new Epoch(new Transaction[0]);
+
+    private final TxHandler txHandler;
+    private final UTXOPool snapshot;
+    private final ForkJoinPool workers;
+
+    private final BlockingQueue<Epoch> toPrepare;
+    private final BlockingQueue<Epoch> toVerify;
+    private final BlockingQueue<Epoch> toApply;
+    private final Thread[] stages;
+
+    /** Transactions of the last RECENT_EPOCHS epochs by hash, read and written by the prepare stage only */
+    private final HashMap<ByteBuffer, Transaction> recent = new HashMap<>();
+    private final ArrayDeque<Transaction[]> recentEpochs = new ArrayDeque<>();
+
+    private boolean closed;
+
+    /**
+     * Starts a pipeline handling epochs through {@code txHandler}, which must have been created from
+     * {@code snapshot}, preparing and verifying them on {@code workers}, with at most
+     * {@code queueCapacity} epochs waiting between two stages
+     */
+    public EpochPipeline(TxHandler txHandler, UTXOPool snapshot, ForkJoinPool workers, int queueCapacity) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive: " + queueCapacity);
+        }
+        this.txHandler = txHandler;
+        this.snapshot = snapshot;
+        this.workers = workers;
+        this.toPrepare = new ArrayBlockingQueue<>(queueCapacity);
+        this.toVerify = new ArrayBlockingQueue<>(queueCapacity);
+        this.toApply = new ArrayBlockingQueue<>(queueCapacity);
+        this.stages = new Thread[]{
+                new Thread(() -> run(toPrepare, toVerify, this::prepare), "epoch-prepare"),
+                new Thread(() -> run(toVerify, toApply, this::verify), "epoch-verify"),
+                new Thread(() -> run(toApply, null, this::apply), "epoch-apply")
+        };
+        for (Thread stage : stages) {
+            stage.setDaemon(true);
+            stage.start();
+        }
+    }
+
+    /**
+     * Queues {@code possibleTxs} as the next epoch, waiting while the prepare stage has
+     * {@code queueCapacity} epochs waiting already. Epochs are applied in the order they are submitted.
+     *
+     * @return the transactions the epoch accepts, as returned by {@code handleTxs}, once it is applied
+     * @throws IllegalStateException if the pipeline is closed
+     */
+    public Future<Transaction[]> submit(Transaction[] possibleTxs) throws InterruptedException {
+        Epoch epoch = new Epoch(possibleTxs);
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Pipeline is closed");
+            }
+            toPrepare.put(epoch);
+        }
+        return epoch.result;
+    }
+
+    /**
+     * Waits for the submitted epochs to be applied, then stops the stages. If the calling thread is
+     * interrupted, it stops waiting and returns with its interrupt status set, and the stages stop
+     * on their own once the submitted epochs are applied.
+     */
+    @Override
+    public void close() {
+        boolean interrupted = false;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            // the stages must get END whatever happens, and they keep taking from the queue
+            while (true) {
+                try {
+                    toPrepare.put(END);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        try {
+            for (Thread stage : stages) {
+                if (interrupted) {
+                    break;
+                }
+                stage.join();
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private interface Stage {
+        void process(Epoch epoch);
+    }
+
+    /*
+     * Takes epochs from in until END, processing each and passing it on to out, if not null. An epoch
+     * whose processing throws is completed with the exception and not passed on.
+     */
+    private static void run(BlockingQueue<Epoch> in, BlockingQueue<Epoch> out, Stage stage) {
+        try {
+            while (true) {
+                Epoch epoch = in.take();
+                if (epoch != END) {
+                    try {
+                        stage.process(epoch);
+                    } catch (RuntimeException | Error e) {
+                        epoch.result.completeExceptionally(e);
+                        continue;
+                    }
+                }
+                if (out != null) {
+                    out.put(epoch);
+                }
+                if (epoch == END) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* Resolves the key of every input against the snapshot, then serializes the signed data in parallel */
+    private void prepare(Epoch epoch) {
+        remember(epoch.txs);
+        ArrayList<Transaction> inputTxs = new ArrayList<>();
+        int[] inputIndexes = new int[16];
+        PublicKey[] keys = new PublicKey[16];
+        for (Transaction tx : epoch.txs) {
+            for (int i = 0; i < tx.numInputs(); i++) {
+                Transaction.Input txInput = tx.getInput(i);
+                if (txInput.prevTxHash == null || txInput.outputIndex < 0 || txInput.signature == null) {
+                    continue;
+                }
+                Transaction.Output claimed = null;
+                Transaction parent = recent.get(ByteBuffer.wrap(txInput.prevTxHash));
+                if (parent != null) {
+                    claimed = parent.getOutput(txInput.outputIndex);
+                }
+                if (claimed == null) {
+                    claimed = snapshot.getTxOutput(txInput.prevTxHash, txInput.outputIndex);
+                }
+                if (claimed == null || claimed.address == null) {
+                    continue;
+                }
+                int n = inputTxs.size();
+                if (n == keys.length) {
+                    inputIndexes = Arrays.copyOf(inputIndexes, n * 2);
+                    keys = Arrays.copyOf(keys, n * 2);
+                }
+                inputTxs.add(tx);
+                inputIndexes[n] = i;
+                keys[n] = claimed.address;
+            }
+        }
+        epoch.inputTxs = inputTxs;
+        epoch.inputIndexes = inputIndexes;
+        epoch.keys = keys;
+        epoch.requests = new Crypto.VerifyRequest[inputTxs.size()];
+        workers.invoke(new InputTask(epoch, false, 0, inputTxs.size()));
+    }
+
+    /* Adds the transactions of an epoch to the recent ones, forgetting those of the oldest epoch beyond RECENT_EPOCHS */
+    private void remember(Transaction[] txs) {
+        for (Transaction tx : txs) {
+            if (tx.getHash() != null) {
+                recent.putIfAbsent(ByteBuffer.wrap(tx.getHash()), tx);
+            }
+        }
+        recentEpochs.addLast(txs);
+        if (recentEpochs.size() > RECENT_EPOCHS) {
+            for (Transaction tx : recentEpochs.removeFirst()) {
+                if (tx.getHash() != null) {
+                    recent.remove(ByteBuffer.wrap(tx.getHash()), tx);
+                }
+            }
+        }
+    }
+
+    /* Verifies the prepared inputs in parallel and records the verdicts */
+    private void verify(Epoch epoch) {
+        int n = epoch.requests.length;
+        epoch.valid = new boolean[n];
+        workers.invoke(new InputTask(epoch, true, 0, n));
+        SignatureVerdicts verdicts = new SignatureVerdicts();
+        for (int i = 0; i < n; i++) {
+            verdicts.put(epoch.inputTxs.get(i), epoch.inputIndexes[i], epoch.keys[i], epoch.valid[i]);
+        }
+        epoch.verdicts = verdicts;
+        // the verdicts hold all the apply stage needs
+        epoch.inputTxs = null;
+        epoch.requests = null;
+    }
+
+    private void apply(Epoch epoch) {
+        epoch.result.complete(txHandler.handleTxs(epoch.txs, epoch.verdicts));
+    }
+
+    /*
+     * Serializes, or verifies, the inputs in [from, to) of an epoch, splitting the range in halves
+     * until it is small enough for the current worker
+     */
+    private static class InputTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Epoch epoch;
+        private final boolean verify;
+        private final int from;
+        private final int to;
+
+        InputTask(Epoch epoch, boolean verify, int from, int to) {
+            this.epoch = epoch;
+            this.verify = verify;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > TASK_BATCH) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new InputTask(epoch, verify, from, mid), new InputTask(epoch, verify, mid, to));
+            } else if (!verify) {
+                for (int i = from; i < to; i++) {
+                    Transaction tx = epoch.inputTxs.get(i);
+                    int index = epoch.inputIndexes[i];
+                    epoch.requests[i] = new Crypto.VerifyRequest(epoch.keys[i], tx.getRawDataToSign(index),
+                            tx.getInput(index).signature);
+                }
+            } else {
+                Crypto.Verdict[] results = Crypto.verifyAll(Arrays.asList(epoch.requests).subList(from, to));
+                for (int i = from; i < to; i++) {
+                    Crypto.VerifyRequest request = epoch.requests[i];
+                    epoch.valid[i] = request.getMessage() != null && request.getMessage().length > 0
+                            && request.getSignature().length > 0 && results[i - from] == Crypto.Verdict.VALID;
+                }
+            }
+        }
+    }
+}
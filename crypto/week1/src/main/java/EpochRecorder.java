@@ -0,0 +1,168 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * Records the calls that change the pool of a TxHandler, through
+ * {@link TxHandler#setEpochRecorder(EpochRecorder)}, so that {@link EpochReplay} can replay them
+ * offline against another handler or pool: the epochs of handleTxs, the transactions of submit, and
+ * rollback and setUndoDepth, which decide what later rollbacks can undo.
+ * <p>
+ * A recording is a file holding, all integers big-endian:
+ * <pre>
+ *   int     magic, int format version
+ *   int     number of UTXOs in the pool when recording started, then for each UTXO:
+ *             bytes txHash, int index, byte 1 and (double value, bytes address) or byte 0 for a null output
+ *   then for each call, a byte kind and:
+ *     EPOCH       long    nanoseconds from the start of the recording to the handleTxs call
+ *                 int     number of transactions, then each as a {@link TransactionCodec} record
+ *                 int     number of accepted transactions, then the position of each in the epoch
+ *     SUBMIT      long    nanoseconds from the start of the recording to the submit call
+ *                 the transaction as a TransactionCodec record, byte 1 if accepted or 0
+ *     ROLLBACK    long    the number of epochs undone, counted back from the last one
+ *     UNDO_DEPTH  int     the new undo depth
+ * </pre>
+ * where {@code bytes} is an int length followed by that many bytes, or a length of -1 for null, and
+ * an address is the X.509 encoding of its RSA public key. The undo depth the handler has when the
+ * recording starts is its first UNDO_DEPTH entry, unless it is 0. Calls are appended as they are
+ * made, so a recording cut short by a crash holds every call but possibly the last. Recordings of
+ * format 1 hold EPOCH entries only, without the kind byte.
+ */
+public class EpochRecorder implements Closeable {
+
+    static final int MAGIC = 0x45504352;
+    static final int FORMAT = 2;
+
+    /** Kinds of the entries of a recording */
+    static final int EPOCH = 0;
+    static final int SUBMIT = 1;
+    static final int ROLLBACK = 2;
+    static final int UNDO_DEPTH = 3;
+
+    private final DataOutputStream out;
+    private final LongSupplier clock;
+    private long start;
+    private boolean started;
+
+    /** Creates a recorder writing to {@code file}, replacing its contents */
+    public EpochRecorder(Path file) throws IOException {
+        this(file, System::nanoTime);
+    }
+
+    /** As the public constructor, reading the time in nanoseconds from {@code clock} */
+    EpochRecorder(Path file, LongSupplier clock) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+        this.clock = clock;
+    }
+
+    /**
+     * Writes the header and {@code utxoPool}, the pool the recorded epochs start from
+     *
+     * @throws IllegalStateException if the recording has started already
+     */
+    void begin(UTXOPool utxoPool) throws IOException {
+        if (started) {
+            throw new IllegalStateException("Recording has started already");
+        }
+        started = true;
+        start = clock.getAsLong();
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT);
+        List<UTXO> utxos = utxoPool.getAllUTXO();
+        out.writeInt(utxos.size());
+        for (UTXO utxo : utxos) {
+            writeBytes(utxo.getTxHash());
+            out.writeInt(utxo.getIndex());
+            Transaction.Output output = utxoPool.getTxOutput(utxo);
+            if (output == null) {
+                out.writeByte(0);
+            } else {
+                out.writeByte(1);
+                out.writeDouble(output.value);
+                writeBytes(output.address == null ? null : output.address.getEncoded());
+            }
+        }
+        out.flush();
+    }
+
+    /** @return the nanoseconds elapsed since the recording started, to stamp an epoch arriving now */
+    long elapsed() {
+        return clock.getAsLong() - start;
+    }
+
+    /**
+     * Appends the epoch {@code possibleTxs}, which arrived {@code arrival} nanoseconds into the
+     * recording, and the transactions of it that were {@code accepted}
+     */
+    void record(long arrival, Transaction[] possibleTxs, Transaction[] accepted) throws IOException {
+        checkStarted();
+        out.writeByte(EPOCH);
+        out.writeLong(arrival);
+        out.writeInt(possibleTxs.length);
+        IdentityHashMap<Transaction, Integer> positions = new IdentityHashMap<>();
+        for (int i = 0; i < possibleTxs.length; i++) {
+            out.write(TransactionCodec.encode(possibleTxs[i]));
+            positions.putIfAbsent(possibleTxs[i], i);
+        }
+        out.writeInt(accepted.length);
+        for (Transaction tx : accepted) {
+            out.writeInt(positions.get(tx));
+        }
+        out.flush();
+    }
+
+    /** Appends the submit of {@code tx}, which arrived {@code arrival} nanoseconds into the recording */
+    void recordSubmit(long arrival, Transaction tx, boolean accepted) throws IOException {
+        checkStarted();
+        out.writeByte(SUBMIT);
+        out.writeLong(arrival);
+        out.write(TransactionCodec.encode(tx));
+        out.writeBoolean(accepted);
+        out.flush();
+    }
+
+    /**
+     * Appends a rollback undoing the last {@code epochs} epochs. The count, not the epoch id, is
+     * recorded, as a replayed handler numbers its epochs from the start of the recording.
+     */
+    void recordRollback(long epochs) throws IOException {
+        checkStarted();
+        out.writeByte(ROLLBACK);
+        out.writeLong(epochs);
+        out.flush();
+    }
+
+    /** Appends a change of the undo depth to {@code undoDepth} */
+    void recordUndoDepth(int undoDepth) throws IOException {
+        checkStarted();
+        out.writeByte(UNDO_DEPTH);
+        out.writeInt(undoDepth);
+        out.flush();
+    }
+
+    private void checkStarted() {
+        if (!started) {
+            throw new IllegalStateException("Recording has not started");
+        }
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,334 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * Replays a recording written by an {@link EpochRecorder} against any TxHandler, to measure it and
+ * to check that it accepts the same transactions as the handler that was recorded.
+ * <p>
+ * The handler is built from the recorded starting pool by a factory, so the replay can run against
+ * another kind of pool or another handler configuration. The recorded calls are made on it in order:
+ * handleTxs for each epoch, submit for each transaction submitted, which counts as an epoch of one
+ * transaction here, and rollback and setUndoDepth as recorded. Each epoch is decoded before its call
+ * and not timed. At speed 0, the default, epochs are handled back to back as fast as the handler
+ * allows. At a positive speed, each epoch is handled no earlier than its recorded arrival divided by
+ * the speed, so 1 replays in real time and 2 twice as fast. A recording cut short by a crash is
+ * replayed up to its last complete entry.
+ * <p>
+ * The report holds two latency histograms: the duration of each handleTxs call, and the latency of
+ * each transaction, from the arrival of its epoch to the end of the call handling it. When the
+ * handler falls behind a paced replay, the latter includes the time epochs wait for their turn.
+ */
+public class EpochReplay {
+
+    /** What a replay measured */
+    public static class Report {
+        private final LatencyHistogram epochLatency = new LatencyHistogram();
+        private final LatencyHistogram txLatency = new LatencyHistogram();
+        private final List<Integer> mismatchedEpochs = new ArrayList<>();
+        private long transactions;
+        private long accepted;
+        private long busyNanos;
+        private long elapsedNanos;
+
+        /** @return the duration of each handleTxs call, in nanoseconds */
+        public LatencyHistogram getEpochLatency() {
+            return epochLatency;
+        }
+
+        /** @return the latency of each transaction, in nanoseconds */
+        public LatencyHistogram getTxLatency() {
+            return txLatency;
+        }
+
+        public long getEpochs() {
+            return epochLatency.getCount();
+        }
+
+        public long getTransactions() {
+            return transactions;
+        }
+
+        public long getAccepted() {
+            return accepted;
+        }
+
+        /** @return the transactions handled per second of handleTxs calls, leaving out decoding and pacing */
+        public double getThroughput() {
+            return busyNanos == 0 ? 0 : transactions * 1e9 / busyNanos;
+        }
+
+        /** @return the wall clock duration of the replay, in nanoseconds */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * @return the epochs, numbered from 1 in recording order, whose accepted transactions differ
+         *         from the recording
+         */
+        public List<Integer> getMismatchedEpochs() {
+            return mismatchedEpochs;
+        }
+
+        /** @return true if every epoch accepted the same transactions as in the recording */
+        public boolean isMatching() {
+            return mismatchedEpochs.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d epochs, %d transactions, %d accepted, %.0f tx/s in %.3f s%n"
+                            + "epoch latency us: p50 %.1f  p99 %.1f  p999 %.1f  max %.1f%n"
+                            + "tx latency us:    p50 %.1f  p99 %.1f  p999 %.1f  max %.1f%n"
+                            + "%s",
+                    getEpochs(), transactions, accepted, getThroughput(), elapsedNanos / 1e9,
+                    micros(epochLatency, .5), micros(epochLatency, .99), micros(epochLatency, .999),
+                    epochLatency.getMax() / 1e3,
+                    micros(txLatency, .5), micros(txLatency, .99), micros(txLatency, .999),
+                    txLatency.getMax() / 1e3,
+                    isMatching() ? "accepted sets match the recording"
+                            : mismatchedEpochs.size() + " epochs differ from the recording, first " + mismatchedEpochs.get(0));
+        }
+
+        /* Adds an epoch of transactions scheduled at scheduled and handled from begin to end */
+        private void add(int epochNumber, long scheduled, long begin, long end, int transactions, int accepted,
+                         boolean matching) {
+            epochLatency.record(end - begin);
+            txLatency.record(Math.max(0, end - scheduled), transactions);
+            busyNanos += end - begin;
+            this.transactions += transactions;
+            this.accepted += accepted;
+            if (!matching) {
+                mismatchedEpochs.add(epochNumber);
+            }
+        }
+
+        private static double micros(LatencyHistogram histogram, double quantile) {
+            return histogram.getValueAtQuantile(quantile) / 1e3;
+        }
+    }
+
+    private final Path recording;
+    private double speed;
+
+    /** Creates a replay of the recording in {@code recording} */
+    public EpochReplay(Path recording) {
+        this.recording = recording;
+    }
+
+    /**
+     * Paces the replay at {@code speed} times the recorded arrival rate, or as fast as possible for 0
+     *
+     * @return this replay
+     */
+    public EpochReplay setSpeed(double speed) {
+        if (!(speed >= 0) || Double.isInfinite(speed)) {
+            throw new IllegalArgumentException("Speed must be a finite number, not negative: " + speed);
+        }
+        this.speed = speed;
+        return this;
+    }
+
+    /**
+     * Replays every epoch of the recording against the handler {@code handlerFactory} builds from the
+     * recorded starting pool
+     *
+     * @throws IllegalArgumentException if the file is not a recording, or one of its records is malformed
+     */
+    public Report run(Function<UTXOPool, TxHandler> handlerFactory) throws IOException {
+        Report report = new Report();
+        HashMap<ByteBuffer, PublicKey> addresses = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(recording)))) {
+            int format = in.readInt() == EpochRecorder.MAGIC ? in.readInt() : -1;
+            if (format != 1 && format != EpochRecorder.FORMAT) {
+                throw new IllegalArgumentException("Not an epoch recording: " + recording);
+            }
+            TxHandler txHandler = handlerFactory.apply(readPool(in, addresses));
+            long start = System.nanoTime();
+            int epochNumber = 0;
+            while (true) {
+                // entries of the first format are all epochs, without a kind
+                int kind = format == 1 ? EpochRecorder.EPOCH : in.read();
+                if (kind < 0) {
+                    break;
+                }
+                if (kind != EpochRecorder.EPOCH && kind != EpochRecorder.SUBMIT
+                        && kind != EpochRecorder.ROLLBACK && kind != EpochRecorder.UNDO_DEPTH) {
+                    throw new IllegalArgumentException("Unknown entry " + kind + " in recording " + recording);
+                }
+                // the whole entry is read before its call, so one cut short by a crash is not replayed
+                long arrival = 0;
+                long undone = 0;
+                int undoDepth = 0;
+                Transaction[] epoch = null;
+                int[] recorded = null;
+                boolean submitted = false;
+                try {
+                    if (kind == EpochRecorder.ROLLBACK) {
+                        undone = in.readLong();
+                    } else if (kind == EpochRecorder.UNDO_DEPTH) {
+                        undoDepth = in.readInt();
+                    } else if (kind == EpochRecorder.SUBMIT) {
+                        arrival = in.readLong();
+                        epoch = new Transaction[]{readTransaction(in, addresses)};
+                        submitted = in.readBoolean();
+                    } else {
+                        arrival = in.readLong();
+                        epoch = new Transaction[in.readInt()];
+                        for (int i = 0; i < epoch.length; i++) {
+                            epoch[i] = readTransaction(in, addresses);
+                        }
+                        recorded = new int[in.readInt()];
+                        for (int i = 0; i < recorded.length; i++) {
+                            recorded[i] = in.readInt();
+                        }
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+
+                if (kind == EpochRecorder.ROLLBACK) {
+                    txHandler.rollback(txHandler.getEpoch() - undone + 1);
+                    continue;
+                }
+                if (kind == EpochRecorder.UNDO_DEPTH) {
+                    txHandler.setUndoDepth(undoDepth);
+                    continue;
+                }
+                epochNumber++;
+                long scheduled = schedule(start, arrival);
+                long begin = System.nanoTime();
+                if (kind == EpochRecorder.SUBMIT) {
+                    boolean accepted = txHandler.submit(epoch[0]).isValid();
+                    long end = System.nanoTime();
+                    report.add(epochNumber, scheduled, begin, end, 1, accepted ? 1 : 0, accepted == submitted);
+                } else {
+                    Transaction[] accepted = txHandler.handleTxs(epoch);
+                    long end = System.nanoTime();
+                    report.add(epochNumber, scheduled, begin, end, epoch.length, accepted.length,
+                            Arrays.equals(recorded, positions(epoch, accepted)));
+                }
+            }
+            report.elapsedNanos = System.nanoTime() - start;
+        }
+        return report;
+    }
+
+    /*
+     * Waits, at a positive speed, until the time an entry that arrived arrival nanoseconds into the
+     * recording is due, and returns that time, or now when the replay is not paced
+     */
+    private long schedule(long start, long arrival) {
+        long scheduled = System.nanoTime();
+        if (speed > 0) {
+            scheduled = start + (long) (arrival / speed);
+            for (long wait = scheduled - System.nanoTime(); wait > 0; wait = scheduled - System.nanoTime()) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+        return scheduled;
+    }
+
+    /* @return the position in epoch of each accepted transaction, in accepted order */
+    private static int[] positions(Transaction[] epoch, Transaction[] accepted) {
+        IdentityHashMap<Transaction, Integer> positions = new IdentityHashMap<>();
+        for (int i = 0; i < epoch.length; i++) {
+            positions.put(epoch[i], i);
+        }
+        int[] result = new int[accepted.length];
+        for (int i = 0; i < accepted.length; i++) {
+            Integer position = positions.get(accepted[i]);
+            result[i] = position == null ? -1 : position;
+        }
+        return result;
+    }
+
+    private static UTXOPool readPool(DataInputStream in, HashMap<ByteBuffer, PublicKey> addresses) throws IOException {
+        UTXOPool utxoPool = new UTXOPool();
+        // outputs are created through an enclosing Transaction, as in the other pools
+        Transaction outputs = new Transaction();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            byte[] txHash = readBytes(in);
+            int index = in.readInt();
+            Transaction.Output output = null;
+            if (in.readByte() != 0) {
+                double value = in.readDouble();
+                output = outputs.new Output(value, readAddress(readBytes(in), addresses));
+            }
+            utxoPool.addUTXO(new UTXO(txHash, index), output);
+        }
+        return utxoPool;
+    }
+
+    private static Transaction readTransaction(DataInputStream in, HashMap<ByteBuffer, PublicKey> addresses) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IllegalArgumentException("Malformed record length " + length);
+        }
+        byte[] record = new byte[Integer.BYTES + length];
+        ByteBuffer.wrap(record).putInt(length);
+        in.readFully(record, Integer.BYTES, length);
+        return TransactionCodec.decode(ByteBuffer.wrap(record)).toRecordedTransaction(addresses);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /* Decodes an address, or takes it from addresses if it was decoded before */
+    private static PublicKey readAddress(byte[] encoded, HashMap<ByteBuffer, PublicKey> addresses) {
+        if (encoded == null) {
+            return null;
+        }
+        PublicKey address = addresses.get(ByteBuffer.wrap(encoded));
+        if (address == null) {
+            try {
+                address = TransactionCodec.decodeAddress(encoded);
+            } catch (InvalidKeySpecException e) {
+                throw new IllegalArgumentException("Malformed address in the recorded pool", e);
+            }
+            addresses.put(ByteBuffer.wrap(encoded), address);
+        }
+        return address;
+    }
+
+    /**
+     * Replays the recording named by the first argument against a default TxHandler, at the speed
+     * given as second argument if any, and prints the report
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("usage: EpochReplay <recording> [speed]");
+            System.exit(2);
+        }
+        EpochReplay replay = new EpochReplay(Paths.get(args[0]));
+        if (args.length == 2) {
+            replay.setSpeed(Double.parseDouble(args[1]));
+        }
+        Report report = replay.run(TxHandler::new);
+        System.out.println(report);
+        System.exit(report.isMatching() ? 0 : 1);
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * A histogram of latencies in nanoseconds, in buckets of fixed relative width, so percentiles are
+ * exact to within 1/16 of the value whatever its magnitude and memory stays a few kilobytes.
+ * <p>
+ * Values below 16 have a bucket each. Above, every power of two is split in 16 buckets, indexed
+ * by the position of the highest set bit and the 4 bits below it. A percentile is reported as the
+ * largest value of its bucket, never above the largest value recorded.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[(Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+    private long count;
+    private long sum;
+    private long max;
+
+    /** Records {@code value} once */
+    public void record(long value) {
+        record(value, 1);
+    }
+
+    /** Records {@code value} {@code times} times */
+    public void record(long value, long times) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Latency must not be negative: " + value);
+        }
+        counts[bucketOf(value)] += times;
+        count += times;
+        sum += value * times;
+        max = Math.max(max, value);
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /* @return the largest value falling in bucket */
+    private static long highestIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        long lowest = (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        return lowest + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * @return the smallest recorded value that at least {@code quantile} of the values do not
+     *         exceed, to within the bucket width, or 0 if nothing was recorded
+     * @throws IllegalArgumentException if {@code quantile} is not between 0 and 1
+     */
+    public long getValueAtQuantile(double quantile) {
+        if (!(quantile >= 0 && quantile <= 1)) {
+            throw new IllegalArgumentException("Quantile out of range: " + quantile);
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                return Math.min(highestIn(bucket), max);
+            }
+        }
+        return 0;
+    }
+
+    /** @return a histogram holding the same values as this one, which later records do not change */
+    public LatencyHistogram copy() {
+        LatencyHistogram copy = new LatencyHistogram();
+        System.arraycopy(counts, 0, copy.counts, 0, counts.length);
+        copy.count = count;
+        copy.sum = sum;
+        copy.max = max;
+        return copy;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    /** @return the mean of the recorded values, or 0 if nothing was recorded */
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+}
@@ -0,0 +1,418 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A UTXOPool queried in place from a memory-mapped snapshot file, so a process can start
+ * validating against a large pool without first loading every UTXO onto the heap.
+ * <p>
+ * {@link #export(UTXOPool, Path)} writes the UTXOs of a pool sorted by {@link UTXO#compareTo(UTXO)},
+ * and {@link #open(Path)} maps such a file. All integers are big-endian:
+ * <pre>
+ *   int     magic
+ *   int     number of UTXOs, then number of addresses
+ *   int[]   offset of each UTXO record, in UTXO order
+ *   int[]   offset of each address
+ *   UTXO records:  int index, bytes txHash, double value,
+ *                  int address id (-1 for a null address, -2 for a null output)
+ *   addresses:     bytes (X.509 encoding of the RSA public key)
+ * </pre>
+ * where {@code bytes} is an int length followed by that many bytes, and each distinct address is
+ * stored once. Records vary in length with their transaction hash, so the offset table is the index
+ * of the file: a lookup binary searches it, comparing the key to the records in the mapping, and
+ * touches about log2(n) pages while they are cold.
+ * <p>
+ * Changes and the outputs found in the file are kept on the heap in front of it: the first
+ * getTxOutput of a UTXO promotes its output, so later lookups of the hot set are hash lookups and
+ * return the same object. The file itself is never written to. Like UTXOPool, an instance must not
+ * be used concurrently while it is modified, and since lookups promote outputs, none of its methods
+ * may run concurrently. Copies share the mapping and copy only the changes and promoted outputs.
+ * The file is not checksummed; the mapping is released when the pool is garbage collected.
+ * <p>
+ * Removed UTXOs of the file stay on the heap as tombstones, and promoted outputs stay there too, so
+ * {@link #heapSize()} only grows while the pool is in use. {@link #compact(Path)} writes the pool to
+ * a new file and maps it with nothing on the heap; a long-running process calls it when the heap
+ * part grows too large, say to a tenth of {@link #size()}.
+ * <p>
+ * Offsets are ints and a file is mapped in one piece, so a file cannot exceed 2 GB. A UTXO with a
+ * 32-byte hash takes 56 bytes, its offset included, which bounds a file at about 38 million UTXOs,
+ * fewer as distinct addresses of about 300 bytes each are added. {@link #export(UTXOPool, Path)}
+ * throws an IOException rather than write a larger file.
+ */
+public class MappedUTXOPool extends UTXOPool {
+
+    private static final int MAGIC = 0x5554584d;
+    private static final int NULL_ADDRESS = -1;
+    private static final int NULL_OUTPUT_REF = -2;
+
+    private static final int INT_SIZE = Integer.SIZE / 8;
+    private static final int DOUBLE_SIZE = Double.SIZE / 8;
+    private static final int HEADER_SIZE = 3 * INT_SIZE;
+
+    /** Transaction.Output is an inner class, so the outputs read from the file need an enclosing transaction */
+    private static final Transaction OUTPUTS = new Transaction();
+
+    /** HashMap values that stand for a null output and for a UTXO of the file that was removed */
+    private static final Transaction.Output NULL_OUTPUT = OUTPUTS.new Output(0, null);
+    private static final Transaction.Output SPENT = OUTPUTS.new Output(0, null);
+
+    private final ByteBuffer file;
+    private final int count;
+    private final int addressCount;
+
+    /** Addresses of the file, each decoded when first needed and shared by all copies */
+    private final PublicKey[] addresses;
+
+    /** Outputs added or promoted since the file was opened, and SPENT for UTXOs of the file removed */
+    private final HashMap<UTXO, Transaction.Output> overlay;
+    private int size;
+
+    private MappedUTXOPool(ByteBuffer file, int count, int addressCount) {
+        this.file = file;
+        this.count = count;
+        this.addressCount = addressCount;
+        this.addresses = new PublicKey[addressCount];
+        this.overlay = new HashMap<>();
+        this.size = count;
+    }
+
+    /** Creates a new pool that is a copy of {@code uPool}, sharing its mapping */
+    public MappedUTXOPool(MappedUTXOPool uPool) {
+        file = uPool.file;
+        count = uPool.count;
+        addressCount = uPool.addressCount;
+        addresses = uPool.addresses;
+        overlay = new HashMap<>(uPool.overlay);
+        size = uPool.size;
+    }
+
+    /**
+     * Writes the UTXOs of {@code pool} to {@code path} in the format {@link #open(Path)} maps. The
+     * file is written next to {@code path} and renamed over it, so readers never see half of it.
+     *
+     * @throws IOException if the file cannot be written, or if it would be too large to map
+     */
+    public static void export(UTXOPool pool, Path path) throws IOException {
+        ArrayList<UTXO> utxos = pool.getAllUTXO();
+        Collections.sort(utxos);
+
+        HashMap<PublicKey, Integer> addressIds = new HashMap<>();
+        ArrayList<PublicKey> addressList = new ArrayList<>();
+        int[] addressRefs = new int[utxos.size()];
+        for (int i = 0; i < addressRefs.length; i++) {
+            Transaction.Output output = outputOf(pool, utxos.get(i));
+            if (output == null || output.address == null) {
+                addressRefs[i] = output == null ? NULL_OUTPUT_REF : NULL_ADDRESS;
+                continue;
+            }
+            PublicKey address = output.address;
+            Integer id = addressIds.get(address);
+            if (id == null) {
+                id = addressList.size();
+                addressIds.put(address, id);
+                addressList.add(address);
+            }
+            addressRefs[i] = id;
+        }
+        byte[][] encodings = new byte[addressList.size()][];
+        for (int i = 0; i < encodings.length; i++) {
+            encodings[i] = addressList.get(i).getEncoded();
+        }
+
+        long offset = HEADER_SIZE + (long) (utxos.size() + encodings.length) * INT_SIZE;
+        int[] recordOffsets = new int[utxos.size()];
+        for (int i = 0; i < recordOffsets.length; i++) {
+            recordOffsets[i] = checkOffset(offset);
+            offset += 2 * INT_SIZE + utxos.get(i).getTxHash().length + DOUBLE_SIZE + INT_SIZE;
+        }
+        int[] addressOffsets = new int[encodings.length];
+        for (int i = 0; i < addressOffsets.length; i++) {
+            addressOffsets[i] = checkOffset(offset);
+            offset += INT_SIZE + encodings[i].length;
+        }
+        checkOffset(offset);
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(utxos.size());
+            out.writeInt(encodings.length);
+            for (int recordOffset : recordOffsets) {
+                out.writeInt(recordOffset);
+            }
+            for (int addressOffset : addressOffsets) {
+                out.writeInt(addressOffset);
+            }
+            for (int i = 0; i < recordOffsets.length; i++) {
+                UTXO ut = utxos.get(i);
+                Transaction.Output output = outputOf(pool, ut);
+                out.writeInt(ut.getIndex());
+                out.writeInt(ut.getTxHash().length);
+                out.write(ut.getTxHash());
+                out.writeDouble(output == null ? 0 : output.value);
+                out.writeInt(addressRefs[i]);
+            }
+            for (byte[] encoding : encodings) {
+                out.writeInt(encoding.length);
+                out.write(encoding);
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /* Looks ut up without promoting it, so exporting a mapped pool does not load it onto the heap */
+    private static Transaction.Output outputOf(UTXOPool pool, UTXO ut) {
+        return pool instanceof MappedUTXOPool ? ((MappedUTXOPool) pool).peekOutput(ut) : pool.getTxOutput(ut);
+    }
+
+    /**
+     * Maps a file written by {@link #export(UTXOPool, Path)}. Only the header is read; UTXOs are read
+     * from the mapping as they are looked up.
+     *
+     * @throws IOException if the file cannot be mapped or is not a UTXO snapshot
+     */
+    public static MappedUTXOPool open(Path path) throws IOException {
+        ByteBuffer file;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("UTXO snapshot too large to map: " + channel.size() + " bytes");
+            }
+            file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (file.limit() < HEADER_SIZE || file.getInt(0) != MAGIC) {
+            throw new IOException("Not a UTXO snapshot: " + path);
+        }
+        int count = file.getInt(INT_SIZE);
+        int addressCount = file.getInt(2 * INT_SIZE);
+        if (count < 0 || addressCount < 0
+                || HEADER_SIZE + ((long) count + addressCount) * INT_SIZE > file.limit()) {
+            throw new IOException("Invalid UTXO snapshot header: " + path);
+        }
+        return new MappedUTXOPool(file, count, addressCount);
+    }
+
+    /**
+     * Exports this pool to {@code path} and maps the file, leaving its tombstones and promoted outputs
+     * behind. This pool is left unchanged, and {@code path} may be the file it maps, which keeps its
+     * mapping where the platform allows the file to be replaced.
+     *
+     * @return a pool of the same UTXOs with nothing on the heap
+     * @throws IOException if the file cannot be written or mapped, or if it would be too large to map
+     */
+    public MappedUTXOPool compact(Path path) throws IOException {
+        export(this, path);
+        return open(path);
+    }
+
+    @Override
+    public MappedUTXOPool copy() {
+        return new MappedUTXOPool(this);
+    }
+
+    /** @return the number of UTXOs in the pool */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /** @return the number of outputs kept on the heap, the changes and the promoted outputs */
+    public int heapSize() {
+        return overlay.size();
+    }
+
+    @Override
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        Transaction.Output previous = overlay.put(utxo, txOut == null ? NULL_OUTPUT : txOut);
+        if (previous == SPENT || previous == null && search(utxo.getTxHash(), utxo.getIndex()) < 0) {
+            size++;
+        }
+    }
+
+    @Override
+    public void removeUTXO(UTXO utxo) {
+        removeUTXO(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    @Override
+    public void removeUTXO(byte[] txHash, int index) {
+        if (txHash == null) {
+            return;
+        }
+        UTXO probe = UTXO.probe(txHash, index);
+        Transaction.Output stored = overlay.get(probe);
+        if (stored == SPENT) {
+            return;
+        }
+        if (search(txHash, index) >= 0) {
+            // the key stays in the overlay, so it cannot share the caller's array like the probe
+            overlay.put(new UTXO(txHash, index), SPENT);
+            size--;
+        } else if (stored != null) {
+            overlay.remove(probe);
+            size--;
+        }
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(UTXO ut) {
+        return getTxOutput(ut.getTxHash(), ut.getIndex());
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        if (txHash == null) {
+            return null;
+        }
+        Transaction.Output stored = overlay.get(UTXO.probe(txHash, index));
+        if (stored == null) {
+            int record = search(txHash, index);
+            if (record < 0) {
+                return null;
+            }
+            stored = readOutput(recordOffset(record) + 2 * INT_SIZE + txHash.length);
+            if (stored == null) {
+                stored = NULL_OUTPUT;
+            }
+            overlay.put(new UTXO(txHash, index), stored);
+        }
+        return stored == NULL_OUTPUT || stored == SPENT ? null : stored;
+    }
+
+    /* @return the output of ut, which is in the pool, read from the file without promoting it */
+    private Transaction.Output peekOutput(UTXO ut) {
+        Transaction.Output stored = overlay.get(ut);
+        if (stored == null) {
+            int record = search(ut.getTxHash(), ut.getIndex());
+            return record < 0 ? null : readOutput(recordOffset(record) + 2 * INT_SIZE + ut.getTxHash().length);
+        }
+        return stored == NULL_OUTPUT || stored == SPENT ? null : stored;
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        return contains(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    @Override
+    public boolean contains(byte[] txHash, int index) {
+        if (txHash == null) {
+            return false;
+        }
+        Transaction.Output stored = overlay.get(UTXO.probe(txHash, index));
+        return stored == null ? search(txHash, index) >= 0 : stored != SPENT;
+    }
+
+    @Override
+    public ArrayList<UTXO> getAllUTXO() {
+        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>(size);
+        for (int record = 0; record < count; record++) {
+            int offset = recordOffset(record);
+            byte[] txHash = new byte[file.getInt(offset + INT_SIZE)];
+            for (int i = 0; i < txHash.length; i++) {
+                txHash[i] = file.get(offset + 2 * INT_SIZE + i);
+            }
+            UTXO ut = new UTXO(txHash, file.getInt(offset));
+            if (overlay.get(ut) != SPENT) {
+                allUTXO.add(ut);
+            }
+        }
+        for (Map.Entry<UTXO, Transaction.Output> entry : overlay.entrySet()) {
+            UTXO ut = entry.getKey();
+            if (entry.getValue() != SPENT && search(ut.getTxHash(), ut.getIndex()) < 0) {
+                allUTXO.add(ut);
+            }
+        }
+        return allUTXO;
+    }
+
+    /* @return the record of the UTXO (txHash, index) in the file, or -1 if the file does not hold it */
+    private int search(byte[] txHash, int index) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareRecord(recordOffset(mid), txHash, index);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /* Compares the record at offset to the UTXO (txHash, index) in the order of UTXO.compareTo */
+    private int compareRecord(int offset, byte[] txHash, int index) {
+        int recordIndex = file.getInt(offset);
+        if (recordIndex != index) {
+            return recordIndex < index ? -1 : 1;
+        }
+        int length = file.getInt(offset + INT_SIZE);
+        if (length != txHash.length) {
+            return length < txHash.length ? -1 : 1;
+        }
+        for (int i = 0; i < length; i++) {
+            byte b = file.get(offset + 2 * INT_SIZE + i);
+            if (b != txHash[i]) {
+                return b < txHash[i] ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    private int recordOffset(int record) {
+        return file.getInt(HEADER_SIZE + record * INT_SIZE);
+    }
+
+    /* @return the output stored at offset, which may be null */
+    private Transaction.Output readOutput(int offset) {
+        double value = file.getDouble(offset);
+        int id = file.getInt(offset + DOUBLE_SIZE);
+        if (id == NULL_OUTPUT_REF) {
+            return null;
+        }
+        return OUTPUTS.new Output(value, id == NULL_ADDRESS ? null : address(id));
+    }
+
+    private PublicKey address(int id) {
+        if (id < 0 || id >= addressCount) {
+            throw new IllegalStateException("Invalid address id " + id + " in UTXO snapshot");
+        }
+        PublicKey address = addresses[id];
+        if (address == null) {
+            int offset = file.getInt(HEADER_SIZE + (count + id) * INT_SIZE);
+            byte[] encoded = new byte[file.getInt(offset)];
+            for (int i = 0; i < encoded.length; i++) {
+                encoded[i] = file.get(offset + INT_SIZE + i);
+            }
+            try {
+                address = TransactionCodec.decodeAddress(encoded);
+            } catch (InvalidKeySpecException e) {
+                throw new IllegalStateException("Invalid address " + id + " in UTXO snapshot", e);
+            }
+            addresses[id] = address;
+        }
+        return address;
+    }
+
+    private static int checkOffset(long offset) throws IOException {
+        if (offset > Integer.MAX_VALUE) {
+            throw new IOException("UTXO snapshot too large to map: over " + offset + " bytes");
+        }
+        return (int) offset;
+    }
+}
@@ -0,0 +1,194 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * Accepts transactions one at a time as they arrive, instead of in whole epochs, through
+ * {@link TxHandler#submit(Transaction)}.
+ * <p>
+ * A transaction claiming an output that is not in the pool yet may be waiting for its parent, so
+ * it is kept as an orphan, indexed by the hash of the transaction it is missing. When a transaction
+ * is accepted, only the orphans waiting for its hash are submitted again, so the work is
+ * proportional to its children rather than to the orphan pool. An orphan missing several parents
+ * waits for them one after another. Orphans are dropped, oldest first, once there are more than
+ * {@code maxOrphans} of them or once they have waited longer than {@code maxOrphanAgeMillis}.
+ * <p>
+ * Only transactions submitted through the mempool wake orphans: parents accepted by
+ * {@link TxHandler#handleTxs(Transaction[])} directly do not. An instance must not be used by
+ * several threads at once.
+ */
+public class Mempool {
+
+    /**
+     * A transaction waiting for the transaction whose hash is {@code parent}, or, with a null
+     * parent, a transaction being submitted
+     */
+    private static class Orphan {
+        private final Transaction tx;
+        private final ByteBuffer parent;
+        private final long arrival;
+
+        Orphan(Transaction tx, ByteBuffer parent, long arrival) {
+            this.tx = tx;
+            this.parent = parent;
+            this.arrival = arrival;
+        }
+    }
+
+    private final TxHandler txHandler;
+    private final int maxOrphans;
+    private final long maxOrphanAgeNanos;
+    private final LongSupplier clock;
+
+    /** Orphans by their own hash, in arrival order */
+    private final LinkedHashMap<ByteBuffer, Orphan> orphans;
+
+    /** Orphans by the hash of the parent they wait for */
+    private final HashMap<ByteBuffer, ArrayList<Orphan>> waiting;
+
+    /**
+     * Creates an empty mempool accepting transactions into {@code txHandler}, keeping at most
+     * {@code maxOrphans} orphans for at most {@code maxOrphanAgeMillis} each
+     */
+    public Mempool(TxHandler txHandler, int maxOrphans, long maxOrphanAgeMillis) {
+        this(txHandler, maxOrphans, maxOrphanAgeMillis, System::nanoTime);
+    }
+
+    /** As the public constructor, reading the time in nanoseconds from {@code clock} */
+    Mempool(TxHandler txHandler, int maxOrphans, long maxOrphanAgeMillis, LongSupplier clock) {
+        if (maxOrphans < 0) {
+            throw new IllegalArgumentException("Orphan limit must not be negative: " + maxOrphans);
+        }
+        if (maxOrphanAgeMillis < 0) {
+            throw new IllegalArgumentException("Orphan age must not be negative: " + maxOrphanAgeMillis);
+        }
+        this.txHandler = txHandler;
+        this.maxOrphans = maxOrphans;
+        this.maxOrphanAgeNanos = maxOrphanAgeMillis * 1000000L;
+        this.clock = clock;
+        this.orphans = new LinkedHashMap<>();
+        this.waiting = new HashMap<>();
+    }
+
+    /**
+     * Submits {@code tx} to the handler. If it is accepted, the orphans waiting for it are submitted
+     * again, and so on down the chain of their children. If it claims an output that is not in the
+     * pool, it is kept as an orphan until the transaction it claims from is accepted.
+     *
+     * @return the transactions accepted by this call in the order they were accepted, {@code tx}
+     *         first if it was; empty if {@code tx} was rejected or kept as an orphan
+     */
+    public List<Transaction> submit(Transaction tx) {
+        long now = clock.getAsLong();
+        evictExpired(now);
+        List<Transaction> accepted = new ArrayList<>();
+        // a woken orphan keeps its entry, and so its arrival and its place in orphans, until settled
+        ArrayDeque<Orphan> pending = new ArrayDeque<>();
+        pending.add(new Orphan(tx, null, now));
+        while (!pending.isEmpty()) {
+            Orphan next = pending.removeFirst();
+            ValidationResult result = txHandler.submit(next.tx);
+            if (result.getReason() == ValidationResult.Reason.MISSING_INPUT) {
+                byte[] parentHash = next.tx.getInput(result.getIndex()).prevTxHash;
+                if (next.parent == null) {
+                    addOrphan(next.tx, parentHash, now);
+                } else {
+                    reorphan(next, parentHash);
+                }
+                continue;
+            }
+            if (next.parent != null) {
+                orphans.remove(ByteBuffer.wrap(next.tx.getHash()));
+            }
+            if (result.isValid()) {
+                accepted.add(next.tx);
+                ArrayList<Orphan> children = next.tx.getHash() == null ? null : waiting.remove(ByteBuffer.wrap(next.tx.getHash()));
+                if (children != null) {
+                    pending.addAll(children);
+                }
+            }
+        }
+        return accepted;
+    }
+
+    /** @return the number of orphans waiting for a parent */
+    public int getOrphanCount() {
+        return orphans.size();
+    }
+
+    /** @return true if the transaction with hash {@code txHash} is waiting for a parent */
+    public boolean isOrphan(byte[] txHash) {
+        return orphans.containsKey(ByteBuffer.wrap(txHash));
+    }
+
+    private void addOrphan(Transaction tx, byte[] parentHash, long now) {
+        if (maxOrphans == 0 || tx.getHash() == null) {
+            return;
+        }
+        ByteBuffer hash = ByteBuffer.wrap(tx.getHash());
+        if (orphans.containsKey(hash)) {
+            return;
+        }
+        Orphan orphan = new Orphan(tx, ByteBuffer.wrap(parentHash), now);
+        orphans.put(hash, orphan);
+        index(orphan);
+        if (orphans.size() > maxOrphans) {
+            Iterator<Orphan> oldest = orphans.values().iterator();
+            unindex(oldest.next());
+            oldest.remove();
+        }
+    }
+
+    /*
+     * Makes woken orphan wait for the parent whose hash is parentHash, keeping its arrival and its
+     * place in orphans, unless it was evicted while it was being submitted again
+     */
+    private void reorphan(Orphan woken, byte[] parentHash) {
+        ByteBuffer hash = ByteBuffer.wrap(woken.tx.getHash());
+        if (!orphans.containsKey(hash)) {
+            return;
+        }
+        Orphan orphan = new Orphan(woken.tx, ByteBuffer.wrap(parentHash), woken.arrival);
+        orphans.put(hash, orphan);
+        index(orphan);
+    }
+
+    /* Adds orphan to the orphans waiting for its parent */
+    private void index(Orphan orphan) {
+        ArrayList<Orphan> children = waiting.get(orphan.parent);
+        if (children == null) {
+            children = new ArrayList<>(1);
+            waiting.put(orphan.parent, children);
+        }
+        children.add(orphan);
+    }
+
+    /* Drops the orphans that have waited too long, which are the oldest ones since arrival order is kept */
+    private void evictExpired(long now) {
+        Iterator<Orphan> oldest = orphans.values().iterator();
+        while (oldest.hasNext()) {
+            Orphan orphan = oldest.next();
+            if (now - orphan.arrival <= maxOrphanAgeNanos) {
+                return;
+            }
+            unindex(orphan);
+            oldest.remove();
+        }
+    }
+
+    /* Removes orphan from the orphans waiting for its parent, if it is not woken already */
+    private void unindex(Orphan orphan) {
+        ArrayList<Orphan> children = waiting.get(orphan.parent);
+        if (children == null || !children.remove(orphan)) {
+            return;
+        }
+        if (children.isEmpty()) {
+            waiting.remove(orphan.parent);
+        }
+    }
+}
@@ -0,0 +1,356 @@
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A UTXOPool keeping its UTXOs in open-addressed tables outside the Java heap, for pools too large
+ * for one object per UTXO. Each UTXO whose transaction hash has the usual SHA-256 length takes one
+ * 48 byte slot:
+ * <pre>
+ *   bytes  0-31  transaction hash
+ *   bytes 32-35  output index
+ *   bytes 36-39  address reference: 0 for a free slot, 1 for a null address, else 2 + address id
+ *   bytes 40-47  output value
+ * </pre>
+ * Slots are found by linear probing from a position derived from the outpoint, and freed by
+ * shifting the rest of their run back, so removals leave no tombstones. The table doubles when it
+ * is three quarters full. UTXOs with hashes of any other length, such as the made up root hashes of
+ * tests, are kept in an ordinary pool alongside.
+ * <p>
+ * Addresses stay on the heap: each distinct public key is stored once and slots refer to it by id.
+ * Ids are never released, so a pool cycling through many short-lived addresses keeps all of them.
+ * <p>
+ * getTxOutput returns a new Transaction.Output with the stored value and address each time, not
+ * the object that was added. Like UTXOPool, an instance must not be modified concurrently, and the
+ * lookups by hash and index must not run concurrently either. The off-heap memory is released when
+ * the pool is garbage collected.
+ */
+public class OffHeapUTXOPool extends UTXOPool {
+
+    private static final int HASH_SIZE = 32;
+
+    private static final int INDEX_OFFSET = 32;
+    private static final int REF_OFFSET = 36;
+    private static final int VALUE_OFFSET = 40;
+    private static final int SLOT_SIZE = 48;
+
+    private static final int FREE = 0;
+    private static final int NULL_ADDRESS = 1;
+    private static final int FIRST_ADDRESS = 2;
+
+    /** Slots per table segment, so no single direct buffer has to hold the whole table */
+    private static final int SEGMENT_BITS = 16;
+    private static final int SEGMENT_MASK = (1 << SEGMENT_BITS) - 1;
+    private static final int MIN_CAPACITY = 16;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    /** Transaction.Output is an inner class, so the outputs handed out need an enclosing transaction */
+    private static final Transaction OUTPUTS = new Transaction();
+
+    private ByteBuffer[] segments;
+    private int mask;
+    private int size;
+
+    private final HashMap<PublicKey, Integer> addressIds;
+    private final ArrayList<PublicKey> addresses;
+
+    /** UTXOs whose transaction hash is not HASH_SIZE bytes long */
+    private final UTXOPool others;
+
+    /** Creates a new empty pool */
+    public OffHeapUTXOPool() {
+        this(MIN_CAPACITY);
+    }
+
+    /** Creates a new empty pool with room for {@code expectedSize} UTXOs before its table grows */
+    public OffHeapUTXOPool(int expectedSize) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("Expected size must not be negative: " + expectedSize);
+        }
+        segments = allocate(capacityFor(expectedSize));
+        mask = capacity(segments) - 1;
+        addressIds = new HashMap<>();
+        addresses = new ArrayList<>();
+        others = new UTXOPool();
+    }
+
+    /** Creates a new pool that is a copy of {@code uPool} */
+    public OffHeapUTXOPool(OffHeapUTXOPool uPool) {
+        segments = new ByteBuffer[uPool.segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            ByteBuffer source = uPool.segments[i].duplicate();
+            source.clear();
+            segments[i] = ByteBuffer.allocateDirect(source.capacity()).put(source);
+        }
+        mask = uPool.mask;
+        size = uPool.size;
+        addressIds = new HashMap<>(uPool.addressIds);
+        addresses = new ArrayList<>(uPool.addresses);
+        others = new UTXOPool(uPool.others);
+    }
+
+    @Override
+    public OffHeapUTXOPool copy() {
+        return new OffHeapUTXOPool(this);
+    }
+
+    /** @return the number of UTXOs in the pool */
+    @Override
+    public int size() {
+        return size + others.size();
+    }
+
+    /** @return the number of bytes of the off-heap tables */
+    public long offHeapBytes() {
+        return (long) capacity(segments) * SLOT_SIZE;
+    }
+
+    @Override
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        byte[] txHash = utxo.getTxHash();
+        if (txHash.length != HASH_SIZE) {
+            others.addUTXO(utxo, txOut);
+            return;
+        }
+        int slot = find(txHash, utxo.getIndex());
+        if (slotRef(slot) == FREE) {
+            if (size + 1 > capacity(segments) / 4 * 3) {
+                grow();
+                slot = find(txHash, utxo.getIndex());
+            }
+            ByteBuffer segment = segments[slot >>> SEGMENT_BITS];
+            int offset = (slot & SEGMENT_MASK) * SLOT_SIZE;
+            for (int i = 0; i < HASH_SIZE; i++) {
+                segment.put(offset + i, txHash[i]);
+            }
+            segment.putInt(offset + INDEX_OFFSET, utxo.getIndex());
+            size++;
+        }
+        ByteBuffer segment = segments[slot >>> SEGMENT_BITS];
+        int offset = (slot & SEGMENT_MASK) * SLOT_SIZE;
+        segment.putInt(offset + REF_OFFSET, addressRef(txOut.address));
+        segment.putDouble(offset + VALUE_OFFSET, txOut.value);
+    }
+
+    @Override
+    public void removeUTXO(UTXO utxo) {
+        removeUTXO(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    @Override
+    public void removeUTXO(byte[] txHash, int index) {
+        if (txHash == null) {
+            return;
+        }
+        if (txHash.length != HASH_SIZE) {
+            others.removeUTXO(txHash, index);
+            return;
+        }
+        int slot = find(txHash, index);
+        if (slotRef(slot) != FREE) {
+            free(slot);
+            size--;
+        }
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(UTXO ut) {
+        return getTxOutput(ut.getTxHash(), ut.getIndex());
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        if (txHash == null) {
+            return null;
+        }
+        if (txHash.length != HASH_SIZE) {
+            return others.getTxOutput(txHash, index);
+        }
+        int slot = find(txHash, index);
+        int ref = slotRef(slot);
+        if (ref == FREE) {
+            return null;
+        }
+        double value = segments[slot >>> SEGMENT_BITS].getDouble((slot & SEGMENT_MASK) * SLOT_SIZE + VALUE_OFFSET);
+        PublicKey address = ref == NULL_ADDRESS ? null : addresses.get(ref - FIRST_ADDRESS);
+        return OUTPUTS.new Output(value, address);
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        return contains(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    @Override
+    public boolean contains(byte[] txHash, int index) {
+        if (txHash == null) {
+            return false;
+        }
+        if (txHash.length != HASH_SIZE) {
+            return others.contains(txHash, index);
+        }
+        return slotRef(find(txHash, index)) != FREE;
+    }
+
+    @Override
+    public ArrayList<UTXO> getAllUTXO() {
+        ArrayList<UTXO> allUTXO = others.getAllUTXO();
+        byte[] txHash = new byte[HASH_SIZE];
+        for (int slot = 0; slot <= mask; slot++) {
+            if (slotRef(slot) != FREE) {
+                ByteBuffer segment = segments[slot >>> SEGMENT_BITS];
+                int offset = (slot & SEGMENT_MASK) * SLOT_SIZE;
+                for (int i = 0; i < HASH_SIZE; i++) {
+                    txHash[i] = segment.get(offset + i);
+                }
+                allUTXO.add(new UTXO(txHash, segment.getInt(offset + INDEX_OFFSET)));
+            }
+        }
+        return allUTXO;
+    }
+
+    /* @return the slot holding the outpoint, or the free slot ending its probe sequence */
+    private int find(byte[] txHash, int index) {
+        long h0 = longAt(txHash, 0);
+        long h1 = longAt(txHash, 8);
+        long h2 = longAt(txHash, 16);
+        long h3 = longAt(txHash, 24);
+        int slot = home(h0, index);
+        while (true) {
+            ByteBuffer segment = segments[slot >>> SEGMENT_BITS];
+            int offset = (slot & SEGMENT_MASK) * SLOT_SIZE;
+            if (segment.getInt(offset + REF_OFFSET) == FREE
+                    || (segment.getInt(offset + INDEX_OFFSET) == index
+                    && segment.getLong(offset) == h0 && segment.getLong(offset + 8) == h1
+                    && segment.getLong(offset + 16) == h2 && segment.getLong(offset + 24) == h3)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /* @return the first slot probed for an outpoint, from the first 8 bytes of its hash and its index */
+    private int home(long hashPrefix, int index) {
+        long h = hashPrefix ^ (index * 0x9E3779B97F4A7C15L);
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+
+    private int home(int slot) {
+        ByteBuffer segment = segments[slot >>> SEGMENT_BITS];
+        int offset = (slot & SEGMENT_MASK) * SLOT_SIZE;
+        return home(segment.getLong(offset), segment.getInt(offset + INDEX_OFFSET));
+    }
+
+    /*
+     * Frees slot by moving back every later slot of its run that would no longer be reachable from
+     * its home slot, then clearing the last slot moved.
+     */
+    private void free(int slot) {
+        int hole = slot;
+        int next = hole;
+        while (true) {
+            next = (next + 1) & mask;
+            if (slotRef(next) == FREE) {
+                break;
+            }
+            int home = home(next);
+            // keep next where it is if its home lies cyclically in (hole, next]
+            boolean reachable = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+            if (!reachable) {
+                copySlot(next, hole);
+                hole = next;
+            }
+        }
+        segments[hole >>> SEGMENT_BITS].putInt((hole & SEGMENT_MASK) * SLOT_SIZE + REF_OFFSET, FREE);
+    }
+
+    private void grow() {
+        int capacity = capacity(segments);
+        if (capacity >= MAX_CAPACITY) {
+            throw new IllegalStateException("OffHeapUTXOPool is full with " + size + " UTXOs");
+        }
+        ByteBuffer[] old = segments;
+        int oldMask = mask;
+        segments = allocate(capacity * 2);
+        mask = capacity * 2 - 1;
+        for (int slot = 0; slot <= oldMask; slot++) {
+            ByteBuffer from = old[slot >>> SEGMENT_BITS];
+            int fromOffset = (slot & SEGMENT_MASK) * SLOT_SIZE;
+            if (from.getInt(fromOffset + REF_OFFSET) == FREE) {
+                continue;
+            }
+            int to = home(from.getLong(fromOffset), from.getInt(fromOffset + INDEX_OFFSET));
+            while (slotRef(to) != FREE) {
+                to = (to + 1) & mask;
+            }
+            ByteBuffer segment = segments[to >>> SEGMENT_BITS];
+            int offset = (to & SEGMENT_MASK) * SLOT_SIZE;
+            for (int i = 0; i < SLOT_SIZE; i += 8) {
+                segment.putLong(offset + i, from.getLong(fromOffset + i));
+            }
+        }
+    }
+
+    private void copySlot(int from, int to) {
+        ByteBuffer source = segments[from >>> SEGMENT_BITS];
+        int sourceOffset = (from & SEGMENT_MASK) * SLOT_SIZE;
+        ByteBuffer target = segments[to >>> SEGMENT_BITS];
+        int targetOffset = (to & SEGMENT_MASK) * SLOT_SIZE;
+        for (int i = 0; i < SLOT_SIZE; i += 8) {
+            target.putLong(targetOffset + i, source.getLong(sourceOffset + i));
+        }
+    }
+
+    private int slotRef(int slot) {
+        return segments[slot >>> SEGMENT_BITS].getInt((slot & SEGMENT_MASK) * SLOT_SIZE + REF_OFFSET);
+    }
+
+    private int addressRef(PublicKey address) {
+        if (address == null) {
+            return NULL_ADDRESS;
+        }
+        Integer id = addressIds.get(address);
+        if (id == null) {
+            id = addresses.size();
+            addresses.add(address);
+            addressIds.put(address, id);
+        }
+        return FIRST_ADDRESS + id;
+    }
+
+    /* Reads 8 bytes of a hash in the big-endian order the table buffers use */
+    private static long longAt(byte[] bytes, int from) {
+        long value = 0;
+        for (int i = from; i < from + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < MAX_CAPACITY && capacity / 4 * 3 < expectedSize) {
+            capacity *= 2;
+        }
+        return capacity;
+    }
+
+    private static int capacity(ByteBuffer[] segments) {
+        return segments.length == 1 ? segments[0].capacity() / SLOT_SIZE : segments.length << SEGMENT_BITS;
+    }
+
+    /* Allocates capacity free slots, a power of two, in segments of at most 1 << SEGMENT_BITS slots */
+    private static ByteBuffer[] allocate(int capacity) {
+        int perSegment = Math.min(capacity, 1 << SEGMENT_BITS);
+        ByteBuffer[] segments = new ByteBuffer[capacity / perSegment];
+        for (int i = 0; i < segments.length; i++) {
+            // direct buffers start zeroed, which marks every slot free
+            segments[i] = ByteBuffer.allocateDirect(perSegment * SLOT_SIZE);
+        }
+        return segments;
+    }
+}
@@ -0,0 +1,311 @@
+import java.util.ArrayList;
+
+/**
+ * A UTXOPool kept in a persistent hash trie, so copies take constant time and share everything they
+ * do not change. Many TxHandlers, one per epoch or per fork, and historical views of the pool can
+ * then be created from a large pool without copying it.
+ * <p>
+ * The trie branches 32 ways on 5 bits of the UTXO hash code per level. Its nodes are never
+ * modified: a change copies the nodes on the path from the root to the changed entry, about
+ * log32(n) small arrays, and leaves every other pool sharing the old nodes untouched. UTXOs whose
+ * hash codes are equal share a collision node at the end of their path.
+ * <p>
+ * Like UTXOPool, an instance must not be used concurrently while it is modified, and its lookups by
+ * hash and index must not run concurrently either. Distinct copies can be used by different threads
+ * freely, since they share no mutable state.
+ */
+public class PersistentUTXOPool extends UTXOPool {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    /** What find returns for a UTXO that is not in the pool */
+    private static final Object ABSENT = new Object();
+
+    /**
+     * A trie node with an entry for each set bit of {@code bitmap}, in bit order. An entry is two
+     * slots of {@code array}: a UTXO and its output, or null and the child node.
+     */
+    private static final class Node {
+        private static final Node EMPTY = new Node(0, new Object[0]);
+
+        private final int bitmap;
+        private final Object[] array;
+
+        Node(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+    }
+
+    /** The UTXOs whose hash codes are all {@code hash}, as UTXO and output pairs */
+    private static final class Collision {
+        private final int hash;
+        private final Object[] array;
+
+        Collision(int hash, Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+    }
+
+    /** A Node or, below the first level, a Collision */
+    private Object root;
+    private int size;
+
+    /** Set by put and remove when they add or remove an entry rather than leave the size as is */
+    private boolean resized;
+
+    /** Creates a new empty pool */
+    public PersistentUTXOPool() {
+        root = Node.EMPTY;
+    }
+
+    /**
+     * Creates a new pool that is a copy of {@code uPool}. Copying another PersistentUTXOPool takes
+     * constant time, copying any other pool adds each of its UTXOs.
+     */
+    public PersistentUTXOPool(UTXOPool uPool) {
+        if (uPool instanceof PersistentUTXOPool) {
+            PersistentUTXOPool pool = (PersistentUTXOPool) uPool;
+            root = pool.root;
+            size = pool.size;
+        } else {
+            root = Node.EMPTY;
+            for (UTXO ut : uPool.getAllUTXO()) {
+                addUTXO(ut, uPool.getTxOutput(ut));
+            }
+        }
+    }
+
+    @Override
+    public PersistentUTXOPool copy() {
+        return new PersistentUTXOPool(this);
+    }
+
+    /** @return the number of UTXOs in the pool */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        resized = false;
+        root = put(root, 0, utxo.hashCode(), utxo, txOut);
+        if (resized) {
+            size++;
+        }
+    }
+
+    @Override
+    public void removeUTXO(UTXO utxo) {
+        resized = false;
+        Object newRoot = remove(root, 0, utxo.hashCode(), utxo);
+        root = newRoot == null ? Node.EMPTY : newRoot;
+        if (resized) {
+            size--;
+        }
+    }
+
+    @Override
+    public void removeUTXO(byte[] txHash, int index) {
+        if (txHash != null) {
+            removeUTXO(UTXO.probe(txHash, index));
+        }
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(UTXO ut) {
+        Object output = find(ut);
+        return output == ABSENT ? null : (Transaction.Output) output;
+    }
+
+    @Override
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        return txHash == null ? null : getTxOutput(UTXO.probe(txHash, index));
+    }
+
+    @Override
+    public boolean contains(UTXO utxo) {
+        return find(utxo) != ABSENT;
+    }
+
+    @Override
+    public boolean contains(byte[] txHash, int index) {
+        return txHash != null && contains(UTXO.probe(txHash, index));
+    }
+
+    @Override
+    public ArrayList<UTXO> getAllUTXO() {
+        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>(size);
+        collect(root, allUTXO);
+        return allUTXO;
+    }
+
+    /* @return the output of key, or ABSENT since outputs themselves may be null */
+    private Object find(UTXO key) {
+        int hash = key.hashCode();
+        Object node = root;
+        int shift = 0;
+        while (node instanceof Node) {
+            Node n = (Node) node;
+            int bit = bit(hash, shift);
+            if ((n.bitmap & bit) == 0) {
+                return ABSENT;
+            }
+            int idx = 2 * index(n.bitmap, bit);
+            Object k = n.array[idx];
+            if (k == null) {
+                node = n.array[idx + 1];
+                shift += BITS;
+            } else {
+                return key.equals(k) ? n.array[idx + 1] : ABSENT;
+            }
+        }
+        Collision c = (Collision) node;
+        int idx = c.hash == hash ? indexOf(c, key) : -1;
+        return idx < 0 ? ABSENT : c.array[idx + 1];
+    }
+
+    /* @return node with key mapped to value, node itself if it already was */
+    private Object put(Object node, int shift, int hash, UTXO key, Transaction.Output value) {
+        if (node instanceof Collision) {
+            Collision c = (Collision) node;
+            if (c.hash == hash) {
+                int idx = indexOf(c, key);
+                if (idx >= 0) {
+                    return c.array[idx + 1] == value ? c : new Collision(hash, cloneAndSet(c.array, idx + 1, value));
+                }
+                resized = true;
+                Object[] array = new Object[c.array.length + 2];
+                System.arraycopy(c.array, 0, array, 0, c.array.length);
+                array[c.array.length] = key;
+                array[c.array.length + 1] = value;
+                return new Collision(hash, array);
+            }
+            // a different hash reached this collision, branch above it
+            Node parent = new Node(bit(c.hash, shift), new Object[]{null, c});
+            return put(parent, shift, hash, key, value);
+        }
+        Node n = (Node) node;
+        int bit = bit(hash, shift);
+        int idx = 2 * index(n.bitmap, bit);
+        if ((n.bitmap & bit) == 0) {
+            resized = true;
+            Object[] array = new Object[n.array.length + 2];
+            System.arraycopy(n.array, 0, array, 0, idx);
+            array[idx] = key;
+            array[idx + 1] = value;
+            System.arraycopy(n.array, idx, array, idx + 2, n.array.length - idx);
+            return new Node(n.bitmap | bit, array);
+        }
+        Object k = n.array[idx];
+        Object v = n.array[idx + 1];
+        if (k == null) {
+            Object child = put(v, shift + BITS, hash, key, value);
+            return child == v ? n : new Node(n.bitmap, cloneAndSet(n.array, idx + 1, child));
+        }
+        if (key.equals(k)) {
+            return v == value ? n : new Node(n.bitmap, cloneAndSet(n.array, idx + 1, value));
+        }
+        resized = true;
+        Object child = pair(shift + BITS, (UTXO) k, (Transaction.Output) v, hash, key, value);
+        Object[] array = cloneAndSet(n.array, idx + 1, child);
+        array[idx] = null;
+        return new Node(n.bitmap, array);
+    }
+
+    /* @return a node holding two distinct UTXOs, branching from shift on */
+    private static Object pair(int shift, UTXO k1, Transaction.Output v1, int hash2, UTXO k2, Transaction.Output v2) {
+        int hash1 = k1.hashCode();
+        if (hash1 == hash2) {
+            return new Collision(hash1, new Object[]{k1, v1, k2, v2});
+        }
+        int bit1 = bit(hash1, shift);
+        int bit2 = bit(hash2, shift);
+        if (bit1 == bit2) {
+            return new Node(bit1, new Object[]{null, pair(shift + BITS, k1, v1, hash2, k2, v2)});
+        }
+        // entries are in bit order, and the highest bit is negative
+        Object[] array = Integer.compareUnsigned(bit1, bit2) < 0
+                ? new Object[]{k1, v1, k2, v2} : new Object[]{k2, v2, k1, v1};
+        return new Node(bit1 | bit2, array);
+    }
+
+    /* @return node without key, node itself if key was absent, or null if nothing is left */
+    private Object remove(Object node, int shift, int hash, UTXO key) {
+        if (node instanceof Collision) {
+            Collision c = (Collision) node;
+            int idx = c.hash == hash ? indexOf(c, key) : -1;
+            if (idx < 0) {
+                return c;
+            }
+            resized = true;
+            return c.array.length == 2 ? null : new Collision(hash, removePair(c.array, idx));
+        }
+        Node n = (Node) node;
+        int bit = bit(hash, shift);
+        if ((n.bitmap & bit) == 0) {
+            return n;
+        }
+        int idx = 2 * index(n.bitmap, bit);
+        Object k = n.array[idx];
+        if (k == null) {
+            Object child = n.array[idx + 1];
+            Object newChild = remove(child, shift + BITS, hash, key);
+            if (newChild == child) {
+                return n;
+            }
+            if (newChild != null) {
+                return new Node(n.bitmap, cloneAndSet(n.array, idx + 1, newChild));
+            }
+        } else if (!key.equals(k)) {
+            return n;
+        } else {
+            resized = true;
+        }
+        return n.bitmap == bit ? null : new Node(n.bitmap ^ bit, removePair(n.array, idx));
+    }
+
+    private static void collect(Object node, ArrayList<UTXO> allUTXO) {
+        Object[] array = node instanceof Node ? ((Node) node).array : ((Collision) node).array;
+        for (int i = 0; i < array.length; i += 2) {
+            if (array[i] == null) {
+                collect(array[i + 1], allUTXO);
+            } else {
+                allUTXO.add((UTXO) array[i]);
+            }
+        }
+    }
+
+    private static int indexOf(Collision c, UTXO key) {
+        for (int i = 0; i < c.array.length; i += 2) {
+            if (key.equals(c.array[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    private static int index(int bitmap, int bit) {
+        return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    private static Object[] cloneAndSet(Object[] array, int i, Object value) {
+        Object[] clone = array.clone();
+        clone[i] = value;
+        return clone;
+    }
+
+    private static Object[] removePair(Object[] array, int i) {
+        Object[] removed = new Object[array.length - 2];
+        System.arraycopy(array, 0, removed, 0, i);
+        System.arraycopy(array, i + 2, removed, i, array.length - i - 2);
+        return removed;
+    }
+}
@@ -0,0 +1,126 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least recently used cache of input signature outcomes, keyed by the signed data, the
+ * signature and the public key the signature was checked against. A transaction that reaches a
+ * TxHandler again, in a later epoch or through isValidTx, then skips the RSA verification of inputs
+ * it already had checked.
+ * <p>
+ * Entries hold a SHA-256 digest of the signed data and the signature rather than the bytes, so an
+ * outcome is only reused for exactly what was verified, whatever hash a transaction claims to
+ * have. Instances are safe for use by several threads.
+ */
+public class SignatureCache {
+
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    });
+
+    private static class Key {
+        private final byte[] digest;
+        private final PublicKey pubKey;
+        private final int hash;
+
+        Key(byte[] message, byte[] signature, PublicKey pubKey) {
+            MessageDigest sha256 = SHA_256.get();
+            // the length keeps the message and the signature apart
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                sha256.update((byte) (message.length >>> shift));
+            }
+            sha256.update(message);
+            sha256.update(signature);
+            this.digest = sha256.digest();
+            this.pubKey = pubKey;
+            this.hash = Arrays.hashCode(digest) * 31 + pubKey.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return hash == key.hash && Arrays.equals(digest, key.digest) && pubKey.equals(key.pubKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private final int capacity;
+    private final LinkedHashMap<Key, Boolean> entries;
+    private long hits;
+    private long misses;
+
+    /** Creates an empty cache holding at most {@code capacity} outcomes */
+    public SignatureCache(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<Key, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the cached outcome of verifying {@code signature} of {@code message} under
+     *         {@code pubKey}, or null if it is not cached
+     */
+    public Boolean get(byte[] message, byte[] signature, PublicKey pubKey) {
+        Key key = new Key(message, signature, pubKey);
+        synchronized (this) {
+            Boolean valid = entries.get(key);
+            if (valid == null) {
+                misses++;
+            } else {
+                hits++;
+            }
+            return valid;
+        }
+    }
+
+    /** Caches the outcome of verifying {@code signature} of {@code message} under {@code pubKey} */
+    public void put(byte[] message, byte[] signature, PublicKey pubKey, boolean valid) {
+        Key key = new Key(message, signature, pubKey);
+        synchronized (this) {
+            entries.put(key, valid);
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** @return the number of lookups that found a cached outcome */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** @return the number of lookups that found no cached outcome */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+}
@@ -0,0 +1,50 @@
+import java.security.PublicKey;
+import java.util.IdentityHashMap;
+
+/**
+ * Outcomes of input signatures that were verified ahead of the UTXO apply step, keyed by the
+ * transaction and input index they belong to. A verdict is only used when the input is later
+ * resolved to the same public key it was verified against; anything else falls back to a regular
+ * verification.
+ */
+public class SignatureVerdicts {
+
+    private final IdentityHashMap<Transaction, PublicKey[]> keys;
+    private final IdentityHashMap<Transaction, boolean[]> results;
+
+    public SignatureVerdicts() {
+        keys = new IdentityHashMap<Transaction, PublicKey[]>();
+        results = new IdentityHashMap<Transaction, boolean[]>();
+    }
+
+    /** Records that input {@code index} of {@code tx} verified as {@code valid} under {@code key} */
+    public void put(Transaction tx, int index, PublicKey key, boolean valid) {
+        PublicKey[] txKeys = keys.get(tx);
+        if (txKeys == null) {
+            txKeys = new PublicKey[tx.numInputs()];
+            keys.put(tx, txKeys);
+            results.put(tx, new boolean[tx.numInputs()]);
+        }
+        if (index < txKeys.length) {
+            txKeys[index] = key;
+            results.get(tx)[index] = valid;
+        }
+    }
+
+    /**
+     * @return the verdict for input {@code index} of {@code tx} checked against {@code key}, or
+     *         null if that input was not verified against {@code key}
+     */
+    public Boolean lookup(Transaction tx, int index, PublicKey key) {
+        PublicKey[] txKeys = keys.get(tx);
+        if (txKeys == null || index >= txKeys.length || txKeys[index] != key || key == null) {
+            return null;
+        }
+        return results.get(tx)[index];
+    }
+
+    /** @return the number of transactions holding at least one verdict */
+    public int size() {
+        return keys.size();
+    }
+}
@@ -0,0 +1,106 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded index from each output spent by a TxHandler to the accepted transaction spending it,
+ * along with the rejected transactions that claimed the output too, so that conflicting spenders
+ * stay queryable across epochs. Lookups and updates take constant time per input.
+ * <p>
+ * Only accepted transactions are recorded as spenders. A rejected transaction is recorded as a
+ * conflict of the outputs it claims that already have a spender, whether that spender was accepted
+ * in the same epoch or in an earlier one. Once more than {@code capacity} outputs are indexed, the
+ * output whose spender was recorded first is forgotten. Outputs spent by epochs that are rolled back
+ * are removed. An instance must not be used by several threads at once.
+ */
+public class SpenderIndex {
+
+    private static class Spend {
+        private final Transaction spender;
+        private ArrayList<Transaction> conflicts;
+
+        Spend(Transaction spender) {
+            this.spender = spender;
+        }
+    }
+
+    private final int capacity;
+    private final LinkedHashMap<UTXO, Spend> entries;
+
+    /** Creates an empty index remembering the spenders of at most {@code capacity} outputs */
+    public SpenderIndex(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<UTXO, Spend>(16, 0.75f) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UTXO, Spend> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /** @return the accepted transaction spending output {@code index} of {@code txHash}, or null if none is indexed */
+    public Transaction getSpender(byte[] txHash, int index) {
+        Spend spend = entries.get(new UTXO(txHash, index));
+        return spend == null ? null : spend.spender;
+    }
+
+    /**
+     * @return the rejected transactions that claimed output {@code index} of {@code txHash} while it
+     *         was spent by {@link #getSpender(byte[], int)}, in the order they were rejected
+     */
+    public List<Transaction> getConflicts(byte[] txHash, int index) {
+        Spend spend = entries.get(new UTXO(txHash, index));
+        if (spend == null || spend.conflicts == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(spend.conflicts);
+    }
+
+    /** Records {@code spender} as the accepted transaction spending {@code utxo} */
+    void addSpender(UTXO utxo, Transaction spender) {
+        entries.put(utxo, new Spend(spender));
+    }
+
+    /** Records {@code tx}, which was rejected, as a conflict of every output it claims that has a spender */
+    void addConflicts(Transaction tx) {
+        for (Transaction.Input in : tx.getInputs()) {
+            if (in.prevTxHash == null) {
+                continue;
+            }
+            Spend spend = entries.get(new UTXO(in.prevTxHash, in.outputIndex));
+            if (spend == null || spend.spender == tx) {
+                continue;
+            }
+            if (spend.conflicts == null) {
+                spend.conflicts = new ArrayList<>(1);
+            }
+            // a transaction claiming the same output twice, or rejected again right away, is one conflict
+            if (spend.conflicts.isEmpty() || spend.conflicts.get(spend.conflicts.size() - 1) != tx) {
+                spend.conflicts.add(tx);
+            }
+        }
+    }
+
+    /** Forgets the spender of {@code utxo}, which is unspent again */
+    void remove(UTXO utxo) {
+        entries.remove(utxo);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** @return the number of outputs whose spender is indexed */
+    public int size() {
+        return entries.size();
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+}
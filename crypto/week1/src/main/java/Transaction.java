@@ -1,4 +1,5 @@
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.security.MessageDigest;
@@ -7,6 +8,28 @@ import java.security.PublicKey;
 
 public class Transaction {
 
+    /** Bytes of an output index in the raw transaction */
+    private static final int OUTPUT_INDEX_SIZE = Integer.SIZE / 8;
+
+    /** Bytes of an output value in the raw transaction, a double or a long */
+    private static final int VALUE_SIZE = Double.SIZE / 8;
+
+    /**
+     * Version of transactions whose output values are signed and hashed as doubles, the only
+     * version there was before satoshi amounts. Its raw data is unchanged.
+     */
+    public static final int VERSION_DOUBLE = 1;
+
+    /**
+     * Version of transactions whose output values are signed and hashed as long counts of satoshis,
+     * after a version tag. A value that is not a whole number of satoshis is encoded as
+     * Long.MIN_VALUE, which is not the amount of any valid output.
+     */
+    public static final int VERSION_SATOSHI = 2;
+
+    /** Bytes of the version tag leading the raw data of VERSION_SATOSHI transactions */
+    private static final int VERSION_SIZE = Integer.SIZE / 8;
+
     public class Input {
         /** hash of the Transaction whose output is being used */
         public byte[] prevTxHash;
@@ -43,17 +66,85 @@ public class Transaction {
         }
     }
 
+    /**
+     * The encoded outputs, shared by the raw transaction and the data signed by every input, along
+     * with the outputs, values and addresses they were encoded from. A snapshot is never modified,
+     * so threads signing or verifying different inputs of the transaction can share it.
+     */
+    private static class OutputSection {
+        private final Output[] outputs;
+        private final double[] values;
+        private final PublicKey[] addresses;
+        private final byte[] bytes;
+
+        OutputSection(ArrayList<Output> current, int version) {
+            int n = current.size();
+            outputs = current.toArray(new Output[n]);
+            values = new double[n];
+            addresses = new PublicKey[n];
+            byte[][] encoded = new byte[n][];
+            int size = 0;
+            for (int i = 0; i < n; i++) {
+                values[i] = outputs[i].value;
+                addresses[i] = outputs[i].address;
+                encoded[i] = addresses[i].getEncoded();
+                size += VALUE_SIZE + encoded[i].length;
+            }
+            bytes = new byte[size];
+            ByteBuffer b = ByteBuffer.wrap(bytes);
+            for (int i = 0; i < n; i++) {
+                if (version == VERSION_DOUBLE) {
+                    b.putDouble(values[i]);
+                } else {
+                    b.putLong(Amounts.isAmount(values[i]) ? Amounts.toSatoshis(values[i]) : Long.MIN_VALUE);
+                }
+                b.put(encoded[i]);
+            }
+        }
+
+        /* Outputs are reachable through getOutputs() and their fields are public, so compare them all */
+        boolean encodes(ArrayList<Output> current) {
+            if (current.size() != outputs.length)
+                return false;
+            for (int i = 0; i < outputs.length; i++) {
+                Output op = current.get(i);
+                if (op != outputs[i] || op.address != addresses[i]
+                        || Double.doubleToRawLongBits(op.value) != Double.doubleToRawLongBits(values[i]))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /** VERSION_DOUBLE or VERSION_SATOSHI, how output values are encoded */
+    private final int version;
     /** hash of the transaction, its unique id */
     private byte[] hash;
     private ArrayList<Input> inputs;
     private ArrayList<Output> outputs;
+    /** the last encoding of the outputs, null until needed or after addOutput() */
+    private volatile OutputSection outputSection;
 
     public Transaction() {
+        this(VERSION_DOUBLE);
+    }
+
+    /**
+     * Creates an empty transaction of version {@code version}, VERSION_DOUBLE or VERSION_SATOSHI
+     *
+     * @throws IllegalArgumentException if {@code version} is neither
+     */
+    public Transaction(int version) {
+        if (version != VERSION_DOUBLE && version != VERSION_SATOSHI) {
+            throw new IllegalArgumentException("Unknown transaction version " + version);
+        }
+        this.version = version;
         inputs = new ArrayList<Input>();
         outputs = new ArrayList<Output>();
     }
 
     public Transaction(Transaction tx) {
+        version = tx.version;
         hash = tx.hash.clone();
         inputs = new ArrayList<Input>(tx.inputs);
         outputs = new ArrayList<Output>(tx.outputs);
@@ -67,6 +158,21 @@ public class Transaction {
     public void addOutput(double value, PublicKey address) {
         Output op = new Output(value, address);
         outputs.add(op);
+        outputSection = null;
+    }
+
+    /**
+     * Adds an output of {@code satoshis}, whose value is the exact double of that amount
+     *
+     * @throws IllegalArgumentException if {@code satoshis} is out of the range of amounts
+     */
+    public void addSatoshiOutput(long satoshis, PublicKey address) {
+        addOutput(Amounts.toCoins(satoshis), address);
+    }
+
+    /** @return VERSION_DOUBLE or VERSION_SATOSHI */
+    public int getVersion() {
+        return version;
     }
 
     public void removeInput(int index) {
@@ -86,34 +192,21 @@ public class Transaction {
 
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
         if (index > inputs.size())
             return null;
         Input in = inputs.get(index);
-        byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
+        byte[] encodedOutputs = encodedOutputs();
+        int size = versionSize() + OUTPUT_INDEX_SIZE + encodedOutputs.length;
+        if (in.prevTxHash != null)
+            size += in.prevTxHash.length;
+        byte[] sigD = new byte[size];
+        ByteBuffer b = ByteBuffer.wrap(sigD);
+        if (version != VERSION_DOUBLE)
+            b.putInt(version);
+        if (in.prevTxHash != null)
+            b.put(in.prevTxHash);
         b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
-        if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-
-            for (int i = 0; i < addressBytes.length; i++)
-                sigData.add(addressBytes[i]);
-        }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
+        b.put(encodedOutputs);
         return sigD;
     }
 
@@ -122,40 +215,70 @@ public class Transaction {
     }
 
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
+        byte[] encodedOutputs = encodedOutputs();
+        byte[] tx = new byte[rawTxSize(encodedOutputs)];
+        writeRawTx(ByteBuffer.wrap(tx), encodedOutputs);
+        return tx;
+    }
+
+    /** @return the number of bytes of the raw transaction returned by {@code getRawTx()} */
+    public int getRawTxSize() {
+        return rawTxSize(encodedOutputs());
+    }
+
+    /**
+     * Writes the raw transaction returned by {@code getRawTx()} into {@code dst}, starting at its
+     * current position
+     *
+     * @throws java.nio.BufferOverflowException if {@code dst} has fewer than
+     *         {@code getRawTxSize()} bytes remaining
+     */
+    public void writeRawTx(ByteBuffer dst) {
+        writeRawTx(dst, encodedOutputs());
+    }
+
+    /* Encodes the outputs once and reuses the encoding until they change; callers must not modify it */
+    private byte[] encodedOutputs() {
+        OutputSection section = outputSection;
+        if (section == null || !section.encodes(outputs)) {
+            section = new OutputSection(outputs, version);
+            outputSection = section;
+        }
+        return section.bytes;
+    }
+
+    /* VERSION_DOUBLE data has no version tag, so it stays what it was before versions */
+    private int versionSize() {
+        return version == VERSION_DOUBLE ? 0 : VERSION_SIZE;
+    }
+
+    private int rawTxSize(byte[] encodedOutputs) {
+        int size = versionSize();
         for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
+            size += OUTPUT_INDEX_SIZE;
+            if (in.prevTxHash != null)
+                size += in.prevTxHash.length;
+            if (in.signature != null)
+                size += in.signature.length;
         }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressBytes = op.address.getEncoded();
-            for (int i = 0; i < value.length; i++) {
-                rawTx.add(value[i]);
-            }
-            for (int i = 0; i < addressBytes.length; i++) {
-                rawTx.add(addressBytes[i]);
-            }
+        return size + encodedOutputs.length;
+    }
 
+    private void writeRawTx(ByteBuffer dst, byte[] encodedOutputs) {
+        // ByteBuffers are big-endian unless told otherwise, keep the layout independent of dst
+        ByteOrder order = dst.order();
+        dst.order(ByteOrder.BIG_ENDIAN);
+        if (version != VERSION_DOUBLE)
+            dst.putInt(version);
+        for (Input in : inputs) {
+            if (in.prevTxHash != null)
+                dst.put(in.prevTxHash);
+            dst.putInt(in.outputIndex);
+            if (in.signature != null)
+                dst.put(in.signature);
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
+        dst.put(encodedOutputs);
+        dst.order(order);
     }
 
     public void finalize() {
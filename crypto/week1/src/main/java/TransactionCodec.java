@@ -0,0 +1,420 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary format for transactions, to move them between processes or store them on disk.
+ * <p>
+ * Every transaction is written as a record, all integers big-endian:
+ * <pre>
+ *   int     length of the rest of the record
+ *   bytes   hash
+ *   int     number of inputs, then for each input:
+ *             bytes prevTxHash, int outputIndex, bytes signature
+ *   int     number of outputs, then for each output:
+ *             double value, bytes address (X.509 encoding of the RSA public key)
+ * </pre>
+ * where {@code bytes} is an int length followed by that many bytes, or a length of -1 for null.
+ * Transactions of a version other than {@link Transaction#VERSION_DOUBLE} start their record, after
+ * the length, with an int -2 and the int version, so records of earlier transactions are unchanged.
+ * Records are written one after another, so a file of transactions is their concatenation.
+ * <p>
+ * Decoding returns an {@link EncodedTransaction}, a view over the bytes of the record. Its fields are
+ * read from the buffer when asked for, so the hash and the outpoints of the inputs are available
+ * without building the public keys of the outputs.
+ */
+public class TransactionCodec {
+
+    private static final String KEY_ALGORITHM = "RSA";
+
+    private static final int INT_SIZE = Integer.SIZE / 8;
+    private static final int DOUBLE_SIZE = Double.SIZE / 8;
+    private static final int NULL_LENGTH = -1;
+
+    /** Stands where the hash length would be, to say that the version comes next */
+    private static final int VERSION_TAG = -2;
+
+    private static final ThreadLocal<KeyFactory> KEY_FACTORIES = new ThreadLocal<KeyFactory>() {
+        @Override
+        protected KeyFactory initialValue() {
+            try {
+                return KeyFactory.getInstance(KEY_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                // every Java platform is required to support RSA
+                throw new IllegalStateException(KEY_ALGORITHM + " is not available", e);
+            }
+        }
+    };
+
+    private TransactionCodec() {
+    }
+
+    /** @return the number of bytes {@code encode(tx, dst)} writes, length prefix included */
+    public static int encodedSize(Transaction tx) {
+        int size = INT_SIZE + versionSize(tx) + bytesSize(tx.getHash()) + INT_SIZE;
+        for (Transaction.Input in : tx.getInputs()) {
+            size += bytesSize(in.prevTxHash) + INT_SIZE + bytesSize(in.signature);
+        }
+        size += INT_SIZE;
+        for (Transaction.Output op : tx.getOutputs()) {
+            size += DOUBLE_SIZE + bytesSize(op.address.getEncoded());
+        }
+        return size;
+    }
+
+    /** @return the record of {@code tx} */
+    public static byte[] encode(Transaction tx) {
+        byte[] record = new byte[encodedSize(tx)];
+        encode(tx, ByteBuffer.wrap(record));
+        return record;
+    }
+
+    /**
+     * Writes the record of {@code tx} into {@code dst}, starting at its current position, and
+     * advances the position past it. The record is big-endian whatever the order of {@code dst}.
+     *
+     * @throws java.nio.BufferOverflowException if {@code dst} has fewer than
+     *         {@code encodedSize(tx)} bytes remaining
+     */
+    public static void encode(Transaction tx, ByteBuffer dst) {
+        ByteOrder order = dst.order();
+        dst.order(ByteOrder.BIG_ENDIAN);
+        int start = dst.position();
+        dst.putInt(0);
+        if (tx.getVersion() != Transaction.VERSION_DOUBLE) {
+            dst.putInt(VERSION_TAG);
+            dst.putInt(tx.getVersion());
+        }
+        putBytes(dst, tx.getHash());
+        dst.putInt(tx.numInputs());
+        for (Transaction.Input in : tx.getInputs()) {
+            putBytes(dst, in.prevTxHash);
+            dst.putInt(in.outputIndex);
+            putBytes(dst, in.signature);
+        }
+        dst.putInt(tx.numOutputs());
+        for (Transaction.Output op : tx.getOutputs()) {
+            dst.putDouble(op.value);
+            putBytes(dst, op.address.getEncoded());
+        }
+        dst.putInt(start, dst.position() - start - INT_SIZE);
+        dst.order(order);
+    }
+
+    /**
+     * Decodes the record starting at the current position of {@code src} and advances the position
+     * past it. The returned view shares the bytes of {@code src}, which must not change while the
+     * view is in use.
+     *
+     * @throws IllegalArgumentException if the record is truncated or malformed
+     */
+    public static EncodedTransaction decode(ByteBuffer src) {
+        ByteBuffer in = src.duplicate().order(ByteOrder.BIG_ENDIAN);
+        if (in.remaining() < INT_SIZE) {
+            throw new IllegalArgumentException("Truncated record length at " + src.position());
+        }
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Invalid record length " + length + " at " + src.position());
+        }
+        in.limit(in.position() + length);
+        EncodedTransaction tx = new EncodedTransaction(in.slice());
+        src.position(in.limit());
+        return tx;
+    }
+
+    /** Decodes every record from the current position of {@code src} to its limit */
+    public static List<EncodedTransaction> decodeAll(ByteBuffer src) {
+        List<EncodedTransaction> txs = new ArrayList<>();
+        while (src.hasRemaining()) {
+            txs.add(decode(src));
+        }
+        return txs;
+    }
+
+    /** Writes the records of {@code txs} to {@code file}, replacing its contents */
+    public static void writeAll(Path file, List<? extends Transaction> txs) throws IOException {
+        int size = 0;
+        for (Transaction tx : txs) {
+            size += encodedSize(tx);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (Transaction tx : txs) {
+            encode(tx, buffer);
+        }
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Maps {@code file} into memory and decodes every record in it. The returned views read the
+     * mapping directly, which stays valid after the file is closed.
+     *
+     * @throws IllegalArgumentException if a record is truncated or malformed
+     */
+    public static List<EncodedTransaction> readAll(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return decodeAll(mapped);
+        }
+    }
+
+    /** @return the RSA public key whose X.509 encoding is {@code encoded} */
+    static PublicKey decodeAddress(byte[] encoded) throws InvalidKeySpecException {
+        return KEY_FACTORIES.get().generatePublic(new X509EncodedKeySpec(encoded));
+    }
+
+    private static int bytesSize(byte[] bytes) {
+        return INT_SIZE + (bytes == null ? 0 : bytes.length);
+    }
+
+    private static int versionSize(Transaction tx) {
+        return tx.getVersion() == Transaction.VERSION_DOUBLE ? 0 : 2 * INT_SIZE;
+    }
+
+    private static void putBytes(ByteBuffer dst, byte[] bytes) {
+        if (bytes == null) {
+            dst.putInt(NULL_LENGTH);
+        } else {
+            dst.putInt(bytes.length);
+            dst.put(bytes);
+        }
+    }
+
+    /**
+     * A transaction decoded from its record. Construction only walks the lengths of the record to
+     * find where each input and output starts; fields are copied out of the record, and public keys
+     * built, only when asked for. A view is safe for use by several threads.
+     */
+    public static class EncodedTransaction {
+        private final ByteBuffer record;
+        private final int version;
+        private final int hashOffset;
+        private final int[] inputOffsets;
+        private final int[] outputOffsets;
+
+        EncodedTransaction(ByteBuffer record) {
+            this.record = record;
+            try {
+                ByteBuffer in = record.duplicate();
+                if (in.getInt(0) == VERSION_TAG) {
+                    in.position(INT_SIZE);
+                    version = in.getInt();
+                    if (version == Transaction.VERSION_DOUBLE) {
+                        throw new IllegalArgumentException("Version " + version + " records have no version");
+                    }
+                } else {
+                    version = Transaction.VERSION_DOUBLE;
+                }
+                hashOffset = in.position();
+                skipBytes(in);
+                inputOffsets = new int[count(in)];
+                for (int i = 0; i < inputOffsets.length; i++) {
+                    inputOffsets[i] = in.position();
+                    skipBytes(in);
+                    in.position(in.position() + INT_SIZE);
+                    skipBytes(in);
+                }
+                outputOffsets = new int[count(in)];
+                for (int i = 0; i < outputOffsets.length; i++) {
+                    outputOffsets[i] = in.position();
+                    in.position(in.position() + DOUBLE_SIZE);
+                    skipBytes(in);
+                }
+                if (in.hasRemaining()) {
+                    throw new IllegalArgumentException(in.remaining() + " trailing bytes in record");
+                }
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("Truncated record", e);
+            }
+        }
+
+        /** @return the version of the transaction */
+        public int getVersion() {
+            return version;
+        }
+
+        /** @return the hash of the transaction as recorded, which {@link #toTransaction()} checks */
+        public byte[] getHash() {
+            return getBytes(hashOffset);
+        }
+
+        public int numInputs() {
+            return inputOffsets.length;
+        }
+
+        public int numOutputs() {
+            return outputOffsets.length;
+        }
+
+        /** @return the hash of the transaction whose output input {@code index} claims */
+        public byte[] getPrevTxHash(int index) {
+            return getBytes(inputOffsets[index]);
+        }
+
+        /** @return the index of the output input {@code index} claims */
+        public int getOutputIndex(int index) {
+            int offset = inputOffsets[index];
+            return record.getInt(offset + bytesLength(offset));
+        }
+
+        /** @return the outpoint claimed by input {@code index}, or null if it has no prevTxHash */
+        public UTXO getUTXO(int index) {
+            byte[] prevTxHash = getPrevTxHash(index);
+            return prevTxHash == null ? null : new UTXO(prevTxHash, getOutputIndex(index));
+        }
+
+        /** @return the signature of input {@code index} */
+        public byte[] getSignature(int index) {
+            int offset = inputOffsets[index];
+            return getBytes(offset + bytesLength(offset) + INT_SIZE);
+        }
+
+        /** @return the value of output {@code index} */
+        public double getValue(int index) {
+            return record.getDouble(outputOffsets[index]);
+        }
+
+        /** @return the X.509 encoding of the address of output {@code index} */
+        public byte[] getEncodedAddress(int index) {
+            return getBytes(outputOffsets[index] + DOUBLE_SIZE);
+        }
+
+        /**
+         * @return the address of output {@code index}
+         * @throws IllegalArgumentException if the address is not an X.509 encoded RSA key
+         */
+        public PublicKey getAddress(int index) {
+            byte[] encoded = getEncodedAddress(index);
+            if (encoded == null) {
+                return null;
+            }
+            try {
+                return decodeAddress(encoded);
+            } catch (InvalidKeySpecException e) {
+                throw new IllegalArgumentException("Invalid address of output " + index, e);
+            }
+        }
+
+        /**
+         * @return a Transaction with the version, inputs, signatures and outputs of the record, and
+         *         its hash computed from them
+         * @throws IllegalArgumentException if an address is not an X.509 encoded RSA key, the version
+         *                                  is unknown, or the record holds a hash other than the one
+         *                                  computed, as a hash is never trusted from outside
+         */
+        public Transaction toTransaction() {
+            return toTransaction(null);
+        }
+
+        /**
+         * Like {@link #toTransaction()}, but looks the encoded addresses up in {@code addresses}
+         * first and records the ones it decodes there, so a batch passing the same map builds each
+         * distinct address once. Building a key costs far more than the rest of the transaction.
+         */
+        public Transaction toTransaction(Map<ByteBuffer, PublicKey> addresses) {
+            Transaction tx = build(addresses);
+            tx.finalize();
+            byte[] hash = getHash();
+            if (hash != null && !Arrays.equals(hash, tx.getHash())) {
+                throw new IllegalArgumentException("The hash of the record does not match its transaction");
+            }
+            return tx;
+        }
+
+        /*
+         * Like toTransaction, but keeps the hash the record holds, computing one only when it holds
+         * none. Only for records this process wrote itself, such as an EpochRecorder recording, which
+         * must replay a transaction exactly as it was handled, including one whose hash was set by
+         * hand.
+         */
+        Transaction toRecordedTransaction(Map<ByteBuffer, PublicKey> addresses) {
+            Transaction tx = build(addresses);
+            byte[] hash = getHash();
+            if (hash == null) {
+                tx.finalize();
+            } else {
+                tx.setHash(hash);
+            }
+            return tx;
+        }
+
+        /* Builds the transaction of the record, without its hash */
+        private Transaction build(Map<ByteBuffer, PublicKey> addresses) {
+            Transaction tx = new Transaction(version);
+            for (int i = 0; i < numInputs(); i++) {
+                tx.addInput(getPrevTxHash(i), getOutputIndex(i));
+                tx.addSignature(getSignature(i), i);
+            }
+            for (int i = 0; i < numOutputs(); i++) {
+                byte[] encoded = getEncodedAddress(i);
+                PublicKey address = addresses == null || encoded == null ? null : addresses.get(ByteBuffer.wrap(encoded));
+                if (address == null) {
+                    address = getAddress(i);
+                    if (addresses != null && address != null) {
+                        addresses.put(ByteBuffer.wrap(encoded), address);
+                    }
+                }
+                tx.addOutput(getValue(i), address);
+            }
+            return tx;
+        }
+
+        /* Reads the bytes field at offset of the record without moving any position */
+        private byte[] getBytes(int offset) {
+            int length = record.getInt(offset);
+            if (length == NULL_LENGTH) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            ByteBuffer field = record.duplicate();
+            field.position(offset + INT_SIZE);
+            field.get(bytes);
+            return bytes;
+        }
+
+        /* @return the size of the bytes field at offset, length included */
+        private int bytesLength(int offset) {
+            int length = record.getInt(offset);
+            return INT_SIZE + (length == NULL_LENGTH ? 0 : length);
+        }
+
+        private static void skipBytes(ByteBuffer in) {
+            int length = in.getInt();
+            if (length < NULL_LENGTH) {
+                throw new IllegalArgumentException("Invalid field length " + length);
+            }
+            if (length > 0) {
+                in.position(in.position() + length);
+            }
+        }
+
+        /* Reads a count, rejecting any that could not fit in the rest of the record */
+        private static int count(ByteBuffer in) {
+            int count = in.getInt();
+            if (count < 0 || count > in.remaining() / INT_SIZE) {
+                throw new IllegalArgumentException("Invalid count " + count);
+            }
+            return count;
+        }
+    }
+}
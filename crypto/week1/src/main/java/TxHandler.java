@@ -1,12 +1,71 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.security.PublicKey;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class TxHandler {
 
+    /** Inputs verified per fork/join task before it stops splitting its range */
+    private static final int VERIFY_BATCH = 16;
+
+    /** Largest number of inputs checked for duplicates pairwise instead of through a hash set */
+    private static final int PAIRWISE_DUPLICATE_CHECK = 16;
+
     private final UTXOPool utxoPool;
 
+    /** Pool used by handleTxs to verify input signatures in parallel, or null to verify inline */
+    private ForkJoinPool verifierPool;
+
+    /** Signatures verified ahead of the apply step of the running handleTxs call, or null */
+    private SignatureVerdicts verdicts;
+
+    /** Outcomes of signatures verified by earlier calls, or null to always verify */
+    private SignatureCache signatureCache;
+
+    /** Store every accepted epoch is committed to, or null to keep the pool in memory only */
+    private UTXOStore utxoStore;
+
+    /** Id of the last epoch handled, the number of handleTxs calls net of rollbacks */
+    private long epoch;
+
+    /** Number of most recent epochs that can be rolled back, 0 to record no undo records */
+    private int undoDepth;
+
+    /** Whether values are summed as exact satoshi amounts for every transaction, not only VERSION_SATOSHI ones */
+    private boolean satoshiAmounts;
+
+    /** Undo records of the most recent epochs, oldest first */
+    private final ArrayDeque<EpochUndo> undoLog = new ArrayDeque<>();
+
+    /** Undo record of the running handleTxs call, or null if it records none */
+    private EpochUndo undo;
+
+    /** Policy choosing between epoch transactions spending the same output, or null to keep dependency order */
+    private ConflictPolicy conflictPolicy;
+
+    /** Index every accepted spender and rejected conflicting spender is recorded in, or null */
+    private SpenderIndex spenderIndex;
+
+    /** Recorder every epoch handled is appended to, or null */
+    private EpochRecorder epochRecorder;
+
+    /** Metrics every epoch handled is added to, or null */
+    private TxHandlerMetrics metrics;
+
+    /** Figures of the running handleTxs or submit call, or null if there are no metrics */
+    private TxHandlerMetrics.Epoch epochMetrics;
+
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
      * {@code utxoPool}. This should make a copy of utxoPool by using the UTXOPool(UTXOPool uPool)
@@ -14,8 +73,172 @@ public class TxHandler {
      */
     public TxHandler(UTXOPool utxoPool) {
         // IMPLEMENT THIS
-        this.utxoPool = new UTXOPool(utxoPool);
+        // copy() is the UTXOPool(UTXOPool uPool) constructor, except that other kinds of pool keep their kind
+        this.utxoPool = utxoPool.copy();
+
+    }
+
+    /**
+     * Makes handleTxs verify every input signature of an epoch on {@code verifierPool} before
+     * transactions are applied to the pool one by one. The accepted transactions are the same as
+     * with inline verification. Passing null switches back to inline verification.
+     */
+    public void setVerifierPool(ForkJoinPool verifierPool) {
+        this.verifierPool = verifierPool;
+    }
+
+    /**
+     * Makes signature checks consult {@code signatureCache} before verifying, and record what they
+     * verify in it. The cache may be shared by several handlers. Passing null disables caching.
+     */
+    public void setSignatureCache(SignatureCache signatureCache) {
+        this.signatureCache = signatureCache;
+    }
+
+    /**
+     * Makes handleTxs commit the changes of every epoch to {@code utxoStore} once the epoch is
+     * applied. The handler must have been created from {@code utxoStore.getUtxoPool()}, so that
+     * both start from the same UTXOs, and both keep a pool of their own. An epoch the store fails to
+     * commit is undone before the failure is thrown, so the handler stays at the epoch the store is
+     * at. Passing null stops persisting epochs.
+     */
+    public void setUTXOStore(UTXOStore utxoStore) {
+        this.utxoStore = utxoStore;
+    }
+
+    /**
+     * Makes validation sum the input and output values of every transaction as exact satoshi
+     * amounts, rejecting values that are not whole numbers of satoshis, as it always does for
+     * {@link Transaction#VERSION_SATOSHI} transactions. Otherwise the values of VERSION_DOUBLE
+     * transactions are summed as doubles, as they always were.
+     */
+    public void setSatoshiAmounts(boolean satoshiAmounts) {
+        this.satoshiAmounts = satoshiAmounts;
+    }
+
+    /**
+     * Makes handleTxs keep an undo record of each of the last {@code undoDepth} epochs, holding the
+     * UTXOs the epoch spent with their outputs and the UTXOs it created, so that those epochs can be
+     * undone by {@link #rollback(long)}. Records of older epochs are dropped, so memory stays bounded
+     * by the size of the last {@code undoDepth} epochs. 0, the default, records nothing.
+     */
+    public void setUndoDepth(int undoDepth) {
+        if (undoDepth < 0) {
+            throw new IllegalArgumentException("Undo depth must not be negative: " + undoDepth);
+        }
+        this.undoDepth = undoDepth;
+        while (undoLog.size() > undoDepth) {
+            undoLog.removeFirst();
+        }
+        if (epochRecorder != null) {
+            try {
+                epochRecorder.recordUndoDepth(undoDepth);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not record the undo depth", e);
+            }
+        }
+    }
 
+    /**
+     * Makes handleTxs resolve the transactions of an epoch spending the same output before applying
+     * any of them: for each contested output, {@code conflictPolicy} picks the spender that is kept
+     * and the others are dropped, along with every output they claim. Only spenders that are valid,
+     * signatures included, compete; an invalid one is rejected without taking the output from the
+     * others. Without a policy, the default,
+     * the spender checked first in dependency order wins, and the others are rejected for a missing
+     * input.
+     */
+    public void setConflictPolicy(ConflictPolicy conflictPolicy) {
+        this.conflictPolicy = conflictPolicy;
+    }
+
+    /**
+     * Makes handleTxs and submit record the accepted spender of every output they spend, and the
+     * rejected transactions claiming an output that has one, in {@code spenderIndex}. Passing null
+     * stops recording.
+     */
+    public void setSpenderIndex(SpenderIndex spenderIndex) {
+        this.spenderIndex = spenderIndex;
+    }
+
+    /**
+     * Makes handleTxs append every epoch it handles, with the transactions it accepts, to
+     * {@code epochRecorder}, after writing the current pool as the pool the recording starts from.
+     * Calls to submit, rollback and setUndoDepth are recorded too, so a replay changes the pool the
+     * same way. Passing null stops recording, leaving the recorder to be closed by the caller.
+     *
+     * @throws UncheckedIOException if the pool cannot be written
+     */
+    public void setEpochRecorder(EpochRecorder epochRecorder) {
+        if (epochRecorder != null) {
+            try {
+                epochRecorder.begin(utxoPool);
+                if (undoDepth != 0) {
+                    epochRecorder.recordUndoDepth(undoDepth);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not start the recording", e);
+            }
+        }
+        this.epochRecorder = epochRecorder;
+    }
+
+    /**
+     * Makes handleTxs and submit add the counters and stage latencies of every epoch to
+     * {@code metrics}, and the size of the pool to its pool size. Passing null stops reporting,
+     * taking the pool back out of the pool size of the metrics reported to so far.
+     */
+    public void setMetrics(TxHandlerMetrics metrics) {
+        if (this.metrics != null) {
+            this.metrics.addPoolSize(-utxoPool.size());
+        }
+        if (metrics != null) {
+            metrics.addPoolSize(utxoPool.size());
+        }
+        this.metrics = metrics;
+    }
+
+    /** @return the id of the last epoch handled: epochs are numbered from 1 in handleTxs call order */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Restores the pool to its state before epoch {@code epochId}, undoing that epoch and every
+     * later one in time proportional to their size. The next handleTxs call is epoch {@code epochId}
+     * again.
+     *
+     * @throws IllegalArgumentException if {@code epochId} was not handled yet, or is older than the
+     *                                  undo records kept
+     * @throws IllegalStateException    if epochs are committed to a UTXOStore, which cannot undo them
+     */
+    public void rollback(long epochId) {
+        if (utxoStore != null) {
+            throw new IllegalStateException("Epochs committed to a UTXOStore cannot be rolled back");
+        }
+        if (epochId < 1 || epochId > epoch) {
+            throw new IllegalArgumentException("Epoch " + epochId + " has not been handled, the last one is " + epoch);
+        }
+        if (epoch - epochId >= undoLog.size()) {
+            throw new IllegalArgumentException("Epoch " + epochId + " is older than the " + undoLog.size()
+                    + " epochs that can be rolled back");
+        }
+        int size = metrics == null ? 0 : utxoPool.size();
+        long undone = epoch - epochId + 1;
+        while (epoch >= epochId) {
+            undoLog.removeLast().undo(utxoPool, spenderIndex);
+            epoch--;
+        }
+        if (metrics != null) {
+            metrics.addPoolSize(utxoPool.size() - size);
+        }
+        if (epochRecorder != null) {
+            try {
+                epochRecorder.recordRollback(undone);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not record the rollback", e);
+            }
+        }
     }
 
     /**
@@ -28,128 +251,199 @@ public class TxHandler {
      * values; and false otherwise.
      */
     public boolean isValidTx(Transaction tx) {
-        return (checkOutputs(tx) &&
-                checkSignatures(tx) &&
-                !isUTXOClaimedMultipleTimes(tx) &&
-                isTransactionOutputsAllNonNegative(tx) &&
-                isSumOfInputsValid(tx));
+        return validateTx(tx).isValid();
     }
 
-    /*
-    * (5) The sum of a transactions inputs >= sum of its output values
+    /**
+     * Validates {@code tx} against the current UTXO pool, checking the same rules as isValidTx.
+     * Every input is resolved against the pool once, and the signatures are only verified after all
+     * cheaper checks have passed.
+     *
+     * @return the validation outcome, carrying the first broken rule if {@code tx} is invalid
      */
-    private boolean isSumOfInputsValid(Transaction tx) {
-        double inputTotal = 0;
-        double outputTotal = 0;
-        for (Transaction.Input txInput : tx.getInputs()) {
-            UTXO utxo = new UTXO(txInput.prevTxHash, txInput.outputIndex);
-            if (utxoPool.contains(utxo)) {
-                double inputValue = utxoPool.getTxOutput(utxo).value;
-                inputTotal += inputValue;
-            } else {
-                return false;
-            }
+    public ValidationResult validateTx(Transaction tx) {
+        ArrayList<Transaction.Input> inputs = tx.getInputs();
+        ValidationResult wellFormed = checkInputs(inputs);
+        if (!wellFormed.isValid()) {
+            return wellFormed;
         }
-        for (Transaction.Output txOutput : tx.getOutputs()) {
-            if (txOutput.value < 0) {
-                return false;
-            }
-            else {
-                double outputValue = txOutput.value;
-                outputTotal += outputValue;
+
+        Transaction.Output[] claimed = new Transaction.Output[inputs.size()];
+        long lookupStart = epochMetrics == null ? TxHandlerMetrics.Epoch.UNTIMED : epochMetrics.startLookup();
+        int missing = resolveInputs(inputs, claimed);
+        if (epochMetrics != null) {
+            epochMetrics.endLookup(lookupStart);
+        }
+        if (missing >= 0) {
+            return ValidationResult.invalid(ValidationResult.Reason.MISSING_INPUT, missing);
+        }
+        return checkClaims(tx, claimed);
+    }
+
+    /* Checks that every input names an output, and (3) that no two name the same one */
+    private static ValidationResult checkInputs(ArrayList<Transaction.Input> inputs) {
+        int numInputs = inputs.size();
+        for (int i = 0; i < numInputs; i++) {
+            Transaction.Input txInput = inputs.get(i);
+            if (txInput.prevTxHash == null || txInput.prevTxHash.length == 0 || txInput.outputIndex < 0) {
+                return ValidationResult.invalid(ValidationResult.Reason.MALFORMED_INPUT, i);
             }
         }
-        return (inputTotal >= outputTotal);
+        int duplicate = findDuplicateInput(inputs);
+        if (duplicate >= 0) {
+            return ValidationResult.invalid(ValidationResult.Reason.DUPLICATE_INPUT, duplicate);
+        }
+        return ValidationResult.valid();
+    }
 
+    /* Checks (4), (5) and then (2) of tx, whose inputs claim the outputs in claimed */
+    private ValidationResult checkClaims(Transaction tx, Transaction.Output[] claimed) {
+        ValidationResult sums = satoshiAmounts || tx.getVersion() == Transaction.VERSION_SATOSHI
+                ? checkSatoshiSums(claimed, tx.getOutputs()) : checkSums(claimed, tx.getOutputs());
+        if (!sums.isValid()) {
+            return sums;
+        }
+
+        for (int i = 0; i < claimed.length; i++) {
+            if (!checkSignature(tx, i, claimed[i].address)) {
+                return ValidationResult.invalid(ValidationResult.Reason.INVALID_SIGNATURE, i);
+            }
+        }
+        return ValidationResult.valid();
     }
 
     /*
-    * (4) all of the transaction output values are non-negative
+     * (1) Resolves the output claimed by each input against the pool into claimed
+     *
+     * @return the index of the first input claiming an output not in the pool, or -1
      */
-    private boolean isTransactionOutputsAllNonNegative(Transaction tx) {
-        for (Transaction.Output txOutput : tx.getOutputs()) {
-            if (txOutput.value < 0) {
-                return false;
+    private int resolveInputs(ArrayList<Transaction.Input> inputs, Transaction.Output[] claimed) {
+        for (int i = 0; i < claimed.length; i++) {
+            Transaction.Input txInput = inputs.get(i);
+            claimed[i] = utxoPool.getTxOutput(txInput.prevTxHash, txInput.outputIndex);
+            if (claimed[i] == null) {
+                return i;
             }
         }
-        return true;
+        return -1;
     }
-    /*
-    * (3) No UTXO is claimed multiple times by a Transaction
-     */
-    private boolean isUTXOClaimedMultipleTimes(Transaction tx) {
-        Set<UTXO> utxoSet = new HashSet<>();
-        for (Transaction.Input txInput : tx.getInputs()) {
-            UTXO utxo = new UTXO(txInput.prevTxHash, txInput.outputIndex);
-            if (!utxoSet.contains(utxo)) {
-                utxoSet.add(utxo);
+
+    /* (4) and (5) with the values summed as doubles */
+    private static ValidationResult checkSums(Transaction.Output[] claimed, ArrayList<Transaction.Output> outputs) {
+        double inputTotal = 0;
+        for (Transaction.Output input : claimed) {
+            inputTotal += input.value;
+        }
+        double outputTotal = 0;
+        for (int i = 0; i < outputs.size(); i++) {
+            double outputValue = outputs.get(i).value;
+            if (outputValue < 0) {
+                return ValidationResult.invalid(ValidationResult.Reason.NEGATIVE_OUTPUT, i);
+            }
+            outputTotal += outputValue;
+        }
+        if (!(inputTotal >= outputTotal)) {
+            return ValidationResult.invalid(ValidationResult.Reason.INSUFFICIENT_INPUT, -1);
+        }
+        return ValidationResult.valid();
+    }
+
+    /* (4) and (5) with the values summed exactly as satoshis, after checking they are whole satoshis */
+    private static ValidationResult checkSatoshiSums(Transaction.Output[] claimed, ArrayList<Transaction.Output> outputs) {
+        long inputTotal = 0;
+        long outputTotal = 0;
+        try {
+            for (Transaction.Output input : claimed) {
+                if (!Amounts.isAmount(input.value)) {
+                    return ValidationResult.invalid(ValidationResult.Reason.INVALID_AMOUNT, -1);
+                }
+                inputTotal = Math.addExact(inputTotal, Amounts.toSatoshis(input.value));
             }
-            else {
-                return true; // double spend if there is a utxo already in the set
+            for (int i = 0; i < outputs.size(); i++) {
+                double outputValue = outputs.get(i).value;
+                if (!Amounts.isAmount(outputValue)) {
+                    return ValidationResult.invalid(ValidationResult.Reason.INVALID_AMOUNT, i);
+                }
+                long satoshis = Amounts.toSatoshis(outputValue);
+                if (satoshis < 0) {
+                    return ValidationResult.invalid(ValidationResult.Reason.NEGATIVE_OUTPUT, i);
+                }
+                outputTotal = Math.addExact(outputTotal, satoshis);
             }
+        } catch (ArithmeticException e) {
+            return ValidationResult.invalid(ValidationResult.Reason.INVALID_AMOUNT, -1);
         }
-        return false; // no double spend
+        if (inputTotal < outputTotal) {
+            return ValidationResult.invalid(ValidationResult.Reason.INSUFFICIENT_INPUT, -1);
+        }
+        return ValidationResult.valid();
     }
+
     /*
-    * (2) The signatures on each input of the transaction are valid
-     */
-    private boolean checkSignatures(Transaction tx) {
-        boolean isValid = false;
-        int i = 0;
-        for (Transaction.Input txInput : tx.getInputs()) {
-            if (txInput.outputIndex >= 0 && txInput.prevTxHash.length > 0) {
-                UTXO utxo = new UTXO(txInput.prevTxHash, txInput.outputIndex);
-                if (utxoPool.contains(utxo)) {
-                    if (utxoPool.getTxOutput(utxo) != null) {
-                        Transaction.Output tOutput = utxoPool.getTxOutput(utxo);
-                        if (tOutput.address != null) {
-                            PublicKey publicKey = tOutput.address;
-                            if (tx.getRawDataToSign(i) != null) {
-                                byte[] message = tx.getRawDataToSign(i);
-                                byte[] signature = txInput.signature;
-                                if (publicKey != null && message != null && signature != null && message.length > 0
-                                        && signature.length > 0) {
-                                    isValid = Crypto.verifySignature(publicKey, message, signature);
-                                    if (!isValid) {
-                                        return false;
-                                    }
-                                } else {
-                                    return false;
-                                }
-                            } else {
-                                return false;
-                            }
-                        } else {
-                            return false;
-                        }
-                    } else {
-                        return false;
+     * (3) No UTXO is claimed multiple times by a Transaction. Small transactions compare their inputs
+     * pairwise, which is cheaper than hashing them into a set.
+     *
+     * @return the index of the first input claiming an already claimed UTXO, or -1
+     */
+    private static int findDuplicateInput(ArrayList<Transaction.Input> inputs) {
+        int numInputs = inputs.size();
+        if (numInputs <= PAIRWISE_DUPLICATE_CHECK) {
+            for (int i = 1; i < numInputs; i++) {
+                Transaction.Input txInput = inputs.get(i);
+                for (int j = 0; j < i; j++) {
+                    Transaction.Input other = inputs.get(j);
+                    if (txInput.outputIndex == other.outputIndex
+                            && Arrays.equals(txInput.prevTxHash, other.prevTxHash)) {
+                        return i;
                     }
-                } else {
-                    return false;
                 }
-                i++;
-            } else {
-                return false;
             }
+            return -1;
         }
-        return true;
+        Set<UTXO> utxoSet = new HashSet<>();
+        for (int i = 0; i < numInputs; i++) {
+            Transaction.Input txInput = inputs.get(i);
+            if (!utxoSet.add(new UTXO(txInput.prevTxHash, txInput.outputIndex))) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     /*
-     * (1) All outputs in the Transaction are in the current UTXO pool
+     * (2) The signature on input {@code index} of the transaction is valid under {@code publicKey}
      */
-   private boolean checkOutputs(Transaction tx) {
-
-        //iterate through all inputs
-        for (Transaction.Input txInput : tx.getInputs()) {
-            UTXO utxoTx = new UTXO(txInput.prevTxHash, txInput.outputIndex);
-            if (!utxoPool.contains(utxoTx)) {
-                return false;
+    private boolean checkSignature(Transaction tx, int index, PublicKey publicKey) {
+        byte[] signature = tx.getInput(index).signature;
+        if (publicKey == null || signature == null || signature.length == 0) {
+            return false;
+        }
+        Boolean verdict = verdicts == null ? null : verdicts.lookup(tx, index, publicKey);
+        if (verdict != null) {
+            return verdict;
+        }
+        byte[] message = tx.getRawDataToSign(index);
+        if (message == null || message.length == 0) {
+            return false;
+        }
+        if (signatureCache != null) {
+            Boolean cached = signatureCache.get(message, signature, publicKey);
+            if (cached != null) {
+                return cached;
             }
         }
-        return true;
+        // outcomes found above cost next to nothing, only verifications are timed
+        long signatureStart = epochMetrics == null ? 0 : System.nanoTime();
+        boolean valid = Crypto.verifySignature(publicKey, message, signature);
+        if (epochMetrics != null) {
+            epochMetrics.signatureNanos += System.nanoTime() - signatureStart;
+        }
+        if (signatureCache != null) {
+            signatureCache.put(message, signature, publicKey, valid);
+        }
+        return valid;
     }
+
     /**
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
@@ -162,84 +456,674 @@ public class TxHandler {
      * accepted in a previous call to  handleTxs() .
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
+        return handleTxs(possibleTxs, null);
+    }
+
+    /**
+     * As {@link #handleTxs(Transaction[])}, using {@code precomputed}, if not null, as the signatures
+     * verified ahead of the apply step instead of verifying them on the verifier pool. This is the
+     * apply stage of an {@link EpochPipeline}.
+     */
+    Transaction[] handleTxs(Transaction[] possibleTxs, SignatureVerdicts precomputed) {
+        long arrival = epochRecorder == null ? 0 : epochRecorder.elapsed();
+        HashMap<ByteBuffer, Integer> epochIndex = indexByHash(possibleTxs);
+        Transaction[] accepted;
+        EpochUndo epochUndo = undoDepth == 0 && utxoStore == null ? null : new EpochUndo();
+        undo = epochUndo;
+        epochMetrics = metrics == null ? null : new TxHandlerMetrics.Epoch();
+        TxHandlerMetrics.Epoch finishedMetrics = epochMetrics;
+        try {
+            if (precomputed != null) {
+                verdicts = precomputed;
+            } else if (verifierPool != null) {
+                long signatureStart = epochMetrics == null ? 0 : System.nanoTime();
+                verdicts = verifySignatures(possibleTxs, epochIndex);
+                if (epochMetrics != null) {
+                    epochMetrics.signatureNanos += System.nanoTime() - signatureStart;
+                }
+            }
+            // after the signatures, which decide which transactions may take part in conflicts
+            boolean[] dropped = conflictPolicy == null ? null : resolveConflicts(possibleTxs, epochIndex);
+            accepted = applyTxs(possibleTxs, epochIndex, dropped);
+            if (spenderIndex != null) {
+                addConflicts(possibleTxs, accepted);
+            }
+            endEpoch();
+        } finally {
+            verdicts = null;
+            undo = null;
+            epochMetrics = null;
+        }
+        commit(accepted, epochUndo);
+        // only once committed, as an epoch the store fails is undone
+        if (finishedMetrics != null) {
+            metrics.record(finishedMetrics, possibleTxs.length, accepted.length);
+        }
+        if (epochRecorder != null) {
+            try {
+                epochRecorder.record(arrival, possibleTxs, accepted);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not record the epoch", e);
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * Validates {@code tx} against the current pool and, if it is valid, applies it at once as an
+     * epoch of its own, recorded for rollback and committed to the UTXOStore like any other. Unlike
+     * handleTxs, a rejected transaction leaves no epoch behind. This is the incremental path a
+     * {@link Mempool} feeds transactions through as they arrive.
+     *
+     * @return the validation outcome of {@code tx}
+     */
+    public ValidationResult submit(Transaction tx) {
+        long arrival = epochRecorder == null ? 0 : epochRecorder.elapsed();
+        ValidationResult result;
+        EpochUndo epochUndo = undoDepth == 0 && utxoStore == null ? null : new EpochUndo();
+        undo = epochUndo;
+        epochMetrics = metrics == null ? null : new TxHandlerMetrics.Epoch();
+        TxHandlerMetrics.Epoch finishedMetrics = epochMetrics;
+        try {
+            result = validateTx(tx);
+            if (!result.isValid()) {
+                if (spenderIndex != null) {
+                    spenderIndex.addConflicts(tx);
+                }
+                if (metrics != null) {
+                    metrics.rejected(result.getReason());
+                }
+                recordSubmit(arrival, tx, false);
+                return result;
+            }
+            updatePool(tx);
+            endEpoch();
+        } finally {
+            undo = null;
+            epochMetrics = null;
+        }
+        commit(new Transaction[]{tx}, epochUndo);
+        if (finishedMetrics != null) {
+            metrics.record(finishedMetrics, 1, 1);
+        }
+        recordSubmit(arrival, tx, true);
+        return result;
+    }
+
+    private void recordSubmit(long arrival, Transaction tx, boolean accepted) {
+        if (epochRecorder != null) {
+            try {
+                epochRecorder.recordSubmit(arrival, tx, accepted);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not record the submitted transaction", e);
+            }
+        }
+    }
+
+    /* Counts the epoch just applied and keeps its undo record, if rollback asks for one */
+    private void endEpoch() {
+        epoch++;
+        if (undo != null && undoDepth > 0) {
+            if (undoLog.size() == undoDepth) {
+                undoLog.removeFirst();
+            }
+            undoLog.addLast(undo);
+        }
+    }
+
+    /*
+     * Commits the epoch just applied to the UTXOStore, if any. If the store fails, the epoch is
+     * undone with epochUndo, so the pool does not hold changes the store lost. The metrics of the
+     * epoch are not recorded yet, so they need no undoing.
+     */
+    private void commit(Transaction[] accepted, EpochUndo epochUndo) {
+        if (utxoStore != null) {
+            try {
+                utxoStore.commit(accepted);
+            } catch (IOException e) {
+                if (undoLog.peekLast() == epochUndo) {
+                    undoLog.removeLast();
+                }
+                epochUndo.undo(utxoPool, spenderIndex);
+                epoch--;
+                throw new UncheckedIOException("Could not persist the epoch, which was undone", e);
+            }
+        }
+    }
+
+    /*
+     * Resolves the output claimed by every input of the epoch, either from the pool or from another
+     * transaction of the epoch, and verifies the input signatures against it on the verifier pool.
+     * Inputs that cannot be resolved here are left to the inline check of the apply step.
+     */
+    private SignatureVerdicts verifySignatures(Transaction[] possibleTxs, HashMap<ByteBuffer, Integer> epochIndex) {
+        SignatureVerdicts result = new SignatureVerdicts();
+        ArrayList<Transaction> txs = new ArrayList<>();
+        ArrayList<Integer> indexes = new ArrayList<>();
+        ArrayList<PublicKey> keys = new ArrayList<>();
+        // the signed data of each input, filled in by the tasks for inputs that are not looked up first
+        ArrayList<byte[]> messages = new ArrayList<>();
+        for (Transaction tx : possibleTxs) {
+            for (int i = 0; i < tx.numInputs(); i++) {
+                Transaction.Input txInput = tx.getInput(i);
+                if (txInput.prevTxHash == null || txInput.outputIndex < 0) {
+                    continue;
+                }
+                Transaction.Output claimed = utxoPool.getTxOutput(txInput.prevTxHash, txInput.outputIndex);
+                if (claimed == null) {
+                    Integer parent = epochIndex.get(ByteBuffer.wrap(txInput.prevTxHash));
+                    claimed = parent == null ? null : possibleTxs[parent].getOutput(txInput.outputIndex);
+                }
+                if (claimed == null || claimed.address == null) {
+                    continue;
+                }
+                byte[] message = null;
+                Boolean cached = null;
+                if (signatureCache != null && txInput.signature != null) {
+                    message = tx.getRawDataToSign(i);
+                    cached = message == null ? null : signatureCache.get(message, txInput.signature, claimed.address);
+                }
+                if (cached != null) {
+                    result.put(tx, i, claimed.address, cached);
+                } else {
+                    txs.add(tx);
+                    indexes.add(i);
+                    keys.add(claimed.address);
+                    messages.add(message);
+                }
+            }
+        }
+        boolean[] valid = new boolean[txs.size()];
+        verifierPool.invoke(new VerifyTask(txs, indexes, keys, messages, valid, 0, valid.length));
+
+        for (int i = 0; i < valid.length; i++) {
+            result.put(txs.get(i), indexes.get(i), keys.get(i), valid[i]);
+            byte[] message = messages.get(i);
+            byte[] signature = txs.get(i).getInput(indexes.get(i)).signature;
+            if (signatureCache != null && message != null && message.length > 0 && signature != null) {
+                signatureCache.put(message, signature, keys.get(i), valid[i]);
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Verifies the signatures in [from, to) of the collected inputs, splitting the range in halves
+     * until it is small enough to verify on the current worker.
+     */
+    private static class VerifyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ArrayList<Transaction> txs;
+        private final ArrayList<Integer> indexes;
+        private final ArrayList<PublicKey> keys;
+        private final ArrayList<byte[]> messages;
+        private final boolean[] valid;
+        private final int from;
+        private final int to;
+
+        VerifyTask(ArrayList<Transaction> txs, ArrayList<Integer> indexes, ArrayList<PublicKey> keys,
+                   ArrayList<byte[]> messages, boolean[] valid, int from, int to) {
+            this.txs = txs;
+            this.indexes = indexes;
+            this.keys = keys;
+            this.messages = messages;
+            this.valid = valid;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= VERIFY_BATCH) {
+                ArrayList<Crypto.VerifyRequest> requests = new ArrayList<>(to - from);
+                for (int i = from; i < to; i++) {
+                    Transaction tx = txs.get(i);
+                    int index = indexes.get(i);
+                    if (messages.get(i) == null) {
+                        // tasks set disjoint elements of a list that is not resized
+                        messages.set(i, tx.getRawDataToSign(index));
+                    }
+                    requests.add(new Crypto.VerifyRequest(keys.get(i), messages.get(i), tx.getInput(index).signature));
+                }
+                Crypto.Verdict[] results = Crypto.verifyAll(requests);
+                for (int i = from; i < to; i++) {
+                    Crypto.VerifyRequest request = requests.get(i - from);
+                    valid[i] = request.getMessage() != null && request.getSignature() != null
+                            && request.getMessage().length > 0 && request.getSignature().length > 0
+                            && results[i - from] == Crypto.Verdict.VALID;
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new VerifyTask(txs, indexes, keys, messages, valid, from, mid),
+                        new VerifyTask(txs, indexes, keys, messages, valid, mid, to));
+            }
+        }
+    }
+
+    /*
+     * Validates the epoch in dependency order: a transaction is checked exactly once, as soon as
+     * every epoch transaction whose outputs it claims has been accepted or rejected. Transactions
+     * without pending parents are taken in array order, and a transaction whose parents come later
+     * in the array is checked right after the last of them, so the result is deterministic.
+     * Transactions flagged in {@code dropped}, if it is not null, are rejected without a check.
+     */
+    private Transaction[] applyTxs(Transaction[] possibleTxs, HashMap<ByteBuffer, Integer> epochIndex, boolean[] dropped) {
+        int n = possibleTxs.length;
+        int[] pendingParents = new int[n];
+        ArrayList<ArrayList<Integer>> children = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            children.add(null);
+        }
+        for (int i = 0; i < n; i++) {
+            for (Transaction.Input txInput : possibleTxs[i].getInputs()) {
+                Integer parent = txInput.prevTxHash == null ? null : epochIndex.get(ByteBuffer.wrap(txInput.prevTxHash));
+                if (parent == null || parent == i) {
+                    continue;
+                }
+                ArrayList<Integer> siblings = children.get(parent);
+                if (siblings == null) {
+                    siblings = new ArrayList<>();
+                    children.set(parent, siblings);
+                }
+                // several inputs may claim outputs of the same parent, count that edge once
+                if (siblings.isEmpty() || siblings.get(siblings.size() - 1) != i) {
+                    siblings.add(i);
+                    pendingParents[i]++;
+                }
+            }
+        }
+
         ArrayList<Transaction> validTransactions = new ArrayList<>();
-        ArrayList<Transaction> reTryTransactions = new ArrayList<>();
-        Set<UTXO> utxoSet = new HashSet<>();
-        for (int i = 0; i < possibleTxs.length; i++) {
-            if (isValidTx(possibleTxs[i])) {
-                Transaction processTransaction = possibleTxs[i];
-                if (!checkDoubleSpend(utxoSet, processTransaction)) {
-                    updatePool(processTransaction);
-                    validTransactions.add(processTransaction);
+        boolean[] resolved = new boolean[n];
+        ArrayDeque<Integer> ready = new ArrayDeque<>();
+        for (int i = 0; i < n; i++) {
+            if (resolved[i] || pendingParents[i] > 0) {
+                continue;
+            }
+            ready.add(i);
+            while (!ready.isEmpty()) {
+                int next = ready.poll();
+                resolved[next] = true;
+                apply(possibleTxs[next], dropped != null && dropped[next], validTransactions);
+                if (children.get(next) != null) {
+                    for (int child : children.get(next)) {
+                        // children further on in the array are picked up by the outer loop
+                        if (--pendingParents[child] == 0 && child < i) {
+                            ready.add(child);
+                            if (epochMetrics != null) {
+                                epochMetrics.deferred++;
+                            }
+                        }
+                    }
                 }
             }
-            //retry later as they are unordered transactions, and some transactions might depend
-            //on others.
-            else {
-                reTryTransactions.add(possibleTxs[i]);
+        }
+        // only reachable through hash cycles, which valid transactions cannot form
+        for (int i = 0; i < n; i++) {
+            if (!resolved[i]) {
+                apply(possibleTxs[i], dropped != null && dropped[i], validTransactions);
             }
         }
-        processFailedTransactions(true, reTryTransactions, validTransactions);
 
         return validTransactions.toArray(new Transaction[validTransactions.size()]);
     }
 
-    private boolean checkDoubleSpend(Set<UTXO> utxoSet, Transaction transaction) {
+    /* Applies tx to the pool and adds it to accepted if it is valid and not dropped */
+    private void apply(Transaction tx, boolean dropped, ArrayList<Transaction> accepted) {
+        if (dropped) {
+            if (epochMetrics != null) {
+                epochMetrics.dropped++;
+            }
+            return;
+        }
+        ValidationResult result = validateTx(tx);
+        if (result.isValid()) {
+            updatePool(tx);
+            accepted.add(tx);
+        } else if (epochMetrics != null) {
+            epochMetrics.rejected(result.getReason());
+        }
+    }
+
+    /* Records the rejected transactions of the epoch once all of its spenders are indexed */
+    private void addConflicts(Transaction[] possibleTxs, Transaction[] accepted) {
+        Set<Transaction> acceptedSet = Collections.newSetFromMap(new IdentityHashMap<Transaction, Boolean>());
+        acceptedSet.addAll(Arrays.asList(accepted));
+        for (Transaction tx : possibleTxs) {
+            if (!acceptedSet.contains(tx)) {
+                spenderIndex.addConflicts(tx);
+            }
+        }
+    }
 
-        for (Transaction.Input txInput : transaction.getInputs()) {
-            UTXO utxo = new UTXO(txInput.prevTxHash, txInput.outputIndex);
-            if (!utxoSet.contains(utxo)) {
-                utxoSet.add(utxo);
+    /*
+     * Walks the epoch in array order, keeping for every claimed output the transaction currently
+     * holding it. When a later transaction claims a held output, the two compete only if they can
+     * (see canCompete): one that cannot is left for validateTx to reject and releases every output it
+     * holds. Of two that can, the conflict policy picks one, and the loser is dropped and releases
+     * every output it holds. Its descendants in the epoch would be rejected in turn, so they are taken
+     * out of the walk at once and release theirs too. A transaction out of the walk takes no part in
+     * later conflicts, so a released output goes to the next transaction claiming it.
+     * <p>
+     * A walk costs time linear in the number of inputs of the epoch. Only a descendant that had
+     * already won an output makes the walk run again, so that the transaction it beat gets the output
+     * back; each run takes out at least one such winner, so an adversarial epoch of k of them costs
+     * k + 1 walks, quadratic at worst.
+     *
+     * @return the transactions dropped, by position in possibleTxs
+     */
+    private boolean[] resolveConflicts(Transaction[] possibleTxs, HashMap<ByteBuffer, Integer> epochIndex) {
+        int n = possibleTxs.length;
+        double[] fees = new double[n];
+        Arrays.fill(fees, Double.NaN);
+        // null until a conflict asks, false for transactions out of the walk
+        Boolean[] competing = new Boolean[n];
+        boolean[] checking = new boolean[n];
+        // built when the first transaction is dropped
+        ArrayList<ArrayList<Integer>> children = null;
+        while (true) {
+            boolean[] dropped = new boolean[n];
+            boolean[] won = new boolean[n];
+            boolean walkAgain = false;
+            HashMap<UTXO, Integer> holders = new HashMap<>();
+            for (int i = 0; i < n; i++) {
+                if (competing[i] == Boolean.FALSE) {
+                    continue;
+                }
+                for (Transaction.Input in : possibleTxs[i].getInputs()) {
+                    if (in.prevTxHash == null) {
+                        continue;
+                    }
+                    UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+                    Integer holder = holders.putIfAbsent(utxo, i);
+                    if (holder == null || holder == i) {
+                        // an output claimed twice by the same transaction is left to validateTx
+                        continue;
+                    }
+                    if (!canCompete(holder, possibleTxs, epochIndex, competing, checking)) {
+                        release(possibleTxs[holder], holder, holders);
+                        holders.put(utxo, i);
+                        continue;
+                    }
+                    if (!canCompete(i, possibleTxs, epochIndex, competing, checking)) {
+                        release(possibleTxs[i], i, holders);
+                        break;
+                    }
+                    if (Double.isNaN(fees[i])) {
+                        fees[i] = fee(possibleTxs[i], possibleTxs, epochIndex);
+                    }
+                    if (Double.isNaN(fees[holder])) {
+                        fees[holder] = fee(possibleTxs[holder], possibleTxs, epochIndex);
+                    }
+                    boolean challengerWins = conflictPolicy.prefers(possibleTxs[i], fees[i], possibleTxs[holder], fees[holder]);
+                    int loser = challengerWins ? holder : i;
+                    won[challengerWins ? i : holder] = true;
+                    dropped[loser] = true;
+                    release(possibleTxs[loser], loser, holders);
+                    if (children == null) {
+                        children = epochChildren(possibleTxs, epochIndex);
+                    }
+                    walkAgain |= takeOutDescendants(loser, possibleTxs, children, competing, dropped, won, holders);
+                    if (loser == i || competing[i] == Boolean.FALSE) {
+                        break;
+                    }
+                    holders.put(utxo, i);
+                }
             }
-            else {
-                return true; // double spend if there is a utxo already in the set
+            if (!walkAgain) {
+                return dropped;
             }
         }
-        return false;
     }
 
-    private ArrayList<Transaction> processFailedTransactions(boolean retry, ArrayList<Transaction> failedTransactions,
-                                                             ArrayList<Transaction> validTransactions) {
+    /*
+     * @return for each epoch transaction, the epoch transactions claiming one of its outputs, or null
+     *         for none
+     */
+    private ArrayList<ArrayList<Integer>> epochChildren(Transaction[] possibleTxs, HashMap<ByteBuffer, Integer> epochIndex) {
+        ArrayList<ArrayList<Integer>> children = new ArrayList<>(possibleTxs.length);
+        for (int i = 0; i < possibleTxs.length; i++) {
+            children.add(null);
+        }
+        for (int i = 0; i < possibleTxs.length; i++) {
+            for (Transaction.Input in : possibleTxs[i].getInputs()) {
+                if (in.prevTxHash == null || utxoPool.contains(in.prevTxHash, in.outputIndex)) {
+                    continue;
+                }
+                Integer parent = epochIndex.get(ByteBuffer.wrap(in.prevTxHash));
+                if (parent == null || parent == i) {
+                    continue;
+                }
+                ArrayList<Integer> siblings = children.get(parent);
+                if (siblings == null) {
+                    siblings = new ArrayList<>();
+                    children.set(parent, siblings);
+                }
+                if (siblings.isEmpty() || siblings.get(siblings.size() - 1) != i) {
+                    siblings.add(i);
+                }
+            }
+        }
+        return children;
+    }
 
-        ArrayList<Transaction> retryTransactions = new ArrayList<>();
-        boolean poolUpdated = false;
+    /*
+     * Takes every descendant of dropped transaction, which is not dropped itself, out of the walk and
+     * releases the outputs it holds
+     *
+     * @return true if one of them had won an output, which the walk must then hand out again
+     */
+    private static boolean takeOutDescendants(int droppedTx, Transaction[] possibleTxs, ArrayList<ArrayList<Integer>> children,
+                                              Boolean[] competing, boolean[] dropped, boolean[] won,
+                                              HashMap<UTXO, Integer> holders) {
+        boolean hadWon = false;
+        ArrayDeque<Integer> pending = new ArrayDeque<>();
+        pending.push(droppedTx);
+        while (!pending.isEmpty()) {
+            ArrayList<Integer> next = children.get(pending.pop());
+            if (next == null) {
+                continue;
+            }
+            for (int child : next) {
+                if (competing[child] == Boolean.FALSE || dropped[child]) {
+                    continue;
+                }
+                hadWon |= won[child];
+                competing[child] = false;
+                release(possibleTxs[child], child, holders);
+                pending.push(child);
+            }
+        }
+        return hadWon;
+    }
 
-        if (!retry) {
-            return validTransactions;
+    /*
+     * @return true if transaction i may compete for an output: it is valid with the outputs it claims
+     *         resolved against the pool or another epoch transaction, signatures included, and every
+     *         epoch transaction it claims from may compete too. Computed once and kept in competing.
+     *         Parents are checked first, walking up with a stack of their own, as epoch chains can be
+     *         longer than the thread stack allows recursion for. A transaction marked in checking,
+     *         which is all false between calls, reads as unable to compete, so a hash cycle cannot be
+     *         valid.
+     */
+    private boolean canCompete(int i, Transaction[] possibleTxs, HashMap<ByteBuffer, Integer> epochIndex,
+                               Boolean[] competing, boolean[] checking) {
+        if (competing[i] != null) {
+            return competing[i];
         }
-        else {
-            for (Transaction retryTransaction : failedTransactions) {
-                if (isValidTx(retryTransaction)) {
-                    updatePool(retryTransaction);
-                    validTransactions.add(retryTransaction);
-                    poolUpdated = true;
+        // each frame is a transaction and the next of its inputs to look for an unchecked parent at
+        ArrayDeque<int[]> stack = new ArrayDeque<>();
+        stack.push(new int[]{i, 0});
+        checking[i] = true;
+        while (!stack.isEmpty()) {
+            int[] frame = stack.peek();
+            ArrayList<Transaction.Input> inputs = possibleTxs[frame[0]].getInputs();
+            int parent = -1;
+            while (parent < 0 && frame[1] < inputs.size()) {
+                Transaction.Input in = inputs.get(frame[1]++);
+                if (in.prevTxHash == null || utxoPool.contains(in.prevTxHash, in.outputIndex)) {
+                    continue;
                 }
-                else {
-                    retryTransactions.add(retryTransaction);
+                Integer claimed = epochIndex.get(ByteBuffer.wrap(in.prevTxHash));
+                if (claimed != null && competing[claimed] == null && !checking[claimed]) {
+                    parent = claimed;
                 }
             }
-            if (poolUpdated) {
-                processFailedTransactions(true, failedTransactions, validTransactions);
+            if (parent >= 0) {
+                checking[parent] = true;
+                stack.push(new int[]{parent, 0});
+            } else {
+                stack.pop();
+                competing[frame[0]] = isValidInEpoch(possibleTxs[frame[0]], possibleTxs, epochIndex, competing);
+                checking[frame[0]] = false;
             }
-            else {
-                processFailedTransactions(false, failedTransactions, validTransactions);
+        }
+        return competing[i];
+    }
+
+    /* Checks tx as validateTx would, once every epoch transaction it claims from has been checked */
+    private boolean isValidInEpoch(Transaction tx, Transaction[] possibleTxs, HashMap<ByteBuffer, Integer> epochIndex,
+                                   Boolean[] competing) {
+        ArrayList<Transaction.Input> inputs = tx.getInputs();
+        if (!checkInputs(inputs).isValid()) {
+            return false;
+        }
+        Transaction.Output[] claimed = new Transaction.Output[inputs.size()];
+        for (int i = 0; i < claimed.length; i++) {
+            Transaction.Input in = inputs.get(i);
+            claimed[i] = utxoPool.getTxOutput(in.prevTxHash, in.outputIndex);
+            if (claimed[i] == null) {
+                Integer parent = epochIndex.get(ByteBuffer.wrap(in.prevTxHash));
+                if (parent == null || competing[parent] != Boolean.TRUE) {
+                    return false;
+                }
+                claimed[i] = possibleTxs[parent].getOutput(in.outputIndex);
+                if (claimed[i] == null) {
+                    return false;
+                }
             }
         }
-        return validTransactions;
+        return checkClaims(tx, claimed).isValid();
+    }
+
+    /* Removes the outputs held by transaction i, which is dropped, from holders */
+    private static void release(Transaction tx, int i, HashMap<UTXO, Integer> holders) {
+        for (Transaction.Input in : tx.getInputs()) {
+            if (in.prevTxHash != null) {
+                holders.remove(new UTXO(in.prevTxHash, in.outputIndex), i);
+            }
+        }
+    }
+
+    /*
+     * @return the fee of tx, with the outputs it claims resolved against the pool or another epoch
+     *         transaction, or negative infinity if one cannot be resolved
+     */
+    private double fee(Transaction tx, Transaction[] possibleTxs, HashMap<ByteBuffer, Integer> epochIndex) {
+        double fee = 0;
+        for (Transaction.Input in : tx.getInputs()) {
+            if (in.prevTxHash == null || in.outputIndex < 0) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            Transaction.Output claimed = utxoPool.getTxOutput(in.prevTxHash, in.outputIndex);
+            if (claimed == null) {
+                Integer parent = epochIndex.get(ByteBuffer.wrap(in.prevTxHash));
+                claimed = parent == null ? null : possibleTxs[parent].getOutput(in.outputIndex);
+                if (claimed == null) {
+                    return Double.NEGATIVE_INFINITY;
+                }
+            }
+            fee += claimed.value;
+        }
+        for (Transaction.Output output : tx.getOutputs()) {
+            fee -= output.value;
+        }
+        return fee;
+    }
+
+    /* Maps the hash of each epoch transaction to the position of its first occurrence */
+    private static HashMap<ByteBuffer, Integer> indexByHash(Transaction[] possibleTxs) {
+        HashMap<ByteBuffer, Integer> epochIndex = new HashMap<>();
+        for (int i = 0; i < possibleTxs.length; i++) {
+            if (possibleTxs[i].getHash() != null && !epochIndex.containsKey(ByteBuffer.wrap(possibleTxs[i].getHash()))) {
+                epochIndex.put(ByteBuffer.wrap(possibleTxs[i].getHash()), i);
+            }
+        }
+        return epochIndex;
     }
 
     private void updatePool(Transaction validTransaction) {
+        long applyStart = epochMetrics == null ? TxHandlerMetrics.Epoch.UNTIMED : epochMetrics.startApply();
 
         ArrayList<Transaction.Input> inputs = validTransaction.getInputs();
         
         for (Transaction.Input txInput : inputs){
-            UTXO removeUtxo = new UTXO(txInput.prevTxHash, txInput.outputIndex); // passes test 15
-            utxoPool.removeUTXO(removeUtxo);
+            if (undo != null) {
+                undo.spent(new UTXO(txInput.prevTxHash, txInput.outputIndex),
+                        utxoPool.getTxOutput(txInput.prevTxHash, txInput.outputIndex));
+            }
+            if (spenderIndex != null) {
+                spenderIndex.addSpender(new UTXO(txInput.prevTxHash, txInput.outputIndex), validTransaction);
+            }
+            utxoPool.removeUTXO(txInput.prevTxHash, txInput.outputIndex); // passes test 15
         }
         for (int i = 0; i < validTransaction.getOutputs().size(); i++) {
             UTXO utxo = new UTXO(validTransaction.getHash(), i);
+            if (undo != null) {
+                // a transaction identical to an earlier one overwrites its outputs
+                undo.created(utxo, utxoPool.getTxOutput(utxo));
+            }
             utxoPool.addUTXO(utxo, validTransaction.getOutput(i));
         }
+        if (epochMetrics != null) {
+            epochMetrics.poolDelta += validTransaction.getOutputs().size() - inputs.size();
+            epochMetrics.endApply(applyStart);
+        }
+    }
+
+    /**
+     * The changes one epoch made to the pool, in the order they were made: a UTXO with its output
+     * for each UTXO spent, and a UTXO with a null output for each UTXO created. Outputs that were
+     * spent are never null, since validateTx rejects inputs without one.
+     */
+    private static class EpochUndo {
+        private final ArrayList<UTXO> utxos = new ArrayList<>();
+        /* The output to put back for each change, or null to remove the UTXO */
+        private final ArrayList<Transaction.Output> outputs = new ArrayList<>();
+        /* The changes that spent a UTXO, rather than created one */
+        private final BitSet spends = new BitSet();
+
+        void spent(UTXO utxo, Transaction.Output output) {
+            spends.set(utxos.size());
+            utxos.add(utxo);
+            outputs.add(output);
+        }
+
+        /* previous is the output utxo held before it was created, or null if it was not in the pool */
+        void created(UTXO utxo, Transaction.Output previous) {
+            utxos.add(utxo);
+            outputs.add(previous);
+        }
+
+        /*
+         * Reverts the changes newest first, so a UTXO created and spent in the epoch ends up as it
+         * was before the epoch, and forgets the spenders of the UTXOs that are unspent again in
+         * spenderIndex, if not null
+         */
+        void undo(UTXOPool utxoPool, SpenderIndex spenderIndex) {
+            for (int i = utxos.size() - 1; i >= 0; i--) {
+                Transaction.Output output = outputs.get(i);
+                if (output == null) {
+                    utxoPool.removeUTXO(utxos.get(i));
+                } else {
+                    utxoPool.addUTXO(utxos.get(i), output);
+                }
+                if (spends.get(i) && spenderIndex != null) {
+                    spenderIndex.remove(utxos.get(i));
+                }
+            }
+        }
     }
 
 
@@ -0,0 +1,303 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Counters and stage latencies of the TxHandlers it is set on through
+ * {@link TxHandler#setMetrics(TxHandlerMetrics)}, read through the getters or exported as an MXBean
+ * with {@link #register(String)}.
+ * <p>
+ * A handler gathers the figures of an epoch in an {@link Epoch} of its own and adds them here once
+ * the epoch is handled, so recording costs a nanoTime call every few transactions and one update
+ * per counter per epoch. Counters are LongAdders, which several handlers can update and any thread can
+ * read without contending, and the stage histograms are locked once per epoch.
+ * <p>
+ * The signature stage is the time spent verifying input signatures, on the verifier pool or inline,
+ * leaving out outcomes found in a SignatureCache. The lookup stage is the time spent resolving inputs
+ * against the pool, and the apply stage the time spent updating the pool with accepted transactions,
+ * both estimated from a sample of the transactions of large epochs.
+ * Signatures verified by the verify stage of an {@link EpochPipeline} are not timed here.
+ */
+public class TxHandlerMetrics implements TxHandlerMetricsMXBean {
+
+    /** The stages of handling an epoch whose latency is recorded */
+    public enum Stage {
+        SIGNATURE, LOOKUP, APPLY
+    }
+
+    /** Percentiles of the time epochs spent in one stage, in nanoseconds */
+    public static class StageLatency {
+        private final long count;
+        private final double mean;
+        private final long p50;
+        private final long p99;
+        private final long p999;
+        private final long max;
+
+        public StageLatency(long count, double mean, long p50, long p99, long p999, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        StageLatency(LatencyHistogram histogram) {
+            this(histogram.getCount(), histogram.getMean(), histogram.getValueAtQuantile(.5),
+                    histogram.getValueAtQuantile(.99), histogram.getValueAtQuantile(.999), histogram.getMax());
+        }
+
+        /** Rebuilds a StageLatency from its JMX form, for MXBean proxies */
+        public static StageLatency from(CompositeData data) {
+            return new StageLatency((Long) data.get("count"), (Double) data.get("mean"), (Long) data.get("p50"),
+                    (Long) data.get("p99"), (Long) data.get("p999"), (Long) data.get("max"));
+        }
+
+        /** @return the number of epochs recorded */
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count %d, mean %.0f, p50 %d, p99 %d, p999 %d, max %d ns",
+                    count, mean, p50, p99, p999, max);
+        }
+    }
+
+    /**
+     * The figures of the epoch a handler is handling, added to its metrics once it is handled. Only
+     * one in SAMPLE_RATE lookups and applies is timed, and the time of the stage is scaled up to all of
+     * them, as these steps are cheap enough that timing every one would double their cost.
+     */
+    static class Epoch {
+        static final int SAMPLE_RATE = 8;
+
+        /** Start time of a lookup or apply that is not timed */
+        static final long UNTIMED = Long.MIN_VALUE;
+
+        final int[] rejections = new int[ValidationResult.Reason.values().length];
+        int dropped;
+        int deferred;
+        int poolDelta;
+        long signatureNanos;
+        private long lookupNanos;
+        private int lookups;
+        private int timedLookups;
+        private long applyNanos;
+        private int applies;
+        private int timedApplies;
+
+        void rejected(ValidationResult.Reason reason) {
+            rejections[reason.ordinal()]++;
+        }
+
+        /** @return the start time of a lookup, or UNTIMED if it is not sampled */
+        long startLookup() {
+            return lookups++ % SAMPLE_RATE == 0 ? System.nanoTime() : UNTIMED;
+        }
+
+        void endLookup(long start) {
+            if (start != UNTIMED) {
+                lookupNanos += System.nanoTime() - start;
+                timedLookups++;
+            }
+        }
+
+        /** @return the start time of an apply, or UNTIMED if it is not sampled */
+        long startApply() {
+            return applies++ % SAMPLE_RATE == 0 ? System.nanoTime() : UNTIMED;
+        }
+
+        void endApply(long start) {
+            if (start != UNTIMED) {
+                applyNanos += System.nanoTime() - start;
+                timedApplies++;
+            }
+        }
+
+        private static long scaled(long nanos, int count, int timed) {
+            return timed == count ? nanos : (long) ((double) nanos * count / timed);
+        }
+    }
+
+    private final LongAdder epochs = new LongAdder();
+    private final LongAdder transactions = new LongAdder();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder deferred = new LongAdder();
+    private final LongAdder poolSize = new LongAdder();
+    private final LongAdder[] rejections = new LongAdder[ValidationResult.Reason.values().length];
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Stage.values().length];
+    private volatile long acceptedLastEpoch;
+
+    /** Creates metrics with every counter at zero */
+    public TxHandlerMetrics() {
+        for (int i = 0; i < rejections.length; i++) {
+            rejections[i] = new LongAdder();
+        }
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /** Adds {@code epoch}, which received {@code transactions} transactions and accepted {@code accepted} */
+    void record(Epoch epoch, int transactions, int accepted) {
+        epochs.increment();
+        this.transactions.add(transactions);
+        this.accepted.add(accepted);
+        acceptedLastEpoch = accepted;
+        for (int i = 0; i < epoch.rejections.length; i++) {
+            if (epoch.rejections[i] != 0) {
+                rejections[i].add(epoch.rejections[i]);
+            }
+        }
+        if (epoch.dropped != 0) {
+            dropped.add(epoch.dropped);
+        }
+        if (epoch.deferred != 0) {
+            deferred.add(epoch.deferred);
+        }
+        if (epoch.poolDelta != 0) {
+            poolSize.add(epoch.poolDelta);
+        }
+        record(Stage.SIGNATURE, epoch.signatureNanos);
+        record(Stage.LOOKUP, Epoch.scaled(epoch.lookupNanos, epoch.lookups, epoch.timedLookups));
+        record(Stage.APPLY, Epoch.scaled(epoch.applyNanos, epoch.applies, epoch.timedApplies));
+    }
+
+    /** Counts a transaction rejected outside an epoch, by submit */
+    void rejected(ValidationResult.Reason reason) {
+        transactions.increment();
+        rejections[reason.ordinal()].increment();
+    }
+
+    /** Adds {@code delta} UTXOs to the pool size, as a handler attaches, detaches or rolls back */
+    void addPoolSize(long delta) {
+        poolSize.add(delta);
+    }
+
+    private void record(Stage stage, long nanos) {
+        LatencyHistogram histogram = latencies[stage.ordinal()];
+        synchronized (histogram) {
+            histogram.record(nanos);
+        }
+    }
+
+    @Override
+    public long getEpochs() {
+        return epochs.sum();
+    }
+
+    @Override
+    public long getTransactions() {
+        return transactions.sum();
+    }
+
+    @Override
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    @Override
+    public long getAcceptedLastEpoch() {
+        return acceptedLastEpoch;
+    }
+
+    @Override
+    public double getAcceptedPerEpoch() {
+        long epochs = getEpochs();
+        return epochs == 0 ? 0 : (double) getAccepted() / epochs;
+    }
+
+    /** @return the number of transactions rejected for breaking {@code reason} */
+    public long getRejections(ValidationResult.Reason reason) {
+        return rejections[reason.ordinal()].sum();
+    }
+
+    @Override
+    public Map<String, Long> getRejections() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (ValidationResult.Reason reason : ValidationResult.Reason.values()) {
+            if (reason != ValidationResult.Reason.VALID) {
+                result.put(reason.name(), getRejections(reason));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public long getDeferred() {
+        return deferred.sum();
+    }
+
+    @Override
+    public long getPoolSize() {
+        return poolSize.sum();
+    }
+
+    /** @return a copy of the histogram of the time epochs spent in {@code stage}, in nanoseconds */
+    public LatencyHistogram getLatency(Stage stage) {
+        LatencyHistogram histogram = latencies[stage.ordinal()];
+        synchronized (histogram) {
+            return histogram.copy();
+        }
+    }
+
+    @Override
+    public StageLatency getSignatureLatency() {
+        return new StageLatency(getLatency(Stage.SIGNATURE));
+    }
+
+    @Override
+    public StageLatency getLookupLatency() {
+        return new StageLatency(getLatency(Stage.LOOKUP));
+    }
+
+    @Override
+    public StageLatency getApplyLatency() {
+        return new StageLatency(getLatency(Stage.APPLY));
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server as {@code ledger:type=TxHandler,name=<name>}
+     *
+     * @return the name registered
+     * @throws JMException if the name is malformed or already registered
+     */
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = new ObjectName("ledger:type=TxHandler,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+}
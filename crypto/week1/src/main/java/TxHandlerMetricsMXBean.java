@@ -0,0 +1,40 @@
+import java.util.Map;
+
+/**
+ * Management interface of {@link TxHandlerMetrics}, as exported over JMX. Latencies are the time one
+ * epoch spent in a stage, in nanoseconds.
+ */
+public interface TxHandlerMetricsMXBean {
+
+    /** @return the number of epochs handled, counting each transaction accepted through submit as one */
+    long getEpochs();
+
+    /** @return the number of transactions received, by handleTxs or submit */
+    long getTransactions();
+
+    long getAccepted();
+
+    /** @return the number of transactions accepted by the last epoch */
+    long getAcceptedLastEpoch();
+
+    /** @return the mean number of transactions accepted per epoch */
+    double getAcceptedPerEpoch();
+
+    /** @return the number of transactions rejected for each broken rule, by rule name */
+    Map<String, Long> getRejections();
+
+    /** @return the number of transactions dropped by the conflict policy without being checked */
+    long getDropped();
+
+    /** @return the number of transactions checked after an epoch transaction placed later that they spend */
+    long getDeferred();
+
+    /** @return the number of UTXOs in the pools of the handlers reporting here */
+    long getPoolSize();
+
+    TxHandlerMetrics.StageLatency getSignatureLatency();
+
+    TxHandlerMetrics.StageLatency getLookupLatency();
+
+    TxHandlerMetrics.StageLatency getApplyLatency();
+}
@@ -8,6 +8,9 @@ public class UTXO implements Comparable<UTXO> {
     /** Index of the corresponding output in said transaction */
     private int index;
 
+    /** hashCode of this UTXO, computed once since a UTXO is hashed on every pool probe */
+    private int hash;
+
     /**
      * Creates a new UTXO corresponding to the output with index <index> in the transaction whose
      * hash is {@code txHash}
@@ -15,6 +18,35 @@ public class UTXO implements Comparable<UTXO> {
     public UTXO(byte[] txHash, int index) {
         this.txHash = Arrays.copyOf(txHash, txHash.length);
         this.index = index;
+        this.hash = computeHash();
+    }
+
+    /** Lookup key of each thread, so lookups by hash and index allocate nothing yet share no state */
+    private static final ThreadLocal<UTXO> PROBES = ThreadLocal.withInitial(UTXO::new);
+
+    /** Creates an empty lookup key, to be pointed at an output with {@link #reset(byte[], int)} */
+    UTXO() {
+    }
+
+    /**
+     * Points this lookup key at output {@code index} of the transaction whose hash is
+     * {@code txHash}, sharing the array instead of copying it. Only for keys used to probe a pool,
+     * never for UTXOs added to one.
+     */
+    UTXO reset(byte[] txHash, int index) {
+        this.txHash = txHash;
+        this.index = index;
+        this.hash = computeHash();
+        return this;
+    }
+
+    /**
+     * @return the lookup key of the calling thread, pointed at output {@code index} of the
+     *         transaction whose hash is {@code txHash}. It stays valid until the thread's next call,
+     *         so it must only be passed to a lookup, never kept.
+     */
+    static UTXO probe(byte[] txHash, int index) {
+        return PROBES.get().reset(txHash, index);
     }
 
     /** @return the transaction hash of this UTXO */
@@ -40,6 +72,8 @@ public class UTXO implements Comparable<UTXO> {
         }
 
         UTXO utxo = (UTXO) other;
+        if (utxo.hash != this.hash)
+            return false;
         byte[] hash = utxo.txHash;
         int in = utxo.index;
         if (hash.length != txHash.length || index != in)
@@ -56,6 +90,10 @@ public class UTXO implements Comparable<UTXO> {
      * utxo1.equals(utxo2) => utxo1.hashCode() == utxo2.hashCode())
      */
     public int hashCode() {
+        return hash;
+    }
+
+    private int computeHash() {
         int hash = 1;
         hash = hash * 17 + index;
         hash = hash * 31 + Arrays.hashCode(txHash);
@@ -16,7 +16,20 @@ public class UTXOPool {
 
     /** Creates a new UTXOPool that is a copy of {@code uPool} */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        if (uPool.getClass() == UTXOPool.class) {
+            H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        } else {
+            // subclasses keep their UTXOs elsewhere, go through the public contract
+            H = new HashMap<UTXO, Transaction.Output>();
+            for (UTXO ut : uPool.getAllUTXO()) {
+                H.put(ut, uPool.getTxOutput(ut));
+            }
+        }
+    }
+
+    /** @return a copy of this pool, of the same kind as this pool */
+    public UTXOPool copy() {
+        return new UTXOPool(this);
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
@@ -42,6 +55,38 @@ public class UTXOPool {
         return H.containsKey(utxo);
     }
 
+    /**
+     * @return true if output {@code index} of the transaction whose hash is {@code txHash} is in the
+     *         pool, like {@code contains(new UTXO(txHash, index))} without creating the UTXO
+     */
+    public boolean contains(byte[] txHash, int index) {
+        return txHash != null && H.containsKey(UTXO.probe(txHash, index));
+    }
+
+    /**
+     * @return the transaction output of output {@code index} of the transaction whose hash is
+     *         {@code txHash}, or null if it is not in the pool, like
+     *         {@code getTxOutput(new UTXO(txHash, index))} without creating the UTXO
+     */
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        return txHash == null ? null : H.get(UTXO.probe(txHash, index));
+    }
+
+    /**
+     * Removes output {@code index} of the transaction whose hash is {@code txHash} from the pool, like
+     * {@code removeUTXO(new UTXO(txHash, index))} without creating the UTXO
+     */
+    public void removeUTXO(byte[] txHash, int index) {
+        if (txHash != null) {
+            H.remove(UTXO.probe(txHash, index));
+        }
+    }
+
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        return H.size();
+    }
+
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
         Set<UTXO> setUTXO = H.keySet();
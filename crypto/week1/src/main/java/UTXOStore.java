@@ -0,0 +1,461 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Keeps a UTXOPool on disk, so a restart recovers it instead of replaying all history.
+ * <p>
+ * The store directory holds a snapshot of the pool as of some epoch and a write-ahead log of the
+ * epochs committed since. Each log record holds, in order, the UTXOs one epoch spent and created.
+ * A record is followed by its CRC32, so a record torn by a crash is detected and dropped. Every
+ * {@code snapshotEveryEpochs} epochs, or on {@link #snapshot()}, the pool is written to a new
+ * snapshot that replaces the old one atomically, and the log is emptied.
+ * <p>
+ * {@link #open(Path, Options)} loads the snapshot and replays the complete records of the log,
+ * recovering the pool of the last committed epoch. How durable a commit is depends on the
+ * {@link Options}: by default every epoch is written and forced to disk before commit returns.
+ * Group commit buffers several epochs and writes them with a single write and force, so a crash
+ * loses at most the epochs still buffered. Without fsync the log only survives process crashes.
+ * <p>
+ * The store keeps the pool of the last committed epoch in memory, to write snapshots from, so a
+ * TxHandler committing to it holds the UTXOs twice: once in its own pool and once here.
+ * <p>
+ * An instance must not be used by several threads at once.
+ */
+public class UTXOStore implements Closeable {
+
+    private static final String SNAPSHOT = "utxo.snapshot";
+    private static final String SNAPSHOT_TMP = "utxo.snapshot.tmp";
+    private static final String LOG = "utxo.log";
+
+    private static final int SNAPSHOT_MAGIC = 0x5554584f;
+    private static final int NULL_LENGTH = -1;
+
+    private static final byte SPEND = 0;
+    private static final byte CREATE = 1;
+
+    /** Transaction.Output is an inner class, so recovered outputs need an enclosing transaction */
+    private static final Transaction OUTPUTS = new Transaction();
+
+    /** How a store makes epochs durable */
+    public static class Options {
+        private int groupCommitEpochs = 1;
+        private boolean fsync = true;
+        private int snapshotEveryEpochs = 0;
+
+        /** Buffers {@code epochs} committed epochs before writing them to the log, 1 by default */
+        public Options setGroupCommitEpochs(int epochs) {
+            if (epochs <= 0) {
+                throw new IllegalArgumentException("Group commit must hold at least one epoch: " + epochs);
+            }
+            this.groupCommitEpochs = epochs;
+            return this;
+        }
+
+        /** Forces every write of the log to disk, true by default */
+        public Options setFsync(boolean fsync) {
+            this.fsync = fsync;
+            return this;
+        }
+
+        /** Takes a snapshot every {@code epochs} committed epochs, or never for 0, the default */
+        public Options setSnapshotEveryEpochs(int epochs) {
+            if (epochs < 0) {
+                throw new IllegalArgumentException("Snapshot interval must not be negative: " + epochs);
+            }
+            this.snapshotEveryEpochs = epochs;
+            return this;
+        }
+    }
+
+    private final Path directory;
+    private final Options options;
+    private final UTXOPool pool;
+    private final FileChannel log;
+
+    /** The last epoch committed, and the last one written to the snapshot */
+    private long epoch;
+    private long snapshotEpoch;
+
+    /** Records of the committed epochs not yet written to the log */
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private int pendingEpochs;
+
+    private UTXOStore(Path directory, Options options, UTXOPool pool, long epoch, long snapshotEpoch,
+                      FileChannel log) {
+        this.directory = directory;
+        this.options = options;
+        this.pool = pool;
+        this.epoch = epoch;
+        this.snapshotEpoch = snapshotEpoch;
+        this.log = log;
+    }
+
+    /**
+     * Opens the store in {@code directory}, creating it if needed, and recovers the pool of the last
+     * committed epoch. A torn record at the end of the log is truncated away.
+     *
+     * @throws IOException if the files cannot be read, or the snapshot is damaged
+     */
+    public static UTXOStore open(Path directory, Options options) throws IOException {
+        Files.createDirectories(directory);
+        Files.deleteIfExists(directory.resolve(SNAPSHOT_TMP));
+        UTXOPool pool = new UTXOPool();
+        Map<ByteBuffer, PublicKey> addresses = new HashMap<>();
+        long snapshotEpoch = 0;
+        Path snapshot = directory.resolve(SNAPSHOT);
+        if (Files.exists(snapshot)) {
+            snapshotEpoch = readSnapshot(snapshot, pool, addresses);
+        }
+        FileChannel log = FileChannel.open(directory.resolve(LOG), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long epoch = replay(log, pool, snapshotEpoch, addresses);
+            return new UTXOStore(directory, options, pool, epoch, snapshotEpoch, log);
+        } catch (IOException | RuntimeException e) {
+            log.close();
+            throw e;
+        }
+    }
+
+    /** @return the number of epochs committed to this store since it was created */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /** @return a copy of the pool as of the last committed epoch */
+    public UTXOPool getUtxoPool() {
+        return new UTXOPool(pool);
+    }
+
+    /**
+     * Commits the epoch that accepted {@code acceptedTxs}, in order: the UTXOs their inputs spend
+     * and their outputs create. The epoch is durable when this returns, unless the options buffer it
+     * for group commit or skip fsync. A snapshot that is due is taken first, of the epochs before.
+     *
+     * @throws IOException if the epoch could not be written, in which case it is not committed and
+     *                     the store is left as it was
+     */
+    public void commit(Transaction[] acceptedTxs) throws IOException {
+        if (options.snapshotEveryEpochs > 0 && epoch - snapshotEpoch >= options.snapshotEveryEpochs) {
+            snapshot();
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeLong(epoch + 1);
+        int ops = 0;
+        for (Transaction tx : acceptedTxs) {
+            ops += tx.numInputs() + tx.numOutputs();
+        }
+        record.writeInt(ops);
+        for (Transaction tx : acceptedTxs) {
+            for (Transaction.Input in : tx.getInputs()) {
+                record.writeByte(SPEND);
+                writeBytes(record, in.prevTxHash);
+                record.writeInt(in.outputIndex);
+            }
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                Transaction.Output op = tx.getOutput(i);
+                record.writeByte(CREATE);
+                writeBytes(record, tx.getHash());
+                record.writeInt(i);
+                writeOutput(record, op);
+            }
+        }
+        record.flush();
+
+        int pendingSize = pending.size();
+        DataOutputStream framed = new DataOutputStream(pending);
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        framed.writeInt(bytes.size());
+        bytes.writeTo(framed);
+        framed.writeInt((int) crc.getValue());
+        framed.flush();
+        pendingEpochs++;
+        if (pendingEpochs >= options.groupCommitEpochs) {
+            try {
+                flush();
+            } catch (IOException e) {
+                // the epochs buffered before stay buffered, as they were committed already
+                byte[] buffered = pending.toByteArray();
+                pending.reset();
+                pending.write(buffered, 0, pendingSize);
+                pendingEpochs--;
+                throw e;
+            }
+        }
+
+        for (Transaction tx : acceptedTxs) {
+            for (Transaction.Input in : tx.getInputs()) {
+                pool.removeUTXO(in.prevTxHash, in.outputIndex);
+            }
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                pool.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+            }
+        }
+        epoch++;
+    }
+
+    /**
+     * Writes the epochs buffered for group commit to the log, forcing it to disk if fsync is on. If
+     * that fails, the part written is cut off the log and the epochs stay buffered.
+     */
+    public void flush() throws IOException {
+        if (pendingEpochs == 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+        long size = log.size();
+        try {
+            log.position(size);
+            while (buffer.hasRemaining()) {
+                log.write(buffer);
+            }
+            if (options.fsync) {
+                log.force(false);
+            }
+        } catch (IOException e) {
+            try {
+                log.truncate(size);
+            } catch (IOException suppressed) {
+                // recovery drops a torn record anyway
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        pending.reset();
+        pendingEpochs = 0;
+    }
+
+    /**
+     * Writes the pool of the last committed epoch to a new snapshot, replaces the old snapshot with
+     * it and empties the log. The snapshot is forced to disk before it replaces the old one, so a
+     * crash leaves either snapshot together with a log that completes it.
+     */
+    public void snapshot() throws IOException {
+        flush();
+        Path tmp = directory.resolve(SNAPSHOT_TMP);
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel)), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(epoch);
+            // addresses repeat across UTXOs, so the snapshot lists each once and refers to it by id
+            ArrayList<UTXO> utxos = pool.getAllUTXO();
+            HashMap<PublicKey, Integer> addressIds = new HashMap<>();
+            ArrayList<PublicKey> addresses = new ArrayList<>();
+            for (UTXO ut : utxos) {
+                PublicKey address = pool.getTxOutput(ut).address;
+                if (address != null && !addressIds.containsKey(address)) {
+                    addressIds.put(address, addresses.size());
+                    addresses.add(address);
+                }
+            }
+            out.writeInt(addresses.size());
+            for (PublicKey address : addresses) {
+                writeBytes(out, address.getEncoded());
+            }
+            out.writeInt(utxos.size());
+            for (UTXO ut : utxos) {
+                Transaction.Output op = pool.getTxOutput(ut);
+                writeBytes(out, ut.getTxHash());
+                out.writeInt(ut.getIndex());
+                out.writeDouble(op.value);
+                out.writeInt(op.address == null ? NULL_LENGTH : addressIds.get(op.address));
+            }
+            out.flush();
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, directory.resolve(SNAPSHOT), StandardCopyOption.ATOMIC_MOVE);
+        // records up to epoch are in the snapshot now, replay skips them if truncating fails
+        log.truncate(0);
+        if (options.fsync) {
+            log.force(true);
+        }
+        snapshotEpoch = epoch;
+    }
+
+    /** Writes the epochs buffered for group commit and closes the log */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            log.close();
+        }
+    }
+
+    /* Loads the snapshot into pool and returns its epoch */
+    private static long readSnapshot(Path snapshot, UTXOPool pool, Map<ByteBuffer, PublicKey> addresses)
+            throws IOException {
+        try (InputStream file = Files.newInputStream(snapshot)) {
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(file), new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a UTXO snapshot: " + snapshot);
+            }
+            long epoch = in.readLong();
+            PublicKey[] table = new PublicKey[in.readInt()];
+            for (int i = 0; i < table.length; i++) {
+                table[i] = readAddress(readBytes(in), addresses);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte[] txHash = readBytes(in);
+                int index = in.readInt();
+                double value = in.readDouble();
+                int addressId = in.readInt();
+                if (addressId < NULL_LENGTH || addressId >= table.length) {
+                    throw new IOException("Invalid address id " + addressId + " in UTXO snapshot");
+                }
+                PublicKey address = addressId == NULL_LENGTH ? null : table[addressId];
+                pool.addUTXO(new UTXO(txHash, index), OUTPUTS.new Output(value, address));
+            }
+            int expected = (int) checked.getChecksum().getValue();
+            if (in.readInt() != expected) {
+                throw new IOException("Damaged UTXO snapshot: " + snapshot);
+            }
+            return epoch;
+        } catch (EOFException e) {
+            throw new IOException("Truncated UTXO snapshot: " + snapshot, e);
+        }
+    }
+
+    /*
+     * Applies the complete records of the log after snapshotEpoch to pool, truncates the log after
+     * the last of them and returns the last epoch applied
+     */
+    private static long replay(FileChannel log, UTXOPool pool, long snapshotEpoch,
+                               Map<ByteBuffer, PublicKey> addresses) throws IOException {
+        long epoch = snapshotEpoch;
+        long valid = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(log.position(0))));
+        while (true) {
+            byte[] record;
+            try {
+                int length = in.readInt();
+                if (length < 0 || length > log.size() - valid) {
+                    break;
+                }
+                record = new byte[length];
+                in.readFully(record);
+                CRC32 crc = new CRC32();
+                crc.update(record);
+                if (in.readInt() != (int) crc.getValue()) {
+                    break;
+                }
+            } catch (EOFException e) {
+                break;
+            }
+            DataInputStream ops = new DataInputStream(new ByteArrayInputStream(record));
+            long recordEpoch = ops.readLong();
+            if (recordEpoch > epoch) {
+                if (recordEpoch != epoch + 1) {
+                    throw new IOException("UTXO log skips from epoch " + epoch + " to " + recordEpoch);
+                }
+                applyRecord(ops, pool, addresses);
+                epoch = recordEpoch;
+            }
+            valid += 4 + record.length + 4;
+        }
+        if (valid < log.size()) {
+            log.truncate(valid);
+            log.force(true);
+        }
+        return epoch;
+    }
+
+    private static void applyRecord(DataInputStream ops, UTXOPool pool, Map<ByteBuffer, PublicKey> addresses)
+            throws IOException {
+        int count = ops.readInt();
+        for (int i = 0; i < count; i++) {
+            byte kind = ops.readByte();
+            byte[] txHash = readBytes(ops);
+            int index = ops.readInt();
+            if (kind == SPEND) {
+                pool.removeUTXO(txHash, index);
+            } else if (kind == CREATE) {
+                pool.addUTXO(new UTXO(txHash, index), readOutput(ops, addresses));
+            } else {
+                throw new IOException("Unknown UTXO log operation " + kind);
+            }
+        }
+    }
+
+    private static void writeOutput(DataOutputStream out, Transaction.Output op) throws IOException {
+        out.writeDouble(op.value);
+        writeBytes(out, op.address == null ? null : op.address.getEncoded());
+    }
+
+    private static Transaction.Output readOutput(DataInputStream in, Map<ByteBuffer, PublicKey> addresses)
+            throws IOException {
+        double value = in.readDouble();
+        return OUTPUTS.new Output(value, readAddress(readBytes(in), addresses));
+    }
+
+    /* Builds the address encoded as encoded, once per recovery for each distinct address */
+    private static PublicKey readAddress(byte[] encoded, Map<ByteBuffer, PublicKey> addresses) throws IOException {
+        if (encoded == null) {
+            return null;
+        }
+        PublicKey address = addresses.get(ByteBuffer.wrap(encoded));
+        if (address == null) {
+            try {
+                address = TransactionCodec.decodeAddress(encoded);
+            } catch (InvalidKeySpecException e) {
+                throw new IOException("Invalid address in UTXO store", e);
+            }
+            addresses.put(ByteBuffer.wrap(encoded), address);
+        }
+        return address;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(NULL_LENGTH);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        if (length < 0) {
+            throw new IOException("Invalid length " + length + " in UTXO store");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
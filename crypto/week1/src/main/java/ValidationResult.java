@@ -0,0 +1,72 @@
+/**
+ * Outcome of validating a transaction against a UTXO pool. An invalid result carries the rule the
+ * transaction broke and, where it applies, the index of the offending input or output.
+ */
+public class ValidationResult {
+
+    /** The rule a transaction was rejected for, or VALID */
+    public enum Reason {
+        VALID,
+        /** an input has no previous transaction hash or a negative output index */
+        MALFORMED_INPUT,
+        /** (3) the same UTXO is claimed by more than one input */
+        DUPLICATE_INPUT,
+        /** (1) an input claims an output that is not in the current UTXO pool */
+        MISSING_INPUT,
+        /** (4) an output value is negative */
+        NEGATIVE_OUTPUT,
+        /** (5) the sum of the output values exceeds the sum of the input values */
+        INSUFFICIENT_INPUT,
+        /** (2) an input signature is missing or does not verify */
+        INVALID_SIGNATURE,
+        /**
+         * with satoshi amounts, an output value (at its index) or a claimed input value (at -1) is
+         * not a whole number of satoshis, or the sums of the values overflow
+         */
+        INVALID_AMOUNT
+    }
+
+    private static final ValidationResult VALID = new ValidationResult(Reason.VALID, -1);
+
+    private final Reason reason;
+    private final int index;
+
+    private ValidationResult(Reason reason, int index) {
+        this.reason = reason;
+        this.index = index;
+    }
+
+    /** @return the shared result of a valid transaction */
+    public static ValidationResult valid() {
+        return VALID;
+    }
+
+    /**
+     * @return a result rejecting a transaction for {@code reason} at input or output {@code index},
+     *         or -1 if the rule is not tied to one of them
+     */
+    public static ValidationResult invalid(Reason reason, int index) {
+        if (reason == Reason.VALID) {
+            throw new IllegalArgumentException("An invalid result needs a rejection reason");
+        }
+        return new ValidationResult(reason, index);
+    }
+
+    public boolean isValid() {
+        return reason == Reason.VALID;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+    /** @return the index of the input or output that broke the rule, or -1 */
+    public int getIndex() {
+        return index;
+    }
+
+    @Override
+    public String toString() {
+        return index < 0 ? reason.toString() : reason + "@" + index;
+    }
+}
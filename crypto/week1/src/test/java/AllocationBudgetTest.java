@@ -0,0 +1,142 @@
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Allocation budgets of the validation paths, measured with the allocation counter of the current
+ * thread. Each path runs ROUNDS times and the smallest round counts, so class loading and code that
+ * is not compiled yet do not. A budget is overridden with the system property
+ * {@code allocation.budget.<name>}, e.g. {@code gradle test -Dallocation.budget.handleTxs=70000}.
+ * Signatures are taken from a SignatureCache, leaving out the allocations of the RSA provider, which
+ * depend on the JDK.
+ * <p>
+ * Test Strategy:
+ * Test 1: test validateTx() of a valid transaction stays within its budget of bytes per transaction
+ * Test 2: test handleTxs() of an epoch of valid transactions stays within its budget of bytes per epoch
+ * Test 3: test pool lookups by transaction hash and output index allocate nothing
+ */
+public class AllocationBudgetTest {
+
+    /** Bytes per transaction validated, 512 when last measured on JDK 17, mostly its signed data */
+    private static final long VALIDATE_TX_BUDGET = Long.getLong("allocation.budget.validateTx", 768);
+
+    /** Bytes per epoch of EPOCH_SIZE transactions, 46872 when last measured on JDK 17 */
+    private static final long HANDLE_TXS_BUDGET = Long.getLong("allocation.budget.handleTxs", 64 * 1024);
+
+    /** Bytes per pool lookup */
+    private static final long LOOKUP_BUDGET = Long.getLong("allocation.budget.lookup", 0);
+
+    private static final int ROUNDS = 10;
+    private static final int EPOCHS = 6;
+    private static final int EPOCH_SIZE = 50;
+
+    private static com.sun.management.ThreadMXBean threads;
+    private static Transaction root;
+    private static UTXOPool utxoPool;
+    private static Transaction[][] epochs;
+    private static SignatureCache signatureCache;
+
+    @BeforeClass
+    public static void createEpochs() throws GeneralSecurityException {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        KeyPair owner = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        double[] values = new double[EPOCHS * EPOCH_SIZE];
+        Arrays.fill(values, 1);
+        root = TxFixtures.coinbase(owner, values);
+        utxoPool = TxFixtures.poolOf(root);
+        epochs = new Transaction[EPOCHS][EPOCH_SIZE];
+        signatureCache = new SignatureCache(values.length);
+        TxHandler verifier = new TxHandler(utxoPool);
+        verifier.setSignatureCache(signatureCache);
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        for (int i = 0; i < values.length; i++) {
+            Transaction tx = new Transaction();
+            tx.addInput(root.getHash(), i);
+            tx.addOutput(1, owner.getPublic());
+            signature.initSign(owner.getPrivate());
+            signature.update(tx.getRawDataToSign(0));
+            tx.addSignature(signature.sign(), 0);
+            tx.finalize();
+            epochs[i / EPOCH_SIZE][i % EPOCH_SIZE] = tx;
+            // fills the cache, so the measured calls verify no signature
+            assertTrue(verifier.isValidTx(tx));
+        }
+    }
+
+    private static long allocatedBytes() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // Test 1: test validateTx() of a valid transaction stays within its budget of bytes per transaction
+    @Test
+    public void testValidateTxBudget() {
+        TxHandler txHandler = new TxHandler(utxoPool);
+        txHandler.setSignatureCache(signatureCache);
+        long least = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long before = allocatedBytes();
+            for (Transaction[] epoch : epochs) {
+                for (Transaction tx : epoch) {
+                    txHandler.validateTx(tx);
+                }
+            }
+            least = Math.min(least, (allocatedBytes() - before) / (EPOCHS * EPOCH_SIZE));
+        }
+        assertTrue("validateTx allocates " + least + " bytes per transaction, over its budget of "
+                + VALIDATE_TX_BUDGET, least <= VALIDATE_TX_BUDGET);
+    }
+
+    // Test 2: test handleTxs() of an epoch of valid transactions stays within its budget of bytes per epoch
+    @Test
+    public void testHandleTxsBudget() {
+        long least = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            TxHandler txHandler = new TxHandler(utxoPool);
+            txHandler.setSignatureCache(signatureCache);
+            long accepted = 0;
+            long before = allocatedBytes();
+            for (Transaction[] epoch : epochs) {
+                accepted += txHandler.handleTxs(epoch).length;
+            }
+            least = Math.min(least, (allocatedBytes() - before) / EPOCHS);
+            assertEquals(EPOCHS * EPOCH_SIZE, accepted);
+        }
+        assertTrue("handleTxs allocates " + least + " bytes per epoch of " + EPOCH_SIZE
+                + " transactions, over its budget of " + HANDLE_TXS_BUDGET, least <= HANDLE_TXS_BUDGET);
+    }
+
+    // Test 3: test pool lookups by transaction hash and output index allocate nothing
+    @Test
+    public void testLookupBudget() {
+        byte[] txHash = root.getHash();
+        int lookups = EPOCHS * EPOCH_SIZE;
+        long least = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            int found = 0;
+            long before = allocatedBytes();
+            for (int i = 0; i < lookups; i++) {
+                if (utxoPool.contains(txHash, i) && utxoPool.getTxOutput(txHash, i) != null) {
+                    found++;
+                }
+            }
+            least = Math.min(least, allocatedBytes() - before);
+            assertEquals(lookups, found);
+        }
+        assertTrue("A pool lookup allocates " + (double) least / (2 * lookups) + " bytes, over its budget of "
+                + LOOKUP_BUDGET, least <= LOOKUP_BUDGET * 2 * lookups);
+    }
+}
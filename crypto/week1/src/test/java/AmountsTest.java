@@ -0,0 +1,120 @@
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link Amounts}
+ * <p>
+ * Test Strategy:
+ * Test 1: test satoshi amounts convert to coins and back exactly, and other doubles are rejected
+ * Test 2: test sum() adds amounts exactly across blocks and rejects amounts out of range
+ * Test 3: test handleTxs() sums satoshi amounts exactly where doubles round, and signs them as longs
+ */
+public class AmountsTest {
+
+    // Test 1: test satoshi amounts convert to coins and back exactly, and other doubles are rejected
+    @Test
+    public void testConversions() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            long satoshis = (long) (random.nextDouble() * Amounts.MAX_SATOSHIS) * (random.nextBoolean() ? 1 : -1);
+            assertEquals(satoshis, Amounts.toSatoshis(Amounts.toCoins(satoshis)));
+        }
+        assertEquals(Amounts.MAX_SATOSHIS, Amounts.toSatoshis(21000000));
+        assertEquals(30000000, Amounts.toSatoshis(0.3));
+
+        assertFalse(Amounts.isAmount(0.1 + 0.2));
+        assertFalse(Amounts.isAmount(0.000000001));
+        assertFalse(Amounts.isAmount(Double.NaN));
+        assertFalse(Amounts.isAmount(Double.POSITIVE_INFINITY));
+        assertFalse(Amounts.isAmount(21000000.00000001));
+        try {
+            Amounts.toCoins(Amounts.MAX_SATOSHIS + 1);
+            fail("amounts above MAX_SATOSHIS do not exist");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    // Test 2: test sum() adds amounts exactly across blocks and rejects amounts out of range
+    @Test
+    public void testSum() {
+        long[] amounts = new long[10000];
+        Arrays.fill(amounts, Amounts.MAX_SATOSHIS);
+        assertEquals(Amounts.MAX_SATOSHIS * 4000, Amounts.sum(amounts, 0, 4000));
+        assertEquals(Amounts.MAX_SATOSHIS * 10, Amounts.sum(amounts, 4090, 4100));
+        try {
+            Amounts.sum(amounts);
+            fail("10000 times MAX_SATOSHIS overflows a long");
+        } catch (ArithmeticException expected) {
+        }
+
+        for (int i = 0; i < amounts.length; i++) {
+            amounts[i] = i;
+        }
+        assertEquals(10000L * 9999 / 2, Amounts.sum(amounts));
+        amounts[5000] = -1;
+        try {
+            Amounts.sum(amounts);
+            fail("negative amounts are rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(4999L * 5000 / 2, Amounts.sum(amounts, 0, 5000));
+    }
+
+    // Test 3: test handleTxs() sums satoshi amounts exactly where doubles round, and signs them as longs
+    @Test
+    public void testSatoshiTransactions() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        KeyPair owner = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        Transaction root = TxFixtures.coinbase(owner, 0.3);
+
+        // 0.1 + 0.2 is more than 0.3 as doubles
+        Transaction inDoubles = new Transaction();
+        inDoubles.addInput(root.getHash(), 0);
+        inDoubles.addOutput(0.1, owner.getPublic());
+        inDoubles.addOutput(0.2, owner.getPublic());
+        inDoubles.addSignature(TxFixtures.sign(owner.getPrivate(), inDoubles.getRawDataToSign(0)), 0);
+        inDoubles.finalize();
+
+        Transaction inSatoshis = new Transaction(Transaction.VERSION_SATOSHI);
+        inSatoshis.addInput(root.getHash(), 0);
+        inSatoshis.addSatoshiOutput(10000000, owner.getPublic());
+        inSatoshis.addSatoshiOutput(20000000, owner.getPublic());
+        inSatoshis.addSignature(TxFixtures.sign(owner.getPrivate(), inSatoshis.getRawDataToSign(0)), 0);
+        inSatoshis.finalize();
+        assertEquals(0.1, inSatoshis.getOutput(0).value, 0);
+        assertFalse(Arrays.equals(inDoubles.getRawDataToSign(0), inSatoshis.getRawDataToSign(0)));
+
+        TxHandler txHandler = new TxHandler(TxFixtures.poolOf(root));
+        assertEquals(ValidationResult.Reason.INSUFFICIENT_INPUT, txHandler.validateTx(inDoubles).getReason());
+        assertTrue(txHandler.isValidTx(inSatoshis));
+        txHandler.setSatoshiAmounts(true);
+        assertTrue(txHandler.isValidTx(inDoubles));
+
+        // the signature covers the amounts, and amounts of fractional satoshis are rejected
+        inSatoshis.getOutput(1).value = 0.19;
+        assertEquals(ValidationResult.Reason.INVALID_SIGNATURE, txHandler.validateTx(inSatoshis).getReason());
+        inSatoshis.getOutput(1).value = 0.2000000001;
+        assertEquals(ValidationResult.Reason.INVALID_AMOUNT, txHandler.validateTx(inSatoshis).getReason());
+        assertEquals(1, txHandler.validateTx(inSatoshis).getIndex());
+        inSatoshis.getOutput(1).value = 0.2;
+
+        // a decoded satoshi transaction keeps its version, so its signature still verifies
+        Transaction decoded = TransactionCodec.decode(ByteBuffer.wrap(TransactionCodec.encode(inSatoshis))).toTransaction();
+        assertEquals(Transaction.VERSION_SATOSHI, decoded.getVersion());
+        assertArrayEquals(inSatoshis.getRawTx(), decoded.getRawTx());
+        assertArrayEquals(new Transaction[]{decoded}, new TxHandler(TxFixtures.poolOf(root)).handleTxs(new Transaction[]{decoded}));
+    }
+}
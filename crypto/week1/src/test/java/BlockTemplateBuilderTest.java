@@ -0,0 +1,111 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link BlockTemplateBuilder}
+ * <p>
+ * Test Strategy:
+ * Test 1: test a low fee parent is taken for its high fee child when their package pays more per byte
+ * Test 2: test of two transactions spending the same output only the better package is taken
+ * Test 3: test handleTxs() accepts every transaction of a template built from a random pending set
+ */
+public class BlockTemplateBuilderTest {
+
+    private static KeyPair owner;
+
+    @BeforeClass
+    public static void createOwner() throws NoSuchAlgorithmException {
+        owner = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+    }
+
+    private static void assertAccepted(UTXOPool utxoPool, BlockTemplateBuilder.Template template) {
+        Transaction[] txs = template.getTransactions();
+        assertArrayEquals(txs, new TxHandler(utxoPool).handleTxs(txs));
+    }
+
+    // Test 1: test a low fee parent is taken for its high fee child when their package pays more per byte
+    @Test
+    public void testChildPaysForParent() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Transaction root = TxFixtures.coinbase(owner, 10, 10);
+        Transaction parent = TxFixtures.spend(root, 0, 9.9, owner);
+        Transaction other = TxFixtures.spend(root, 1, 9, owner);
+        Transaction child = TxFixtures.spend(parent, 0, 5, owner);
+        List<Transaction> pending = Arrays.asList(child, other, parent);
+        UTXOPool utxoPool = TxFixtures.poolOf(root);
+        int txSize = parent.getRawTxSize();
+
+        BlockTemplateBuilder.Template template = new BlockTemplateBuilder(utxoPool).build(pending, 2 * txSize);
+        assertArrayEquals(new Transaction[]{parent, child}, template.getTransactions());
+        assertEquals(5, template.getFees(), 1e-9);
+        assertEquals(2 * txSize, template.getSize());
+        assertAccepted(utxoPool, template);
+
+        template = new BlockTemplateBuilder(utxoPool).build(pending, 3 * txSize);
+        assertArrayEquals(new Transaction[]{parent, child, other}, template.getTransactions());
+
+        // without its parent the child cannot be taken at all
+        template = new BlockTemplateBuilder(utxoPool).setMaxAncestors(0).build(pending, 3 * txSize);
+        assertArrayEquals(new Transaction[]{other, parent}, template.getTransactions());
+    }
+
+    // Test 2: test of two transactions spending the same output only the better package is taken
+    @Test
+    public void testConflictingSpends() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Transaction root = TxFixtures.coinbase(owner, 10);
+        Transaction first = TxFixtures.spend(root, 0, 9, owner);
+        Transaction second = TxFixtures.spend(root, 0, 8, owner);
+        Transaction firstChild = TxFixtures.spend(first, 0, 1, owner);
+        Transaction secondChild = TxFixtures.spend(second, 0, 7.5, owner);
+        Transaction overspending = TxFixtures.spend(root, 0, 11, owner);
+        List<Transaction> pending = Arrays.asList(overspending, second, secondChild, first, firstChild);
+        UTXOPool utxoPool = TxFixtures.poolOf(root);
+
+        BlockTemplateBuilder.Template template = new BlockTemplateBuilder(utxoPool).build(pending, Long.MAX_VALUE);
+        assertArrayEquals(new Transaction[]{first, firstChild}, template.getTransactions());
+        assertEquals(9, template.getFees(), 1e-9);
+        assertAccepted(utxoPool, template);
+
+        // with room for one transaction, second pays more than first alone
+        template = new BlockTemplateBuilder(utxoPool).build(pending, first.getRawTxSize());
+        assertArrayEquals(new Transaction[]{second}, template.getTransactions());
+    }
+
+    // Test 3: test handleTxs() accepts every transaction of a template built from a random pending set
+    @Test
+    public void testRandomPendingSet() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        final UtxoTestSet utxoTestSet = UtxoTestSet.builder()
+                .setPeopleSize(10)
+                .setUtxoTxNumber(10)
+                .setMaxUtxoTxOutput(10)
+                .setMaxValue(200)
+                .setTxPerTest(20)
+                .setMaxInput(5)
+                .setMaxOutput(5)
+                .setCorruptedPercentage(0)
+                .build();
+        final List<Transaction> pending = utxoTestSet.getValidationLists().allElements();
+        final UTXOPool utxoPool = utxoTestSet.getUtxoPool();
+
+        long total = 0;
+        for (Transaction tx : pending) {
+            total += tx.getRawTxSize();
+        }
+        for (long maxBytes : new long[]{total / 4, total / 2, total}) {
+            BlockTemplateBuilder.Template template = new BlockTemplateBuilder(utxoPool).build(pending, maxBytes);
+            assertTrue(template.getSize() <= maxBytes);
+            assertAccepted(utxoPool, template);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link ConcurrentUTXOPool}
+ * <p>
+ * Test Strategy:
+ * Test 1: test trySpend() and trySpendAll() spend all of their UTXOs or none
+ * Test 2: test apply() spends the inputs of a transaction and adds its outputs
+ * Test 3: test threads racing to spend overlapping batches spend every UTXO exactly once
+ */
+public class ConcurrentUTXOPoolTest {
+
+    private static final int THREADS = 8;
+    private static final int UTXOS = 2000;
+    private static final int BATCHES_PER_THREAD = 2000;
+
+    private static UTXO utxo(int i) {
+        byte[] hash = new byte[32];
+        hash[0] = (byte) (i >>> 8);
+        hash[1] = (byte) i;
+        return new UTXO(hash, i % 3);
+    }
+
+    private static ConcurrentUTXOPool poolOf(int size) {
+        Transaction outputs = new Transaction();
+        ConcurrentUTXOPool pool = new ConcurrentUTXOPool();
+        for (int i = 0; i < size; i++) {
+            pool.addUTXO(utxo(i), outputs.new Output(i, null));
+        }
+        return pool;
+    }
+
+    // Test 1: test trySpend() and trySpendAll() spend all of their UTXOs or none
+    @Test
+    public void testSpendAllOrNothing() {
+        ConcurrentUTXOPool pool = poolOf(10);
+
+        assertTrue(pool.trySpend(utxo(0)));
+        assertFalse(pool.trySpend(utxo(0)));
+
+        assertNull(pool.trySpendAll(Arrays.asList(utxo(1), utxo(2), utxo(0))));
+        assertNull(pool.trySpendAll(Arrays.asList(utxo(1), utxo(2), utxo(1))));
+        assertTrue(pool.contains(utxo(1)));
+        assertTrue(pool.contains(utxo(2)));
+
+        Transaction.Output[] spent = pool.trySpendAll(Arrays.asList(utxo(2), utxo(1)));
+        assertEquals(2, spent[0].value, 0);
+        assertEquals(1, spent[1].value, 0);
+        assertFalse(pool.contains(utxo(1).getTxHash(), utxo(1).getIndex()));
+        assertEquals(7, pool.size());
+
+        pool.addUTXO(utxo(0), null);
+        assertTrue(pool.contains(utxo(0)));
+        assertNull(pool.getTxOutput(utxo(0)));
+        assertArrayEquals(new Transaction.Output[]{null}, pool.trySpendAll(Collections.singletonList(utxo(0))));
+    }
+
+    // Test 2: test apply() spends the inputs of a transaction and adds its outputs
+    @Test
+    public void testApply() {
+        ConcurrentUTXOPool pool = poolOf(3);
+        Transaction tx = new Transaction();
+        tx.addInput(utxo(0).getTxHash(), utxo(0).getIndex());
+        tx.addInput(utxo(1).getTxHash(), utxo(1).getIndex());
+        tx.addOutput(1, null);
+        byte[] txHash = new byte[32];
+        Arrays.fill(txHash, (byte) 0xff);
+        tx.setHash(txHash);
+
+        assertTrue(pool.apply(tx));
+        assertFalse(pool.apply(tx));
+        assertFalse(pool.contains(utxo(0)));
+        assertTrue(pool.contains(txHash, 0));
+        assertEquals(2, pool.size());
+    }
+
+    // Test 3: test threads racing to spend overlapping batches spend every UTXO exactly once
+    @Test
+    public void testConcurrentSpends() throws Exception {
+        final ConcurrentUTXOPool pool = poolOf(UTXOS);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<List<UTXO>>> results = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                final long seed = t;
+                results.add(executor.submit(new Callable<List<UTXO>>() {
+                    @Override
+                    public List<UTXO> call() {
+                        Random random = new Random(seed);
+                        List<UTXO> spent = new ArrayList<>();
+                        for (int b = 0; b < BATCHES_PER_THREAD; b++) {
+                            List<UTXO> batch = new ArrayList<>();
+                            for (int i = random.nextInt(3); i >= 0; i--) {
+                                batch.add(utxo(random.nextInt(UTXOS)));
+                            }
+                            if (batch.size() == 1 ? pool.trySpend(batch.get(0)) : pool.trySpendAll(batch) != null) {
+                                spent.addAll(batch);
+                            }
+                        }
+                        return spent;
+                    }
+                }));
+            }
+            List<UTXO> spent = new ArrayList<>();
+            for (Future<List<UTXO>> result : results) {
+                spent.addAll(result.get());
+            }
+            assertEquals(spent.size(), new HashSet<>(spent).size());
+            assertEquals(UTXOS, spent.size() + pool.size());
+            for (UTXO ut : spent) {
+                assertFalse(pool.contains(ut));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link EpochPipeline}
+ * <p>
+ * Test Strategy:
+ * Test 1: test a pipeline accepts the same transactions as handleTxs() called epoch by epoch
+ * Test 2: test the apply stage uses the verdicts of the verify stage for outputs created by earlier epochs
+ * Test 3: test a failing epoch does not stop the next ones, and close() waits for the submitted epochs unless interrupted
+ */
+public class EpochPipelineTest {
+
+    private static final int EPOCHS = 40;
+
+    private static KeyPair owner;
+
+    @BeforeClass
+    public static void createOwner() throws NoSuchAlgorithmException {
+        owner = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+    }
+
+    // Test 1: test a pipeline accepts the same transactions as handleTxs() called epoch by epoch
+    @Test
+    public void testAcceptsSameTransactions()
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException, InterruptedException, ExecutionException {
+        final UtxoTestSet utxoTestSet = UtxoTestSet.builder()
+                .setPeopleSize(10)
+                .setUtxoTxNumber(10)
+                .setMaxUtxoTxOutput(10)
+                .setMaxValue(200)
+                .setTxPerTest(20)
+                .setMaxInput(5)
+                .setMaxOutput(5)
+                .setForceCorruptedSignature(true)
+                .setInvalidPrivateKeys(true)
+                .setCorruptedPercentage(.40)
+                .build();
+        final List<Transaction> txs = utxoTestSet.getValidationLists().allElements();
+        final UTXOPool utxoPool = utxoTestSet.getUtxoPool();
+        final TxHandler expected = new TxHandler(utxoPool);
+        final TxHandler txHandler = new TxHandler(utxoPool);
+        final ForkJoinPool workers = new ForkJoinPool(4);
+        final List<Future<Transaction[]>> results = new ArrayList<>();
+        final List<Transaction[]> epochs = new ArrayList<>();
+        try (EpochPipeline pipeline = new EpochPipeline(txHandler, utxoPool, workers, 2)) {
+            for (int from = 0; from < txs.size(); from += 5) {
+                Transaction[] epoch = txs.subList(from, Math.min(txs.size(), from + 5)).toArray(new Transaction[0]);
+                epochs.add(epoch);
+                results.add(pipeline.submit(epoch));
+            }
+        } finally {
+            workers.shutdown();
+        }
+        for (int i = 0; i < epochs.size(); i++) {
+            assertArrayEquals(expected.handleTxs(epochs.get(i)), results.get(i).get());
+        }
+        assertEquals(epochs.size(), txHandler.getEpoch());
+    }
+
+    // Test 2: test the apply stage uses the verdicts of the verify stage for outputs created by earlier epochs
+    @Test
+    public void testChainAcrossEpochs()
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException, InterruptedException, ExecutionException {
+        Transaction root = TxFixtures.coinbase(owner, EPOCHS);
+        UTXOPool utxoPool = TxFixtures.poolOf(root);
+        TxHandler txHandler = new TxHandler(utxoPool);
+        SignatureCache signatureCache = new SignatureCache(100);
+        txHandler.setSignatureCache(signatureCache);
+        ForkJoinPool workers = new ForkJoinPool(2);
+        List<Future<Transaction[]>> results = new ArrayList<>();
+        Transaction parent = root;
+        try (EpochPipeline pipeline = new EpochPipeline(txHandler, utxoPool, workers, 4)) {
+            for (int i = 0; i < EPOCHS; i++) {
+                Transaction tx = TxFixtures.spend(parent, 0, EPOCHS - i - 1, owner);
+                results.add(pipeline.submit(new Transaction[]{tx}));
+                parent = tx;
+            }
+        } finally {
+            workers.shutdown();
+        }
+        for (Future<Transaction[]> result : results) {
+            assertEquals(1, result.get().length);
+        }
+        // every signature was checked against a verdict, none was left to the inline check
+        assertEquals(0, signatureCache.getHits() + signatureCache.getMisses());
+    }
+
+    // Test 3: test a failing epoch does not stop the next ones, and close() waits for the submitted epochs unless interrupted
+    @Test
+    public void testFailureAndClose()
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException, InterruptedException, ExecutionException {
+        Transaction root = TxFixtures.coinbase(owner, 10, 10);
+        UTXOPool utxoPool = TxFixtures.poolOf(root);
+        Transaction first = TxFixtures.spend(root, 0, 10, owner);
+        Transaction second = TxFixtures.spend(root, 1, 10, owner);
+        TxHandler txHandler = new TxHandler(utxoPool);
+        ForkJoinPool workers = new ForkJoinPool(2);
+        EpochPipeline pipeline = new EpochPipeline(txHandler, utxoPool, workers, 1);
+        Future<Transaction[]> failed;
+        Future<Transaction[]> accepted;
+        try {
+            assertArrayEquals(new Transaction[]{first}, pipeline.submit(new Transaction[]{first}).get());
+            failed = pipeline.submit(new Transaction[]{second, null});
+            accepted = pipeline.submit(new Transaction[]{second});
+            pipeline.close();
+        } finally {
+            workers.shutdown();
+        }
+        assertTrue(failed.isDone() && accepted.isDone());
+        try {
+            failed.get();
+            fail("an epoch holding a null transaction cannot be handled");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof NullPointerException);
+        }
+        assertEquals(Arrays.asList(second), Arrays.asList(accepted.get()));
+        assertEquals(2, txHandler.getEpoch());
+        try {
+            pipeline.submit(new Transaction[0]);
+            fail("a closed pipeline takes no more epochs");
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+
+        // an interrupted close stops waiting and keeps the interrupt status for the caller
+        EpochPipeline interrupted = new EpochPipeline(new TxHandler(utxoPool), utxoPool, ForkJoinPool.commonPool(), 1);
+        Thread.currentThread().interrupt();
+        interrupted.close();
+        assertTrue(Thread.interrupted());
+    }
+}
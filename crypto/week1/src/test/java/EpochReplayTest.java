@@ -0,0 +1,226 @@
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.PrimitiveIterator;
+import java.util.stream.LongStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link EpochReplay}, {@link EpochRecorder} and {@link LatencyHistogram}
+ * <p>
+ * Test Strategy:
+ * Test 1: test replaying a recording against a fresh TxHandler accepts the same transactions and counts every epoch
+ * Test 2: test replaying against a handler with another conflict policy reports the epochs that differ
+ * Test 3: test histogram quantiles stay within their bucket width, and a paced replay follows the recorded arrivals
+ * Test 4: test submits, rollbacks and the undo depth are recorded and replayed along with the epochs
+ * Test 5: test a transaction accepted under a hash set by hand is replayed under that hash
+ * Test 6: test a recording cut anywhere in its last entry replays every entry before it
+ */
+public class EpochReplayTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static KeyPair owner;
+
+    @BeforeClass
+    public static void createOwner() throws NoSuchAlgorithmException {
+        owner = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+    }
+
+    // Test 1: test replaying a recording against a fresh TxHandler accepts the same transactions and counts every epoch
+    @Test
+    public void testReplayMatches()
+            throws IOException, NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Transaction root = TxFixtures.coinbase(owner, 10, 20, 30);
+        Transaction a = TxFixtures.spend(root, 0, 9, owner);
+        Transaction child = TxFixtures.spend(a, 0, 8, owner);
+        Transaction doubleSpend = TxFixtures.spend(root, 0, 7, owner);
+        Transaction overspend = TxFixtures.spend(root, 1, 25, owner);
+        Transaction b = TxFixtures.spend(root, 2, 30, owner);
+
+        Path file = folder.newFile().toPath();
+        try (EpochRecorder recorder = new EpochRecorder(file)) {
+            TxHandler txHandler = new TxHandler(TxFixtures.poolOf(root));
+            txHandler.setEpochRecorder(recorder);
+            assertEquals(2, txHandler.handleTxs(new Transaction[]{child, a, doubleSpend}).length);
+            assertEquals(1, txHandler.handleTxs(new Transaction[]{overspend, b}).length);
+            assertEquals(0, txHandler.handleTxs(new Transaction[0]).length);
+        }
+
+        EpochReplay.Report report = new EpochReplay(file).run(TxHandler::new);
+        assertTrue(report.toString(), report.isMatching());
+        assertEquals(3, report.getEpochs());
+        assertEquals(5, report.getTransactions());
+        assertEquals(3, report.getAccepted());
+        assertEquals(3, report.getEpochLatency().getCount());
+        assertEquals(5, report.getTxLatency().getCount());
+        assertTrue(report.getThroughput() > 0);
+    }
+
+    // Test 2: test replaying against a handler with another conflict policy reports the epochs that differ
+    @Test
+    public void testReplayDetectsMismatch()
+            throws IOException, NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Transaction root = TxFixtures.coinbase(owner, 10, 20);
+        Transaction lowFee = TxFixtures.spend(root, 0, 9, owner);
+        Transaction highFee = TxFixtures.spend(root, 0, 5, owner);
+        Transaction other = TxFixtures.spend(root, 1, 20, owner);
+
+        Path file = folder.newFile().toPath();
+        try (EpochRecorder recorder = new EpochRecorder(file)) {
+            TxHandler txHandler = new TxHandler(TxFixtures.poolOf(root));
+            txHandler.setEpochRecorder(recorder);
+            txHandler.handleTxs(new Transaction[]{other});
+            txHandler.handleTxs(new Transaction[]{lowFee, highFee});
+        }
+
+        assertTrue(new EpochReplay(file).run(TxHandler::new).isMatching());
+        EpochReplay.Report report = new EpochReplay(file).run(utxoPool -> {
+            TxHandler txHandler = new TxHandler(utxoPool);
+            txHandler.setConflictPolicy(ConflictPolicy.HIGHEST_FEE);
+            return txHandler;
+        });
+        assertFalse(report.isMatching());
+        assertEquals(Collections.singletonList(2), report.getMismatchedEpochs());
+        assertEquals(2, report.getAccepted());
+    }
+
+    // Test 3: test histogram quantiles stay within their bucket width, and a paced replay follows the recorded arrivals
+    @Test
+    public void testHistogramAndPacing()
+            throws IOException, NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100_000; value++) {
+            histogram.record(value * 1000);
+        }
+        assertEquals(100_000, histogram.getCount());
+        assertEquals(100_000_000, histogram.getMax());
+        assertEquals(50_000_500, histogram.getMean(), 1e-3);
+        for (double quantile : new double[]{.5, .99, .999}) {
+            long exact = (long) (quantile * 100_000) * 1000;
+            long reported = histogram.getValueAtQuantile(quantile);
+            assertTrue(quantile + ": " + reported, reported >= exact && reported <= exact + exact / 16);
+        }
+        assertEquals(100_000_000, histogram.getValueAtQuantile(1));
+        LatencyHistogram small = new LatencyHistogram();
+        small.record(7, 3);
+        assertEquals(7, small.getValueAtQuantile(.5));
+
+        // the recording starts at 0, and its epochs arrive 100 and 300 ms into it
+        PrimitiveIterator.OfLong times = LongStream.of(0, 100_000_000, 300_000_000).iterator();
+        Transaction root = TxFixtures.coinbase(owner, 10);
+        Path file = folder.newFile().toPath();
+        try (EpochRecorder recorder = new EpochRecorder(file, times::nextLong)) {
+            TxHandler txHandler = new TxHandler(TxFixtures.poolOf(root));
+            txHandler.setEpochRecorder(recorder);
+            txHandler.handleTxs(new Transaction[]{TxFixtures.spend(root, 0, 10, owner)});
+            txHandler.handleTxs(new Transaction[0]);
+        }
+
+        EpochReplay.Report report = new EpochReplay(file).setSpeed(2).run(TxHandler::new);
+        assertTrue(report.isMatching());
+        assertTrue(report.toString(), report.getElapsedNanos() >= 150_000_000);
+        assertTrue(report.toString(), report.getElapsedNanos() < 1_000_000_000);
+    }
+
+    // Test 4: test submits, rollbacks and the undo depth are recorded and replayed along with the epochs
+    @Test
+    public void testReplaySubmitAndRollback()
+            throws IOException, NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Transaction root = TxFixtures.coinbase(owner, 10, 20);
+        Transaction a = TxFixtures.spend(root, 0, 9, owner);
+        Transaction b = TxFixtures.spend(root, 0, 8, owner);
+        Transaction c = TxFixtures.spend(root, 1, 20, owner);
+
+        Path file = folder.newFile().toPath();
+        try (EpochRecorder recorder = new EpochRecorder(file)) {
+            TxHandler txHandler = new TxHandler(TxFixtures.poolOf(root));
+            txHandler.setUndoDepth(2);
+            txHandler.setEpochRecorder(recorder);
+            assertEquals(1, txHandler.handleTxs(new Transaction[]{a}).length);
+            assertTrue(txHandler.submit(c).isValid());
+            assertFalse(txHandler.submit(c).isValid());
+            txHandler.rollback(1);
+            // b and c only pass if the rollback is replayed too
+            assertEquals(1, txHandler.handleTxs(new Transaction[]{b}).length);
+            assertTrue(txHandler.submit(c).isValid());
+        }
+
+        EpochReplay.Report report = new EpochReplay(file).run(TxHandler::new);
+        assertTrue(report.toString(), report.isMatching());
+        assertEquals(5, report.getEpochs());
+        assertEquals(5, report.getTransactions());
+        assertEquals(4, report.getAccepted());
+    }
+
+    // Test 5: test a transaction accepted under a hash set by hand is replayed under that hash
+    @Test
+    public void testReplayKeepsRecordedHash()
+            throws IOException, NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Transaction root = TxFixtures.coinbase(owner, 10);
+        Transaction a = TxFixtures.spend(root, 0, 9, owner);
+        a.setHash(new byte[32]);
+        // b only passes if a is replayed under the hash it was accepted under
+        Transaction b = TxFixtures.spend(a, 0, 8, owner);
+
+        Path file = folder.newFile().toPath();
+        try (EpochRecorder recorder = new EpochRecorder(file)) {
+            TxHandler txHandler = new TxHandler(TxFixtures.poolOf(root));
+            txHandler.setEpochRecorder(recorder);
+            assertEquals(1, txHandler.handleTxs(new Transaction[]{a}).length);
+            assertEquals(1, txHandler.handleTxs(new Transaction[]{b}).length);
+        }
+
+        EpochReplay.Report report = new EpochReplay(file).run(TxHandler::new);
+        assertTrue(report.toString(), report.isMatching());
+        assertEquals(2, report.getAccepted());
+    }
+
+    // Test 6: test a recording cut anywhere in its last entry replays every entry before it
+    @Test
+    public void testReplayTruncatedRecording()
+            throws IOException, NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Transaction root = TxFixtures.coinbase(owner, 10, 20);
+        Transaction a = TxFixtures.spend(root, 0, 9, owner);
+        Transaction b = TxFixtures.spend(root, 1, 20, owner);
+        Transaction c = TxFixtures.spend(a, 0, 8, owner);
+
+        Path file = folder.newFile().toPath();
+        long complete;
+        try (EpochRecorder recorder = new EpochRecorder(file)) {
+            TxHandler txHandler = new TxHandler(TxFixtures.poolOf(root));
+            txHandler.setEpochRecorder(recorder);
+            assertEquals(1, txHandler.handleTxs(new Transaction[]{a}).length);
+            // every call is flushed once recorded
+            complete = Files.size(file);
+            assertEquals(2, txHandler.handleTxs(new Transaction[]{b, c}).length);
+        }
+
+        byte[] recording = Files.readAllBytes(file);
+        Path truncated = folder.newFile().toPath();
+        for (int length = (int) complete; length < recording.length; length++) {
+            Files.write(truncated, Arrays.copyOf(recording, length));
+            EpochReplay.Report report = new EpochReplay(truncated).run(TxHandler::new);
+            assertTrue(report.toString(), report.isMatching());
+            assertEquals(1, report.getEpochs());
+            assertEquals(1, report.getAccepted());
+        }
+        assertEquals(3, new EpochReplay(file).run(TxHandler::new).getAccepted());
+    }
+}
@@ -0,0 +1,250 @@
+import org.junit.Test;
+
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link TxHandler#handleTxs(Transaction[])}
+ * <p>
+ * Test Strategy:
+ * Test 1: test handleTxs() accepts the same transactions with parallel and inline signature checks
+ * Test 2: test handleTxs() accepts a chain of transactions given in reverse order
+ * Test 3: test handleTxs() accepts only the first of two transactions spending the same output
+ * Test 4: test handleTxs() reuses signature outcomes cached by isValidTx()
+ * Test 5: test rollback() restores the pool of an earlier epoch, within the undo depth only
+ * Test 6: test a cached signature outcome is not reused for a transaction claiming the hash of another
+ * Test 7: test a conflict policy resolves a double spend at the end of a chain too long to check recursively
+ * Test 8: test rollback() restores an output that a later transaction with the same hash overwrote
+ */
+public class HandleTxsTest {
+
+    private static final int CHAIN_LENGTH = 50;
+    private static final int DEEP_CHAIN_LENGTH = 20000;
+
+    private static Transaction[] toArray(List<Transaction> txs) {
+        return txs.toArray(new Transaction[txs.size()]);
+    }
+
+    // Test 1: test handleTxs() accepts the same transactions with parallel and inline signature checks
+    @Test
+    public void testParallelVerificationAcceptsSameTransactions()
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        final UtxoTestSet utxoTestSet = UtxoTestSet.builder()
+                .setPeopleSize(10)
+                .setUtxoTxNumber(10)
+                .setMaxUtxoTxOutput(10)
+                .setMaxValue(200)
+                .setTxPerTest(20)
+                .setMaxInput(5)
+                .setMaxOutput(5)
+                .setForceCorruptedSignature(true)
+                .setInvalidPrivateKeys(true)
+                .setCorruptedPercentage(.40)
+                .build();
+        final Transaction[] epoch = toArray(utxoTestSet.getValidationLists().allElements());
+
+        final TxHandler inline = new TxHandler(utxoTestSet.getUtxoPool());
+        final TxHandler parallel = new TxHandler(utxoTestSet.getUtxoPool());
+        final ForkJoinPool verifierPool = new ForkJoinPool(4);
+        try {
+            parallel.setVerifierPool(verifierPool);
+            assertArrayEquals(inline.handleTxs(epoch), parallel.handleTxs(epoch));
+        } finally {
+            verifierPool.shutdown();
+        }
+    }
+
+    // Test 2: test handleTxs() accepts a chain of transactions given in reverse order
+    @Test
+    public void testChainInReverseOrder()
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        final KeyPair owner = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        final Transaction root = TxFixtures.coinbase(owner, 10);
+        final Transaction[] epoch = new Transaction[CHAIN_LENGTH];
+        Transaction parent = root;
+        for (int i = 0; i < CHAIN_LENGTH; i++) {
+            parent = TxFixtures.spend(parent, 0, 10, owner);
+            epoch[CHAIN_LENGTH - 1 - i] = parent;
+        }
+
+        final TxHandler txHandler = new TxHandler(TxFixtures.poolOf(root));
+        final Transaction[] accepted = txHandler.handleTxs(epoch);
+
+        assertEquals(CHAIN_LENGTH, accepted.length);
+        for (int i = 0; i < CHAIN_LENGTH; i++) {
+            assertTrue(accepted[i] == epoch[CHAIN_LENGTH - 1 - i]);
+        }
+    }
+
+    // Test 3: test handleTxs() accepts only the first of two transactions spending the same output
+    @Test
+    public void testDoubleSpendKeepsFirst()
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        final KeyPair owner = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        final Transaction root = TxFixtures.coinbase(owner, 10);
+        final Transaction first = TxFixtures.spend(root, 0, 4, owner);
+        final Transaction second = TxFixtures.spend(root, 0, 5, owner);
+
+        final TxHandler txHandler = new TxHandler(TxFixtures.poolOf(root));
+
+        assertArrayEquals(new Transaction[]{first}, txHandler.handleTxs(new Transaction[]{first, second}));
+    }
+
+    // Test 4: test handleTxs() reuses signature outcomes cached by isValidTx()
+    @Test
+    public void testSignatureCacheReusedAcrossCalls()
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        final UtxoTestSet utxoTestSet = UtxoTestSet.builder()
+                .setPeopleSize(10)
+                .setUtxoTxNumber(10)
+                .setMaxUtxoTxOutput(10)
+                .setMaxValue(200)
+                .setTxPerTest(10)
+                .setMaxInput(5)
+                .setMaxOutput(5)
+                .setForceCorruptedSignature(true)
+                .setCorruptedPercentage(.40)
+                .build();
+        final Transaction[] epoch = toArray(utxoTestSet.getValidationLists().allElements());
+        final SignatureCache cache = new SignatureCache(1000);
+
+        final TxHandler cached = new TxHandler(utxoTestSet.getUtxoPool());
+        cached.setSignatureCache(cache);
+        for (Transaction tx : epoch) {
+            cached.isValidTx(tx);
+        }
+        final long missesBeforeEpoch = cache.getMisses();
+        final Transaction[] accepted = cached.handleTxs(epoch);
+
+        assertArrayEquals(new TxHandler(utxoTestSet.getUtxoPool()).handleTxs(epoch), accepted);
+        assertEquals(missesBeforeEpoch, cache.getMisses());
+        assertTrue(cache.getHits() > 0);
+    }
+
+    // Test 5: test rollback() restores the pool of an earlier epoch, within the undo depth only
+    @Test
+    public void testRollbackRestoresEarlierEpoch()
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        final KeyPair owner = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        final Transaction root = TxFixtures.coinbase(owner, 10);
+        final Transaction first = TxFixtures.spend(root, 0, 9, owner);
+        final Transaction second = TxFixtures.spend(first, 0, 8, owner);
+        final Transaction third = TxFixtures.spend(second, 0, 7, owner);
+        final Transaction fourth = TxFixtures.spend(third, 0, 6, owner);
+
+        final TxHandler txHandler = new TxHandler(TxFixtures.poolOf(root));
+        txHandler.setUndoDepth(2);
+        // the output of first is created and spent within epoch 1
+        assertEquals(2, txHandler.handleTxs(new Transaction[]{second, first}).length);
+        assertEquals(1, txHandler.handleTxs(new Transaction[]{third}).length);
+        assertEquals(1, txHandler.handleTxs(new Transaction[]{fourth}).length);
+        assertEquals(3, txHandler.getEpoch());
+
+        try {
+            txHandler.rollback(1);
+            fail("epoch 1 is older than the undo depth");
+        } catch (IllegalArgumentException expected) {
+            assertEquals(3, txHandler.getEpoch());
+        }
+
+        txHandler.rollback(2);
+        assertEquals(1, txHandler.getEpoch());
+        assertTrue(txHandler.isValidTx(third));
+        assertFalse(txHandler.isValidTx(fourth));
+        assertFalse(txHandler.isValidTx(first));
+        assertFalse(txHandler.isValidTx(TxFixtures.spend(first, 0, 5, owner)));
+
+        assertArrayEquals(new Transaction[]{third}, txHandler.handleTxs(new Transaction[]{third}));
+        assertEquals(2, txHandler.getEpoch());
+    }
+
+    // Test 6: test a cached signature outcome is not reused for a transaction claiming the hash of another
+    @Test
+    public void testSignatureCacheIgnoresForgedHash()
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        final KeyPair owner = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        final KeyPair thief = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        final Transaction root = TxFixtures.coinbase(owner, 10, 10);
+        final Transaction genuine = TxFixtures.spend(root, 0, 10, owner);
+
+        final Transaction forged = new Transaction();
+        forged.addInput(root.getHash(), 1);
+        forged.addOutput(10, thief.getPublic());
+        forged.addSignature(new byte[256], 0);
+        forged.setHash(genuine.getHash());
+
+        final SignatureCache cache = new SignatureCache(100);
+        final ForkJoinPool verifierPool = new ForkJoinPool(2);
+        try {
+            for (boolean parallel : new boolean[]{false, true}) {
+                final TxHandler txHandler = new TxHandler(TxFixtures.poolOf(root));
+                txHandler.setSignatureCache(cache);
+                if (parallel) {
+                    txHandler.setVerifierPool(verifierPool);
+                }
+                assertTrue(txHandler.isValidTx(genuine));
+                assertFalse(txHandler.isValidTx(forged));
+                assertArrayEquals(new Transaction[]{genuine}, txHandler.handleTxs(new Transaction[]{genuine, forged}));
+            }
+        } finally {
+            verifierPool.shutdown();
+        }
+    }
+
+    // Test 7: test a conflict policy resolves a double spend at the end of a chain too long to check recursively
+    @Test
+    public void testConflictAtEndOfDeepChain()
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        // a short key, as the chain takes as many signatures as it has transactions
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(512);
+        final KeyPair owner = generator.generateKeyPair();
+        final Transaction root = TxFixtures.coinbase(owner, 10);
+        final Transaction[] epoch = new Transaction[DEEP_CHAIN_LENGTH + 2];
+        Transaction parent = root;
+        for (int i = 0; i < DEEP_CHAIN_LENGTH; i++) {
+            parent = TxFixtures.spend(parent, 0, 10, owner);
+            epoch[i] = parent;
+        }
+        epoch[DEEP_CHAIN_LENGTH] = TxFixtures.spend(parent, 0, 9, owner);
+        final Transaction higherFee = TxFixtures.spend(parent, 0, 8, owner);
+        epoch[DEEP_CHAIN_LENGTH + 1] = higherFee;
+
+        final TxHandler txHandler = new TxHandler(TxFixtures.poolOf(root));
+        txHandler.setConflictPolicy(ConflictPolicy.HIGHEST_FEE);
+        final Transaction[] accepted = txHandler.handleTxs(epoch);
+
+        assertEquals(DEEP_CHAIN_LENGTH + 1, accepted.length);
+        assertTrue(accepted[DEEP_CHAIN_LENGTH] == higherFee);
+    }
+
+    // Test 8: test rollback() restores an output that a later transaction with the same hash overwrote
+    @Test
+    public void testRollbackRestoresOverwrittenOutput()
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        final KeyPair owner = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        final Transaction root = TxFixtures.coinbase(owner, 10);
+        final Transaction empty = TxFixtures.coinbase(owner, 0);
+        final Transaction duplicate = TxFixtures.coinbase(owner, 0);
+
+        final TxHandler txHandler = new TxHandler(TxFixtures.poolOf(root));
+        txHandler.setUndoDepth(1);
+        assertEquals(1, txHandler.handleTxs(new Transaction[]{empty}).length);
+        assertEquals(1, txHandler.handleTxs(new Transaction[]{duplicate}).length);
+
+        txHandler.rollback(2);
+        assertEquals(1, txHandler.getEpoch());
+        assertTrue(txHandler.isValidTx(TxFixtures.spend(empty, 0, 0, owner)));
+    }
+}
@@ -0,0 +1,110 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * A fixed set of RSA key pairs for generated workloads, reusable across runs.
+ * <p>
+ * Key {@code i} is generated from a SHA1PRNG seeded with the pool seed and {@code i}, so the same
+ * seed gives the same keys whichever thread generates them, and they are generated in parallel.
+ * A pool can be written to a file and read back, so that later runs skip key generation.
+ */
+public class KeyPool {
+
+    private static final String KEY_ALGORITHM = "RSA";
+
+    private final List<KeyPair> keys;
+
+    private KeyPool(List<KeyPair> keys) {
+        this.keys = Collections.unmodifiableList(keys);
+    }
+
+    /** Generates {@code size} key pairs of {@code keyBits} bits from {@code seed}, in parallel */
+    public static KeyPool generate(int size, final int keyBits, final long seed) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Key pool size must be positive: " + size);
+        }
+        KeyPair[] keys = new KeyPair[size];
+        IntStream.range(0, size).parallel().forEach(i -> keys[i] = generateKey(keyBits, seed, i));
+        List<KeyPair> list = new ArrayList<>(size);
+        Collections.addAll(list, keys);
+        return new KeyPool(list);
+    }
+
+    private static KeyPair generateKey(int keyBits, long seed, int index) {
+        try {
+            SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+            // seeded before its first use, a SHA1PRNG yields the same bytes on every run
+            random.setSeed(ByteBuffer.allocate(12).putLong(seed).putInt(index).array());
+            KeyPairGenerator generator = KeyPairGenerator.getInstance(KEY_ALGORITHM);
+            generator.initialize(keyBits, random);
+            return generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot generate " + keyBits + " bit " + KEY_ALGORITHM + " keys", e);
+        }
+    }
+
+    /**
+     * Reads a pool written by {@link #write(Path)}
+     *
+     * @throws IllegalArgumentException if {@code file} holds no valid key pool
+     */
+    public static KeyPool read(Path file) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(Files.readAllBytes(file));
+        try {
+            KeyFactory factory = KeyFactory.getInstance(KEY_ALGORITHM);
+            int size = src.getInt();
+            List<KeyPair> keys = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                keys.add(new KeyPair(factory.generatePublic(new X509EncodedKeySpec(readBytes(src))),
+                        factory.generatePrivate(new PKCS8EncodedKeySpec(readBytes(src)))));
+            }
+            return new KeyPool(keys);
+        } catch (GeneralSecurityException | RuntimeException e) {
+            throw new IllegalArgumentException("Not a key pool: " + file, e);
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer src) {
+        byte[] bytes = new byte[src.getInt()];
+        src.get(bytes);
+        return bytes;
+    }
+
+    /** Writes the pool to {@code file}, private keys included, replacing its contents */
+    public void write(Path file) throws IOException {
+        int size = 4;
+        for (KeyPair key : keys) {
+            size += 8 + key.getPublic().getEncoded().length + key.getPrivate().getEncoded().length;
+        }
+        ByteBuffer dst = ByteBuffer.allocate(size);
+        dst.putInt(keys.size());
+        for (KeyPair key : keys) {
+            byte[] publicKey = key.getPublic().getEncoded();
+            byte[] privateKey = key.getPrivate().getEncoded();
+            dst.putInt(publicKey.length).put(publicKey);
+            dst.putInt(privateKey.length).put(privateKey);
+        }
+        Files.write(file, dst.array());
+    }
+
+    public KeyPair get(int index) {
+        return keys.get(index);
+    }
+
+    public int size() {
+        return keys.size();
+    }
+}
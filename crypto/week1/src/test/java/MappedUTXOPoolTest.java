@@ -0,0 +1,208 @@
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link MappedUTXOPool}
+ * <p>
+ * Test Strategy:
+ * Test 1: test a mapped pool changed by a random sequence of additions and removals matches a UTXOPool
+ * Test 2: test lookups promote outputs to the heap, and copies are unaffected by later changes
+ * Test 3: test handleTxs() accepts the same transactions from a mapped pool as from a UTXOPool
+ * Test 4: test compact() drops tombstones and promoted outputs from the heap, keeping the same UTXOs
+ */
+public class MappedUTXOPoolTest {
+
+    private static final int OPERATIONS = 20000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static KeyPair[] owners;
+
+    @BeforeClass
+    public static void createOwners() throws NoSuchAlgorithmException {
+        owners = new KeyPair[2];
+        for (int i = 0; i < owners.length; i++) {
+            owners[i] = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        }
+    }
+
+    private static void assertSameUTXOs(UTXOPool expected, MappedUTXOPool actual) {
+        List<UTXO> utxos = expected.getAllUTXO();
+        assertEquals(new HashSet<>(utxos), new HashSet<>(actual.getAllUTXO()));
+        assertEquals(utxos.size(), actual.size());
+        for (UTXO ut : utxos) {
+            Transaction.Output output = expected.getTxOutput(ut);
+            assertTrue(actual.contains(ut));
+            if (output == null) {
+                assertNull(actual.getTxOutput(ut));
+            } else {
+                assertEquals(output.value, actual.getTxOutput(ut).value, 0);
+                assertEquals(output.address, actual.getTxOutput(ut).address);
+            }
+        }
+    }
+
+    /* @return a pool of count random UTXOs, with hashes of several lengths, null addresses and null outputs */
+    private static UTXOPool randomPool(Random random, int count) {
+        Transaction outputs = new Transaction();
+        UTXOPool pool = new UTXOPool();
+        for (int i = 0; i < count; i++) {
+            byte[] hash = new byte[random.nextInt(4) == 0 ? 1 + random.nextInt(3) : 32];
+            random.nextBytes(hash);
+            int choice = random.nextInt(8);
+            Transaction.Output output = choice == 0 ? null
+                    : outputs.new Output(random.nextDouble(), choice == 1 ? null : owners[choice % 2].getPublic());
+            pool.addUTXO(new UTXO(hash, random.nextInt(4)), output);
+        }
+        return pool;
+    }
+
+    // Test 1: test a mapped pool changed by a random sequence of additions and removals matches a UTXOPool
+    @Test
+    public void testMatchesUTXOPool() throws IOException {
+        Random random = new Random(42);
+        UTXOPool expected = randomPool(random, 2000);
+        Path file = folder.newFile().toPath();
+        MappedUTXOPool.export(expected, file);
+        MappedUTXOPool actual = MappedUTXOPool.open(file);
+        assertSameUTXOs(expected, actual);
+
+        List<UTXO> exported = expected.getAllUTXO();
+        Transaction outputs = new Transaction();
+        for (int i = 0; i < OPERATIONS; i++) {
+            UTXO ut = random.nextBoolean() ? exported.get(random.nextInt(exported.size()))
+                    : new UTXO(new byte[]{(byte) random.nextInt(64)}, random.nextInt(4));
+            assertEquals(expected.contains(ut), actual.contains(ut.getTxHash(), ut.getIndex()));
+            if (random.nextInt(3) == 0) {
+                expected.removeUTXO(ut);
+                actual.removeUTXO(ut.getTxHash(), ut.getIndex());
+            } else {
+                Transaction.Output output = random.nextInt(8) == 0 ? null : outputs.new Output(random.nextDouble(), null);
+                expected.addUTXO(ut, output);
+                actual.addUTXO(ut, output);
+            }
+        }
+        assertSameUTXOs(expected, actual);
+
+        // an export of the changed pool maps back to the same UTXOs
+        MappedUTXOPool.export(actual, file);
+        assertSameUTXOs(expected, MappedUTXOPool.open(file));
+    }
+
+    // Test 2: test lookups promote outputs to the heap, and copies are unaffected by later changes
+    @Test
+    public void testPromotionAndCopies() throws IOException {
+        Transaction tx = TxFixtures.coinbase(owners[0], 1, 2, 3);
+        Path file = folder.newFile().toPath();
+        MappedUTXOPool.export(TxFixtures.poolOf(tx), file);
+        MappedUTXOPool pool = MappedUTXOPool.open(file);
+        assertEquals(3, pool.size());
+        assertEquals(0, pool.heapSize());
+
+        assertTrue(pool.contains(tx.getHash(), 1));
+        assertEquals(0, pool.heapSize());
+        Transaction.Output output = pool.getTxOutput(tx.getHash(), 1);
+        assertEquals(owners[0].getPublic(), output.address);
+        assertEquals(1, pool.heapSize());
+        assertSame(output, pool.getTxOutput(new UTXO(tx.getHash(), 1)));
+
+        MappedUTXOPool copy = pool.copy();
+        pool.removeUTXO(tx.getHash(), 0);
+        pool.addUTXO(new UTXO(tx.getHash(), 3), tx.getOutput(2));
+        assertFalse(pool.contains(tx.getHash(), 0));
+        assertEquals(3, pool.size());
+        assertTrue(copy.contains(tx.getHash(), 0));
+        assertNull(copy.getTxOutput(tx.getHash(), 3));
+        assertEquals(3, copy.size());
+        assertSame(output, copy.getTxOutput(tx.getHash(), 1));
+    }
+
+    // Test 3: test handleTxs() accepts the same transactions from a mapped pool as from a UTXOPool
+    @Test
+    public void testHandleTxsWithMappedPool() throws IOException, NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        final UtxoTestSet utxoTestSet = UtxoTestSet.builder()
+                .setPeopleSize(10)
+                .setUtxoTxNumber(10)
+                .setMaxUtxoTxOutput(10)
+                .setMaxValue(200)
+                .setTxPerTest(20)
+                .setMaxInput(5)
+                .setMaxOutput(5)
+                .setForceCorruptedSignature(true)
+                .setCorruptedPercentage(.40)
+                .build();
+        final List<Transaction> txs = utxoTestSet.getValidationLists().allElements();
+        final Transaction[] epoch = txs.toArray(new Transaction[txs.size()]);
+        final UTXOPool utxoPool = utxoTestSet.getUtxoPool();
+        final Path file = folder.newFile().toPath();
+        MappedUTXOPool.export(utxoPool, file);
+        final MappedUTXOPool mapped = MappedUTXOPool.open(file);
+
+        final TxHandler txHandler = new TxHandler(mapped);
+        final Transaction[] accepted = txHandler.handleTxs(epoch);
+        assertArrayEquals(new TxHandler(utxoPool).handleTxs(epoch), accepted);
+
+        // the handler spent the inputs of the accepted transactions from its own copy only
+        for (Transaction tx : accepted) {
+            assertEquals(ValidationResult.Reason.MISSING_INPUT, txHandler.validateTx(tx).getReason());
+            assertTrue(mapped.contains(tx.getInput(0).prevTxHash, tx.getInput(0).outputIndex));
+        }
+    }
+
+    // Test 4: test compact() drops tombstones and promoted outputs from the heap, keeping the same UTXOs
+    @Test
+    public void testCompact() throws IOException {
+        Random random = new Random(7);
+        UTXOPool expected = randomPool(random, 500);
+        Path file = folder.newFile().toPath();
+        MappedUTXOPool.export(expected, file);
+        MappedUTXOPool pool = MappedUTXOPool.open(file);
+        List<UTXO> exported = expected.getAllUTXO();
+        Transaction outputs = new Transaction();
+        for (int i = 0; i < exported.size(); i++) {
+            UTXO ut = exported.get(i);
+            if (i % 3 == 0) {
+                expected.removeUTXO(ut);
+                pool.removeUTXO(ut);
+            } else if (i % 3 == 1) {
+                pool.getTxOutput(ut);
+            }
+        }
+        // hashes of 5 bytes, a length randomPool never uses
+        for (int i = 0; i < 50; i++) {
+            UTXO ut = new UTXO(new byte[]{(byte) i, 0, 0, 0, 0}, 0);
+            expected.addUTXO(ut, outputs.new Output(i, owners[i % 2].getPublic()));
+            pool.addUTXO(ut, expected.getTxOutput(ut));
+        }
+        int heapSize = pool.heapSize();
+        assertEquals((exported.size() + 2) / 3 + (exported.size() + 1) / 3 + 50, heapSize);
+
+        MappedUTXOPool compacted = pool.compact(folder.newFile().toPath());
+        assertEquals(0, compacted.heapSize());
+        // the export read the outputs not promoted yet without promoting them
+        assertEquals(heapSize, pool.heapSize());
+        assertSameUTXOs(expected, compacted);
+        assertSameUTXOs(expected, pool);
+    }
+}
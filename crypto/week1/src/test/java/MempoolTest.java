@@ -0,0 +1,150 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link Mempool}
+ * <p>
+ * Test Strategy:
+ * Test 1: test a chain submitted children first is kept as orphans and accepted when its first transaction arrives
+ * Test 2: test an orphan missing two parents is accepted once both have arrived, in either order
+ * Test 3: test orphans are evicted oldest first beyond the size limit and after the age limit
+ * Test 4: test an orphan woken by one of two parents ages from its first arrival
+ */
+public class MempoolTest {
+
+    private static final int CHAIN_LENGTH = 10;
+
+    private static KeyPair owner;
+
+    @BeforeClass
+    public static void createOwner() throws NoSuchAlgorithmException {
+        owner = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+    }
+
+    /* @return a chain of transactions, each spending the first output of the one before, from root */
+    private static Transaction[] chain(Transaction root, int length)
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Transaction[] chain = new Transaction[length];
+        Transaction parent = root;
+        for (int i = 0; i < length; i++) {
+            parent = TxFixtures.spend(parent, 0, 10 - i * 0.5, owner);
+            chain[i] = parent;
+        }
+        return chain;
+    }
+
+    /* @return a transaction spending output 0 of both parents */
+    private static Transaction join(Transaction first, Transaction second)
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Transaction tx = new Transaction();
+        tx.addInput(first.getHash(), 0);
+        tx.addInput(second.getHash(), 0);
+        tx.addOutput(1, owner.getPublic());
+        for (int i = 0; i < 2; i++) {
+            tx.addSignature(TxFixtures.sign(owner.getPrivate(), tx.getRawDataToSign(i)), i);
+        }
+        tx.finalize();
+        return tx;
+    }
+
+    // Test 1: test a chain submitted children first is kept as orphans and accepted when its first transaction arrives
+    @Test
+    public void testChainInReverse() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Transaction root = TxFixtures.coinbase(owner, 10);
+        Transaction[] chain = chain(root, CHAIN_LENGTH);
+        TxHandler txHandler = new TxHandler(TxFixtures.poolOf(root));
+        Mempool mempool = new Mempool(txHandler, 100, 60000);
+
+        for (int i = CHAIN_LENGTH - 1; i > 0; i--) {
+            assertTrue(mempool.submit(chain[i]).isEmpty());
+            assertTrue(mempool.isOrphan(chain[i].getHash()));
+        }
+        assertEquals(CHAIN_LENGTH - 1, mempool.getOrphanCount());
+
+        assertEquals(Arrays.asList(chain), mempool.submit(chain[0]));
+        assertEquals(0, mempool.getOrphanCount());
+        assertEquals(CHAIN_LENGTH, txHandler.getEpoch());
+
+        // a double spend claims an output the pool lacks too, so it waits as an orphan until evicted
+        assertTrue(mempool.submit(TxFixtures.spend(root, 0, 1, owner)).isEmpty());
+        assertEquals(1, mempool.getOrphanCount());
+    }
+
+    // Test 2: test an orphan missing two parents is accepted once both have arrived, in either order
+    @Test
+    public void testOrphanWithTwoParents() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Transaction root = TxFixtures.coinbase(owner, 10, 10);
+        Transaction first = TxFixtures.spend(root, 0, 5, owner);
+        Transaction second = TxFixtures.spend(root, 1, 5, owner);
+        Transaction joined = join(first, second);
+
+        for (Transaction[] order : new Transaction[][]{{first, second}, {second, first}}) {
+            Mempool mempool = new Mempool(new TxHandler(TxFixtures.poolOf(root)), 100, 60000);
+            assertTrue(mempool.submit(joined).isEmpty());
+            assertEquals(Collections.singletonList(order[0]), mempool.submit(order[0]));
+            assertTrue(mempool.isOrphan(joined.getHash()));
+            assertEquals(Arrays.asList(order[1], joined), mempool.submit(order[1]));
+            assertEquals(0, mempool.getOrphanCount());
+        }
+    }
+
+    // Test 3: test orphans are evicted oldest first beyond the size limit and after the age limit
+    @Test
+    public void testEviction() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Transaction root = TxFixtures.coinbase(owner, 10);
+        Transaction[] chain = chain(root, CHAIN_LENGTH);
+        AtomicLong now = new AtomicLong();
+        Mempool mempool = new Mempool(new TxHandler(TxFixtures.poolOf(root)), 3, 1000, now::get);
+
+        for (int i = 1; i <= 4; i++) {
+            now.addAndGet(100000000L);
+            mempool.submit(chain[i]);
+        }
+        assertEquals(3, mempool.getOrphanCount());
+        assertFalse(mempool.isOrphan(chain[1].getHash()));
+
+        // chain[2] arrived 1.1 s before, chain[3] and chain[4] within the second
+        now.set(1300000000L);
+        mempool.submit(chain[6]);
+        assertFalse(mempool.isOrphan(chain[2].getHash()));
+        assertEquals(3, mempool.getOrphanCount());
+
+        // chain[1] was evicted, so chain[0] wakes none of the others
+        assertEquals(Collections.singletonList(chain[0]), mempool.submit(chain[0]));
+        assertEquals(3, mempool.getOrphanCount());
+    }
+
+    // Test 4: test an orphan woken by one of two parents ages from its first arrival
+    @Test
+    public void testWokenOrphanKeepsArrival() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Transaction root = TxFixtures.coinbase(owner, 10, 10);
+        Transaction first = TxFixtures.spend(root, 0, 5, owner);
+        Transaction second = TxFixtures.spend(root, 1, 5, owner);
+        Transaction joined = join(first, second);
+        AtomicLong now = new AtomicLong();
+        Mempool mempool = new Mempool(new TxHandler(TxFixtures.poolOf(root)), 100, 1000, now::get);
+
+        assertTrue(mempool.submit(joined).isEmpty());
+        now.set(900000000L);
+        assertEquals(Collections.singletonList(first), mempool.submit(first));
+        assertTrue(mempool.isOrphan(joined.getHash()));
+
+        // joined arrived 1.1 s before, though first woke it 0.2 s before
+        now.set(1100000000L);
+        assertEquals(Collections.singletonList(second), mempool.submit(second));
+        assertEquals(0, mempool.getOrphanCount());
+    }
+}
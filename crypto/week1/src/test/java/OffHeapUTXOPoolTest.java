@@ -0,0 +1,143 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link OffHeapUTXOPool}
+ * <p>
+ * Test Strategy:
+ * Test 1: test a random sequence of additions and removals leaves the same UTXOs as in a UTXOPool
+ * Test 2: test UTXOs with hashes of other lengths and copies of the pool
+ * Test 3: test handleTxs() accepts the same transactions from an off-heap pool as from a UTXOPool
+ */
+public class OffHeapUTXOPoolTest {
+
+    private static final int OPERATIONS = 20000;
+
+    private static KeyPair[] owners;
+
+    @BeforeClass
+    public static void createOwners() throws NoSuchAlgorithmException {
+        owners = new KeyPair[2];
+        for (int i = 0; i < owners.length; i++) {
+            owners[i] = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        }
+    }
+
+    private static void assertSameUTXOs(UTXOPool expected, OffHeapUTXOPool actual) {
+        List<UTXO> utxos = expected.getAllUTXO();
+        assertEquals(new HashSet<>(utxos), new HashSet<>(actual.getAllUTXO()));
+        assertEquals(utxos.size(), actual.size());
+        for (UTXO ut : utxos) {
+            Transaction.Output output = actual.getTxOutput(ut);
+            assertEquals(expected.getTxOutput(ut).value, output.value, 0);
+            assertSame(expected.getTxOutput(ut).address, output.address);
+        }
+    }
+
+    // Test 1: test a random sequence of additions and removals leaves the same UTXOs as in a UTXOPool
+    @Test
+    public void testMatchesUTXOPool() {
+        Random random = new Random(42);
+        // few distinct hashes and indexes, so probe runs collide, grow and shrink often
+        byte[][] hashes = new byte[64][32];
+        for (byte[] hash : hashes) {
+            random.nextBytes(hash);
+        }
+        Transaction outputs = new Transaction();
+        UTXOPool expected = new UTXOPool();
+        OffHeapUTXOPool actual = new OffHeapUTXOPool();
+        for (int i = 0; i < OPERATIONS; i++) {
+            byte[] hash = hashes[random.nextInt(hashes.length)];
+            int index = random.nextInt(64);
+            assertEquals(expected.contains(hash, index), actual.contains(hash, index));
+            if (random.nextInt(3) == 0) {
+                expected.removeUTXO(hash, index);
+                actual.removeUTXO(new UTXO(hash, index));
+            } else {
+                KeyPair owner = random.nextInt(4) == 0 ? null : owners[random.nextInt(owners.length)];
+                Transaction.Output output = outputs.new Output(random.nextDouble(), owner == null ? null : owner.getPublic());
+                expected.addUTXO(new UTXO(hash, index), output);
+                actual.addUTXO(new UTXO(hash, index), output);
+            }
+        }
+        assertSameUTXOs(expected, actual);
+
+        for (UTXO ut : expected.getAllUTXO()) {
+            actual.removeUTXO(ut);
+        }
+        assertEquals(0, actual.size());
+        assertFalse(actual.contains(hashes[0], 0));
+    }
+
+    // Test 2: test UTXOs with hashes of other lengths and copies of the pool
+    @Test
+    public void testShortHashesAndCopies() {
+        Transaction outputs = new Transaction();
+        OffHeapUTXOPool pool = new OffHeapUTXOPool(1);
+        byte[] rootHash = {0};
+        byte[] txHash = new byte[32];
+        pool.addUTXO(new UTXO(rootHash, 0), outputs.new Output(10, owners[0].getPublic()));
+        pool.addUTXO(new UTXO(txHash, 0), outputs.new Output(5, owners[1].getPublic()));
+
+        OffHeapUTXOPool copy = pool.copy();
+        UTXOPool onHeap = new UTXOPool(pool);
+        pool.removeUTXO(rootHash, 0);
+        pool.removeUTXO(txHash, 0);
+
+        assertEquals(0, pool.size());
+        assertNull(pool.getTxOutput(rootHash, 0));
+        assertEquals(2, copy.size());
+        assertEquals(10, copy.getTxOutput(rootHash, 0).value, 0);
+        assertEquals(5, copy.getTxOutput(new UTXO(txHash, 0)).value, 0);
+        assertSameUTXOs(onHeap, copy);
+    }
+
+    // Test 3: test handleTxs() accepts the same transactions from an off-heap pool as from a UTXOPool
+    @Test
+    public void testHandleTxsWithOffHeapPool() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        final UtxoTestSet utxoTestSet = UtxoTestSet.builder()
+                .setPeopleSize(10)
+                .setUtxoTxNumber(10)
+                .setMaxUtxoTxOutput(10)
+                .setMaxValue(200)
+                .setTxPerTest(20)
+                .setMaxInput(5)
+                .setMaxOutput(5)
+                .setForceCorruptedSignature(true)
+                .setCorruptedPercentage(.40)
+                .build();
+        final List<Transaction> txs = utxoTestSet.getValidationLists().allElements();
+        final Transaction[] epoch = txs.toArray(new Transaction[txs.size()]);
+        final UTXOPool utxoPool = utxoTestSet.getUtxoPool();
+        final OffHeapUTXOPool offHeap = new OffHeapUTXOPool();
+        for (UTXO ut : utxoPool.getAllUTXO()) {
+            offHeap.addUTXO(ut, utxoPool.getTxOutput(ut));
+        }
+
+        final TxHandler txHandler = new TxHandler(offHeap);
+        final Transaction[] accepted = txHandler.handleTxs(epoch);
+        assertArrayEquals(new TxHandler(utxoPool).handleTxs(epoch), accepted);
+
+        // the handler spent the inputs of the accepted transactions from its own copy only
+        for (Transaction tx : accepted) {
+            assertEquals(ValidationResult.Reason.MISSING_INPUT, txHandler.validateTx(tx).getReason());
+            assertTrue(offHeap.contains(tx.getInput(0).prevTxHash, tx.getInput(0).outputIndex));
+        }
+    }
+}
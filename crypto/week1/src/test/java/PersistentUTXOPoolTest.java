@@ -0,0 +1,132 @@
+import org.junit.Test;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link PersistentUTXOPool}
+ * <p>
+ * Test Strategy:
+ * Test 1: test a random sequence of additions and removals leaves the same UTXOs as in a UTXOPool
+ * Test 2: test copies are unaffected by later changes to the pool they were taken from, and the reverse
+ * Test 3: test handleTxs() accepts the same transactions from a persistent pool as from a UTXOPool
+ */
+public class PersistentUTXOPoolTest {
+
+    private static final int OPERATIONS = 20000;
+
+    private static void assertSameUTXOs(UTXOPool expected, PersistentUTXOPool actual) {
+        List<UTXO> utxos = expected.getAllUTXO();
+        assertEquals(new HashSet<>(utxos), new HashSet<>(actual.getAllUTXO()));
+        assertEquals(utxos.size(), actual.size());
+        for (UTXO ut : utxos) {
+            assertTrue(actual.contains(ut));
+            assertSame(expected.getTxOutput(ut), actual.getTxOutput(ut));
+        }
+    }
+
+    // Test 1: test a random sequence of additions and removals leaves the same UTXOs as in a UTXOPool
+    @Test
+    public void testMatchesUTXOPool() {
+        Random random = new Random(42);
+        Transaction outputs = new Transaction();
+        UTXOPool expected = new UTXOPool();
+        PersistentUTXOPool actual = new PersistentUTXOPool();
+        for (int i = 0; i < OPERATIONS; i++) {
+            // one byte hashes make hash codes collide: ({a}, i) and ({a - 31}, i + 1) hash alike
+            byte[] hash = random.nextInt(4) == 0 ? new byte[]{(byte) random.nextInt(64)} : new byte[32];
+            if (hash.length == 32) {
+                hash[random.nextInt(32)] = (byte) random.nextInt(4);
+            }
+            int index = random.nextInt(8);
+            assertEquals(expected.contains(hash, index), actual.contains(hash, index));
+            if (random.nextInt(3) == 0) {
+                expected.removeUTXO(hash, index);
+                actual.removeUTXO(new UTXO(hash, index));
+            } else {
+                Transaction.Output output = random.nextInt(8) == 0 ? null : outputs.new Output(random.nextDouble(), null);
+                expected.addUTXO(new UTXO(hash, index), output);
+                actual.addUTXO(new UTXO(hash, index), output);
+            }
+        }
+        assertSameUTXOs(expected, actual);
+
+        for (UTXO ut : expected.getAllUTXO()) {
+            actual.removeUTXO(ut.getTxHash(), ut.getIndex());
+        }
+        assertEquals(0, actual.size());
+        assertTrue(actual.getAllUTXO().isEmpty());
+    }
+
+    // Test 2: test copies are unaffected by later changes to the pool they were taken from, and the reverse
+    @Test
+    public void testCopiesAreIndependent() {
+        Transaction outputs = new Transaction();
+        PersistentUTXOPool pool = new PersistentUTXOPool();
+        List<PersistentUTXOPool> snapshots = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            snapshots.add(pool.copy());
+            pool.addUTXO(new UTXO(new byte[]{(byte) i}, i), outputs.new Output(i, null));
+        }
+        for (int i = 0; i < snapshots.size(); i++) {
+            PersistentUTXOPool snapshot = snapshots.get(i);
+            assertEquals(i, snapshot.size());
+            assertEquals(i > 0, snapshot.contains(new byte[]{0}, 0));
+            assertFalse(snapshot.contains(new byte[]{(byte) i}, i));
+        }
+
+        PersistentUTXOPool fork = pool.copy();
+        fork.removeUTXO(new byte[]{7}, 7);
+        fork.addUTXO(new UTXO(new byte[]{7}, 8), outputs.new Output(8, null));
+        assertEquals(7, pool.getTxOutput(new byte[]{7}, 7).value, 0);
+        assertNull(pool.getTxOutput(new byte[]{7}, 8));
+        assertNull(fork.getTxOutput(new byte[]{7}, 7));
+        assertEquals(100, pool.size());
+        assertEquals(100, fork.size());
+
+        UTXOPool onHeap = new UTXOPool(fork);
+        assertSameUTXOs(onHeap, new PersistentUTXOPool(onHeap));
+    }
+
+    // Test 3: test handleTxs() accepts the same transactions from a persistent pool as from a UTXOPool
+    @Test
+    public void testHandleTxsWithPersistentPool() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        final UtxoTestSet utxoTestSet = UtxoTestSet.builder()
+                .setPeopleSize(10)
+                .setUtxoTxNumber(10)
+                .setMaxUtxoTxOutput(10)
+                .setMaxValue(200)
+                .setTxPerTest(20)
+                .setMaxInput(5)
+                .setMaxOutput(5)
+                .setForceCorruptedSignature(true)
+                .setCorruptedPercentage(.40)
+                .build();
+        final List<Transaction> txs = utxoTestSet.getValidationLists().allElements();
+        final Transaction[] epoch = txs.toArray(new Transaction[txs.size()]);
+        final UTXOPool utxoPool = utxoTestSet.getUtxoPool();
+        final PersistentUTXOPool persistent = new PersistentUTXOPool(utxoPool);
+
+        final TxHandler txHandler = new TxHandler(persistent);
+        final Transaction[] accepted = txHandler.handleTxs(epoch);
+        assertArrayEquals(new TxHandler(utxoPool).handleTxs(epoch), accepted);
+
+        // the handler spent the inputs of the accepted transactions from its own copy only
+        for (Transaction tx : accepted) {
+            assertEquals(ValidationResult.Reason.MISSING_INPUT, txHandler.validateTx(tx).getReason());
+            assertTrue(persistent.contains(tx.getInput(0).prevTxHash, tx.getInput(0).outputIndex));
+        }
+    }
+}
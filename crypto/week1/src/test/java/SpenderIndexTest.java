@@ -0,0 +1,172 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Unit tests for {@link SpenderIndex} and {@link ConflictPolicy}
+ * <p>
+ * Test Strategy:
+ * Test 1: test each conflict policy picks its spender among transactions of an epoch spending the same output
+ * Test 2: test a dropped spender releases the other outputs it claims, and its children are rejected
+ * Test 3: test spenders and conflicting spenders are queryable across epochs, and forgotten on rollback
+ * Test 4: test invalid spenders, and spenders of a dropped transaction's outputs, never win an output under any policy
+ */
+public class SpenderIndexTest {
+
+    private static KeyPair owner;
+
+    @BeforeClass
+    public static void createOwner() throws NoSuchAlgorithmException {
+        owner = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+    }
+
+    /* @return a transaction spending outputs {@code indexes} of parent into one output per entry of values */
+    private static Transaction spend(Transaction parent, int[] indexes, double... values)
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Transaction tx = new Transaction();
+        for (int index : indexes) {
+            tx.addInput(parent.getHash(), index);
+        }
+        for (double value : values) {
+            tx.addOutput(value, owner.getPublic());
+        }
+        for (int i = 0; i < indexes.length; i++) {
+            tx.addSignature(TxFixtures.sign(owner.getPrivate(), tx.getRawDataToSign(i)), i);
+        }
+        tx.finalize();
+        return tx;
+    }
+
+    private static Transaction[] handle(UTXOPool pool, ConflictPolicy policy, Transaction... epoch) {
+        TxHandler txHandler = new TxHandler(pool);
+        txHandler.setConflictPolicy(policy);
+        return txHandler.handleTxs(epoch);
+    }
+
+    // Test 1: test each conflict policy picks its spender among transactions of an epoch spending the same output
+    @Test
+    public void testPolicies() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Transaction root = TxFixtures.coinbase(owner, 10);
+        UTXOPool pool = TxFixtures.poolOf(root);
+        Transaction low = TxFixtures.spend(root, 0, 9, owner);
+        Transaction high = TxFixtures.spend(root, 0, 5, owner);
+        // a slightly higher fee than low, over two outputs, so a lower fee per byte
+        Transaction wide = spend(root, new int[]{0}, 4.5, 4.49);
+
+        assertArrayEquals(new Transaction[]{low}, handle(pool, null, low, high));
+        assertArrayEquals(new Transaction[]{low}, handle(pool, ConflictPolicy.FIRST_SEEN, low, high));
+        assertArrayEquals(new Transaction[]{high}, handle(pool, ConflictPolicy.HIGHEST_FEE, low, high));
+        assertArrayEquals(new Transaction[]{high}, handle(pool, ConflictPolicy.HIGHEST_FEE, high, low));
+        assertArrayEquals(new Transaction[]{high}, handle(pool, ConflictPolicy.REPLACE_BY_FEE, low, high));
+
+        assertArrayEquals(new Transaction[]{wide}, handle(pool, ConflictPolicy.HIGHEST_FEE, low, wide));
+        assertArrayEquals(new Transaction[]{low}, handle(pool, ConflictPolicy.REPLACE_BY_FEE, low, wide));
+        assertArrayEquals(new Transaction[]{high}, handle(pool, ConflictPolicy.REPLACE_BY_FEE, low, wide, high));
+    }
+
+    // Test 2: test a dropped spender releases the other outputs it claims, and its children are rejected
+    @Test
+    public void testDroppedSpenderReleasesOutputs() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Transaction root = TxFixtures.coinbase(owner, 10, 10, 10);
+        Transaction both = spend(root, new int[]{0, 1}, 19);
+        Transaction child = TxFixtures.spend(both, 0, 18, owner);
+        Transaction second = TxFixtures.spend(root, 1, 5, owner);
+        Transaction first = TxFixtures.spend(root, 0, 9, owner);
+        Transaction third = TxFixtures.spend(root, 2, 10, owner);
+
+        assertArrayEquals(new Transaction[]{second, first, third},
+                handle(TxFixtures.poolOf(root), ConflictPolicy.HIGHEST_FEE, both, child, second, first, third));
+        // without a policy, the spender checked first keeps both outputs
+        assertArrayEquals(new Transaction[]{both, child, third},
+                handle(TxFixtures.poolOf(root), null, both, child, second, first, third));
+    }
+
+    // Test 3: test spenders and conflicting spenders are queryable across epochs, and forgotten on rollback
+    @Test
+    public void testQueriesAcrossEpochs() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Transaction root = TxFixtures.coinbase(owner, 10, 10, 10);
+        Transaction low = TxFixtures.spend(root, 0, 9, owner);
+        Transaction high = TxFixtures.spend(root, 0, 5, owner);
+        Transaction late = TxFixtures.spend(root, 0, 1, owner);
+        Transaction other = TxFixtures.spend(root, 1, 9, owner);
+        SpenderIndex index = new SpenderIndex(2);
+        TxHandler txHandler = new TxHandler(TxFixtures.poolOf(root));
+        txHandler.setConflictPolicy(ConflictPolicy.HIGHEST_FEE);
+        txHandler.setSpenderIndex(index);
+        txHandler.setUndoDepth(2);
+
+        assertArrayEquals(new Transaction[]{high}, txHandler.handleTxs(new Transaction[]{low, high}));
+        assertSame(high, index.getSpender(root.getHash(), 0));
+        assertEquals(Collections.singletonList(low), index.getConflicts(root.getHash(), 0));
+
+        // an output spent by an earlier epoch cannot be replaced, the new spender is only recorded, once
+        assertEquals(0, txHandler.handleTxs(new Transaction[]{late}).length);
+        assertEquals(ValidationResult.Reason.MISSING_INPUT, txHandler.submit(late).getReason());
+        assertSame(high, index.getSpender(root.getHash(), 0));
+        assertEquals(Arrays.asList(low, late), index.getConflicts(root.getHash(), 0));
+        assertEquals(Collections.emptyList(), index.getConflicts(root.getHash(), 2));
+
+        txHandler.submit(other);
+        assertSame(other, index.getSpender(root.getHash(), 1));
+        assertEquals(2, index.size());
+        txHandler.rollback(txHandler.getEpoch());
+        assertNull(index.getSpender(root.getHash(), 1));
+        assertEquals(1, index.size());
+
+        // beyond its capacity, the index forgets the output whose spender was recorded first
+        txHandler.submit(other);
+        txHandler.submit(TxFixtures.spend(root, 2, 10, owner));
+        assertNull(index.getSpender(root.getHash(), 0));
+        assertEquals(2, index.size());
+    }
+
+    // Test 4: test invalid spenders, and spenders of a dropped transaction's outputs, never win an output under any policy
+    @Test
+    public void testInvalidSpendersDoNotWin() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Transaction root = TxFixtures.coinbase(owner, 10, 10, 10);
+        UTXOPool pool = TxFixtures.poolOf(root);
+        Transaction legit = TxFixtures.spend(root, 0, 9, owner);
+        // a higher fee than legit, but no signature
+        Transaction unsigned = new Transaction();
+        unsigned.addInput(root.getHash(), 0);
+        unsigned.addOutput(1, owner.getPublic());
+        unsigned.finalize();
+        // signed, but a negative output inflates its fee
+        Transaction negative = spend(root, new int[]{0}, -100, 1);
+
+        for (ConflictPolicy policy : Arrays.asList(ConflictPolicy.FIRST_SEEN, ConflictPolicy.HIGHEST_FEE,
+                ConflictPolicy.REPLACE_BY_FEE)) {
+            assertArrayEquals(new Transaction[]{legit}, handle(pool, policy, legit, unsigned));
+            assertArrayEquals(new Transaction[]{legit}, handle(pool, policy, unsigned, legit));
+            assertArrayEquals(new Transaction[]{legit}, handle(pool, policy, negative, legit, unsigned));
+        }
+
+        // kept spends an output of parent and wins output 2 from other, then parent loses output 1 to
+        // replacement: kept would be rejected, so other keeps output 2
+        Transaction parent = TxFixtures.spend(root, 1, 9, owner);
+        Transaction replacement = TxFixtures.spend(root, 1, 5, owner);
+        Transaction kept = new Transaction();
+        kept.addInput(parent.getHash(), 0);
+        kept.addInput(root.getHash(), 2);
+        kept.addOutput(1, owner.getPublic());
+        for (int i = 0; i < 2; i++) {
+            kept.addSignature(TxFixtures.sign(owner.getPrivate(), kept.getRawDataToSign(i)), i);
+        }
+        kept.finalize();
+        Transaction other = TxFixtures.spend(root, 2, 9, owner);
+        assertArrayEquals(new Transaction[]{other, replacement},
+                handle(pool, ConflictPolicy.HIGHEST_FEE, parent, kept, other, replacement));
+    }
+}
@@ -0,0 +1,149 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Unit tests for {@link TransactionCodec}
+ * <p>
+ * Test Strategy:
+ * Test 1: test decode() reads back every field encode() wrote, and toTransaction() the same raw transaction
+ * Test 2: test writeAll() and readAll() round trip a file of transactions through a memory-mapped buffer
+ * Test 3: test decode() rejects truncated and malformed records, and toTransaction() a record whose hash was altered
+ */
+public class TransactionCodecTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<Transaction> transactions() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        return UtxoTestSet.builder()
+                .setPeopleSize(5)
+                .setUtxoTxNumber(10)
+                .setMaxUtxoTxOutput(10)
+                .setMaxValue(200)
+                .setTxPerTest(10)
+                .setMaxInput(5)
+                .setMaxOutput(5)
+                .setCorruptedPercentage(0)
+                .build()
+                .getValidationLists()
+                .allElements();
+    }
+
+    private static void assertDecodes(Transaction expected, TransactionCodec.EncodedTransaction actual) {
+        assertArrayEquals(expected.getHash(), actual.getHash());
+        assertEquals(expected.numInputs(), actual.numInputs());
+        for (int i = 0; i < expected.numInputs(); i++) {
+            assertArrayEquals(expected.getInput(i).prevTxHash, actual.getPrevTxHash(i));
+            assertEquals(expected.getInput(i).outputIndex, actual.getOutputIndex(i));
+            assertArrayEquals(expected.getInput(i).signature, actual.getSignature(i));
+        }
+        assertEquals(expected.numOutputs(), actual.numOutputs());
+        for (int i = 0; i < expected.numOutputs(); i++) {
+            assertEquals(expected.getOutput(i).value, actual.getValue(i), 0);
+            assertEquals(expected.getOutput(i).address, actual.getAddress(i));
+        }
+        Transaction decoded = actual.toTransaction();
+        assertArrayEquals(expected.getRawTx(), decoded.getRawTx());
+        assertArrayEquals(expected.getHash(), decoded.getHash());
+    }
+
+    // Test 1: test decode() reads back every field encode() wrote, and toTransaction() the same raw transaction
+    @Test
+    public void testRoundTrip() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        for (Transaction tx : transactions()) {
+            ByteBuffer buffer = ByteBuffer.allocate(TransactionCodec.encodedSize(tx) + 2).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.position(2);
+            TransactionCodec.encode(tx, buffer);
+            assertEquals(buffer.capacity(), buffer.position());
+            assertEquals(ByteOrder.LITTLE_ENDIAN, buffer.order());
+
+            buffer.position(2);
+            TransactionCodec.EncodedTransaction decoded = TransactionCodec.decode(buffer);
+            assertEquals(buffer.capacity(), buffer.position());
+            assertDecodes(tx, decoded);
+        }
+
+        Transaction unsigned = new Transaction();
+        unsigned.addInput(null, 4);
+        TransactionCodec.EncodedTransaction decoded = TransactionCodec.decode(ByteBuffer.wrap(TransactionCodec.encode(unsigned)));
+        assertNull(decoded.getHash());
+        assertNull(decoded.getPrevTxHash(0));
+        assertNull(decoded.getUTXO(0));
+        assertNull(decoded.getSignature(0));
+        assertEquals(4, decoded.getOutputIndex(0));
+    }
+
+    // Test 2: test writeAll() and readAll() round trip a file of transactions through a memory-mapped buffer
+    @Test
+    public void testFileRoundTrip() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException, IOException {
+        List<Transaction> txs = transactions();
+        Path file = folder.newFile().toPath();
+        TransactionCodec.writeAll(file, txs);
+
+        List<TransactionCodec.EncodedTransaction> decoded = TransactionCodec.readAll(file);
+        assertEquals(txs.size(), decoded.size());
+        for (int i = 0; i < txs.size(); i++) {
+            assertDecodes(txs.get(i), decoded.get(i));
+            for (int j = 0; j < txs.get(i).numInputs(); j++) {
+                Transaction.Input in = txs.get(i).getInput(j);
+                assertEquals(new UTXO(in.prevTxHash, in.outputIndex), decoded.get(i).getUTXO(j));
+            }
+        }
+    }
+
+    // Test 3: test decode() rejects truncated and malformed records, and toTransaction() a record whose hash was altered
+    @Test
+    public void testMalformedRecords() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        byte[] record = TransactionCodec.encode(transactions().get(0));
+
+        assertRejected(new byte[]{0, 0});
+        assertRejected(Arrays.copyOf(record, record.length - 1));
+
+        // a record length that leaves the last field out
+        byte[] shortened = record.clone();
+        ByteBuffer.wrap(shortened).putInt(record.length - 5);
+        assertRejected(shortened);
+
+        // an input count larger than the record can hold
+        byte[] counted = record.clone();
+        ByteBuffer buffer = ByteBuffer.wrap(counted);
+        buffer.putInt(4 + 4 + buffer.getInt(4), Integer.MAX_VALUE);
+        assertRejected(counted);
+
+        // a hash claiming another transaction, which decodes but must not be taken as the hash
+        byte[] forged = record.clone();
+        forged[4 + 4] ^= 1;
+        TransactionCodec.EncodedTransaction decoded = TransactionCodec.decode(ByteBuffer.wrap(forged));
+        assertFalse(Arrays.equals(TransactionCodec.decode(ByteBuffer.wrap(record)).getHash(), decoded.getHash()));
+        try {
+            decoded.toTransaction();
+            throw new AssertionError("A record with an altered hash was accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static void assertRejected(byte[] record) {
+        try {
+            TransactionCodec.decode(ByteBuffer.wrap(record));
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        throw new AssertionError("Record of " + record.length + " bytes was accepted");
+    }
+}
@@ -0,0 +1,138 @@
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for the serialization of {@link Transaction}
+ * <p>
+ * Test Strategy:
+ * Test 1: test getRawTx() and getRawDataToSign() produce the bytes of the original ArrayList based encoding
+ * Test 2: test writeRawTx() writes getRawTx() into a buffer of any byte order at its position
+ * Test 3: test the shared output encoding follows every change of the outputs
+ */
+public class TransactionTest {
+
+    /** The original encoding of getRawTx(), kept as the reference the serializer must match */
+    private static byte[] referenceRawTx(Transaction tx) {
+        ArrayList<Byte> rawTx = new ArrayList<Byte>();
+        for (Transaction.Input in : tx.getInputs()) {
+            if (in.prevTxHash != null)
+                for (byte b : in.prevTxHash)
+                    rawTx.add(b);
+            for (byte b : ByteBuffer.allocate(Integer.SIZE / 8).putInt(in.outputIndex).array())
+                rawTx.add(b);
+            if (in.signature != null)
+                for (byte b : in.signature)
+                    rawTx.add(b);
+        }
+        addOutputs(tx, rawTx);
+        return toArray(rawTx);
+    }
+
+    /** The original encoding of getRawDataToSign(), kept as the reference the serializer must match */
+    private static byte[] referenceRawDataToSign(Transaction tx, int index) {
+        ArrayList<Byte> sigData = new ArrayList<Byte>();
+        Transaction.Input in = tx.getInput(index);
+        if (in.prevTxHash != null)
+            for (byte b : in.prevTxHash)
+                sigData.add(b);
+        for (byte b : ByteBuffer.allocate(Integer.SIZE / 8).putInt(in.outputIndex).array())
+            sigData.add(b);
+        addOutputs(tx, sigData);
+        return toArray(sigData);
+    }
+
+    private static void addOutputs(Transaction tx, ArrayList<Byte> data) {
+        for (Transaction.Output op : tx.getOutputs()) {
+            for (byte b : ByteBuffer.allocate(Double.SIZE / 8).putDouble(op.value).array())
+                data.add(b);
+            for (byte b : op.address.getEncoded())
+                data.add(b);
+        }
+    }
+
+    private static byte[] toArray(ArrayList<Byte> data) {
+        byte[] bytes = new byte[data.size()];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = data.get(i);
+        return bytes;
+    }
+
+    private static UtxoTestSet testSet() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        return UtxoTestSet.builder()
+                .setPeopleSize(5)
+                .setUtxoTxNumber(10)
+                .setMaxUtxoTxOutput(10)
+                .setMaxValue(200)
+                .setTxPerTest(10)
+                .setMaxInput(5)
+                .setMaxOutput(5)
+                .setCorruptedPercentage(0)
+                .build();
+    }
+
+    // Test 1: test getRawTx() and getRawDataToSign() produce the bytes of the original ArrayList based encoding
+    @Test
+    public void testEncodingMatchesReference() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        for (Transaction tx : testSet().getValidationLists().allElements()) {
+            assertArrayEquals(referenceRawTx(tx), tx.getRawTx());
+            assertEquals(tx.getRawTx().length, tx.getRawTxSize());
+            for (int i = 0; i < tx.numInputs(); i++) {
+                assertArrayEquals(referenceRawDataToSign(tx, i), tx.getRawDataToSign(i));
+            }
+            // unsigned inputs and missing hashes are skipped by both encodings
+            Transaction unsigned = new Transaction();
+            unsigned.addInput(null, 3);
+            unsigned.addInput(tx.getHash(), 0);
+            unsigned.addOutput(1.5, tx.getOutput(0).address);
+            assertArrayEquals(referenceRawTx(unsigned), unsigned.getRawTx());
+            assertArrayEquals(referenceRawDataToSign(unsigned, 0), unsigned.getRawDataToSign(0));
+        }
+    }
+
+    // Test 2: test writeRawTx() writes getRawTx() into a buffer of any byte order at its position
+    @Test
+    public void testWriteRawTxIntoBuffer() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        for (Transaction tx : testSet().getValidationLists().allElements()) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(tx.getRawTxSize() + 3).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.position(3);
+            tx.writeRawTx(buffer);
+
+            assertEquals(buffer.capacity(), buffer.position());
+            assertEquals(ByteOrder.LITTLE_ENDIAN, buffer.order());
+            byte[] written = new byte[tx.getRawTxSize()];
+            buffer.position(3);
+            buffer.get(written);
+            assertArrayEquals(tx.getRawTx(), written);
+        }
+    }
+
+    // Test 3: test the shared output encoding follows every change of the outputs
+    @Test
+    public void testOutputEncodingFollowsOutputChanges() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Transaction[] txs = testSet().getValidationLists().allElements().toArray(new Transaction[0]);
+        for (int t = 0; t < txs.length; t++) {
+            Transaction tx = txs[t];
+            Transaction other = txs[(t + 1) % txs.length];
+            tx.getRawDataToSign(0);
+
+            tx.addOutput(7.25, other.getOutput(0).address);
+            assertArrayEquals(referenceRawDataToSign(tx, 0), tx.getRawDataToSign(0));
+            tx.getOutput(0).value += 1;
+            assertArrayEquals(referenceRawDataToSign(tx, 0), tx.getRawDataToSign(0));
+            tx.getOutput(0).address = other.getOutput(0).address;
+            assertArrayEquals(referenceRawTx(tx), tx.getRawTx());
+            tx.getOutputs().remove(tx.numOutputs() - 1);
+            assertArrayEquals(referenceRawTx(tx), tx.getRawTx());
+            assertEquals(tx.getRawTx().length, tx.getRawTxSize());
+        }
+    }
+}
@@ -0,0 +1,54 @@
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.SignatureException;
+
+/**
+ * Small hand-built transactions for tests that need a precise shape rather than a random
+ * {@link UtxoTestSet}
+ */
+public class TxFixtures {
+
+    private TxFixtures() {
+    }
+
+    public static byte[] sign(PrivateKey privateKey, byte[] rawDataToSign)
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        sig.initSign(privateKey);
+        sig.update(rawDataToSign);
+        return sig.sign();
+    }
+
+    /** Creates a transaction spending output {@code index} of {@code parent} into one output of {@code value} */
+    public static Transaction spend(Transaction parent, int index, double value, KeyPair owner)
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Transaction tx = new Transaction();
+        tx.addInput(parent.getHash(), index);
+        tx.addOutput(value, owner.getPublic());
+        tx.addSignature(sign(owner.getPrivate(), tx.getRawDataToSign(0)), 0);
+        tx.finalize();
+        return tx;
+    }
+
+    /** Creates a transaction out of thin air with one output of {@code value} per entry */
+    public static Transaction coinbase(KeyPair owner, double... values) {
+        Transaction tx = new Transaction();
+        for (double value : values) {
+            tx.addOutput(value, owner.getPublic());
+        }
+        tx.finalize();
+        return tx;
+    }
+
+    /** Creates a pool holding every output of {@code tx} */
+    public static UTXOPool poolOf(Transaction tx) {
+        UTXOPool pool = new UTXOPool();
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            pool.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+        }
+        return pool;
+    }
+}
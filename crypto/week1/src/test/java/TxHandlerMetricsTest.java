@@ -0,0 +1,159 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.concurrent.ForkJoinPool;
+import javax.management.JMException;
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link TxHandlerMetrics}
+ * <p>
+ * Test Strategy:
+ * Test 1: test handleTxs() and submit() count epochs, rejections by rule, deferred transactions and the pool size
+ * Test 2: test every epoch records its stage latencies, and transactions dropped by the conflict policy are counted
+ * Test 3: test the metrics read the same through the MBean server and an MXBean proxy
+ */
+public class TxHandlerMetricsTest {
+
+    private static KeyPair owner;
+    private static KeyPair stranger;
+
+    @BeforeClass
+    public static void createKeys() throws NoSuchAlgorithmException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        owner = generator.generateKeyPair();
+        stranger = generator.generateKeyPair();
+    }
+
+    /* @return a transaction spending output index of parent into one output per entry of values */
+    private static Transaction split(Transaction parent, int index, double... values)
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Transaction tx = new Transaction();
+        tx.addInput(parent.getHash(), index);
+        for (double value : values) {
+            tx.addOutput(value, owner.getPublic());
+        }
+        tx.addSignature(TxFixtures.sign(owner.getPrivate(), tx.getRawDataToSign(0)), 0);
+        tx.finalize();
+        return tx;
+    }
+
+    // Test 1: test handleTxs() and submit() count epochs, rejections by rule, deferred transactions and the pool size
+    @Test
+    public void testCounters() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Transaction root = TxFixtures.coinbase(owner, 10, 20, 30, 40);
+        Transaction a = TxFixtures.spend(root, 0, 9, owner);
+        Transaction child = TxFixtures.spend(a, 0, 8, owner);
+        Transaction doubleSpend = TxFixtures.spend(root, 0, 7, owner);
+        Transaction overspend = TxFixtures.spend(root, 1, 25, owner);
+        Transaction badSignature = TxFixtures.spend(root, 2, 5, stranger);
+
+        TxHandlerMetrics metrics = new TxHandlerMetrics();
+        TxHandler txHandler = new TxHandler(TxFixtures.poolOf(root));
+        txHandler.setUndoDepth(4);
+        txHandler.setMetrics(metrics);
+        assertEquals(4, metrics.getPoolSize());
+
+        txHandler.handleTxs(new Transaction[]{child, a, doubleSpend, overspend, badSignature});
+        assertEquals(1, metrics.getEpochs());
+        assertEquals(5, metrics.getTransactions());
+        assertEquals(2, metrics.getAccepted());
+        assertEquals(2, metrics.getAcceptedLastEpoch());
+        assertEquals(1, metrics.getDeferred());
+        assertEquals(1, metrics.getRejections(ValidationResult.Reason.MISSING_INPUT));
+        assertEquals(1, metrics.getRejections(ValidationResult.Reason.INSUFFICIENT_INPUT));
+        assertEquals(1, metrics.getRejections(ValidationResult.Reason.INVALID_SIGNATURE));
+        assertEquals(0, metrics.getRejections(ValidationResult.Reason.DUPLICATE_INPUT));
+        assertEquals(4, metrics.getPoolSize());
+
+        assertTrue(txHandler.submit(split(root, 3, 20, 20)).isValid());
+        assertEquals(ValidationResult.Reason.MISSING_INPUT, txHandler.submit(doubleSpend).getReason());
+        assertEquals(2, metrics.getEpochs());
+        assertEquals(7, metrics.getTransactions());
+        assertEquals(3, metrics.getAccepted());
+        assertEquals(1, metrics.getAcceptedLastEpoch());
+        assertEquals(1.5, metrics.getAcceptedPerEpoch(), 1e-9);
+        assertEquals(2, metrics.getRejections(ValidationResult.Reason.MISSING_INPUT));
+        assertEquals(5, metrics.getPoolSize());
+
+        txHandler.rollback(2);
+        assertEquals(4, metrics.getPoolSize());
+        txHandler.setMetrics(null);
+        assertEquals(0, metrics.getPoolSize());
+    }
+
+    // Test 2: test every epoch records its stage latencies, and transactions dropped by the conflict policy are counted
+    @Test
+    public void testStageLatencies() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Transaction root = TxFixtures.coinbase(owner, 10, 20);
+        Transaction lowFee = TxFixtures.spend(root, 0, 9, owner);
+        Transaction highFee = TxFixtures.spend(root, 0, 5, owner);
+        Transaction other = TxFixtures.spend(root, 1, 20, owner);
+
+        TxHandlerMetrics metrics = new TxHandlerMetrics();
+        TxHandler txHandler = new TxHandler(TxFixtures.poolOf(root));
+        txHandler.setMetrics(metrics);
+        txHandler.setConflictPolicy(ConflictPolicy.HIGHEST_FEE);
+        assertEquals(1, txHandler.handleTxs(new Transaction[]{lowFee, highFee}).length);
+        ForkJoinPool verifierPool = new ForkJoinPool(2);
+        try {
+            txHandler.setVerifierPool(verifierPool);
+            assertEquals(1, txHandler.handleTxs(new Transaction[]{other}).length);
+        } finally {
+            verifierPool.shutdown();
+        }
+
+        assertEquals(1, metrics.getDropped());
+        assertEquals(2, metrics.getAccepted());
+        for (TxHandlerMetrics.Stage stage : TxHandlerMetrics.Stage.values()) {
+            LatencyHistogram latency = metrics.getLatency(stage);
+            assertEquals(stage.toString(), 2, latency.getCount());
+            assertTrue(stage.toString(), latency.getMax() > 0);
+        }
+        // one RSA verification per epoch outweighs a couple of hash lookups
+        TxHandlerMetrics.StageLatency signature = metrics.getSignatureLatency();
+        assertTrue(signature.toString(), signature.getP50() > metrics.getLookupLatency().getP50());
+        assertTrue(signature.getP50() <= signature.getP99() && signature.getP99() <= signature.getMax());
+    }
+
+    // Test 3: test the metrics read the same through the MBean server and an MXBean proxy
+    @Test
+    public void testMBean() throws JMException, NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Transaction root = TxFixtures.coinbase(owner, 10);
+        TxHandlerMetrics metrics = new TxHandlerMetrics();
+        TxHandler txHandler = new TxHandler(TxFixtures.poolOf(root));
+        txHandler.setMetrics(metrics);
+        txHandler.handleTxs(new Transaction[]{TxFixtures.spend(root, 0, 20, owner), TxFixtures.spend(root, 0, 10, owner)});
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = metrics.register("test-" + System.nanoTime());
+        try {
+            assertEquals(1L, server.getAttribute(name, "Accepted"));
+            assertEquals(1L, server.getAttribute(name, "PoolSize"));
+            TabularData rejections = (TabularData) server.getAttribute(name, "Rejections");
+            assertEquals(1L, rejections.get(new Object[]{"INSUFFICIENT_INPUT"}).get("value"));
+            CompositeData apply = (CompositeData) server.getAttribute(name, "ApplyLatency");
+            assertEquals(1L, apply.get("count"));
+
+            TxHandlerMetricsMXBean proxy = JMX.newMXBeanProxy(server, name, TxHandlerMetricsMXBean.class);
+            assertEquals(2, proxy.getTransactions());
+            assertEquals(metrics.getRejections(), proxy.getRejections());
+            assertEquals(metrics.getApplyLatency().getMax(), proxy.getApplyLatency().getMax());
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+}
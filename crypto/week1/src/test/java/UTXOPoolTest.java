@@ -0,0 +1,105 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the lookups of {@link UTXOPool} by transaction hash and output index
+ * <p>
+ * Test Strategy:
+ * Test 1: test contains() and getTxOutput() by hash and index agree with the UTXO lookups
+ * Test 2: test removeUTXO() by hash and index removes only the matching UTXO
+ * Test 3: test lookups by hash and index from several threads at once each answer for their own key
+ */
+public class UTXOPoolTest {
+
+    /** Lookups per thread in the concurrent test */
+    private static final int LOOKUPS = 2000000;
+
+    private static Transaction coinbase;
+
+    @BeforeClass
+    public static void createCoinbase() throws NoSuchAlgorithmException {
+        KeyPair owner = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        coinbase = TxFixtures.coinbase(owner, 5, 3);
+    }
+
+    // Test 1: test contains() and getTxOutput() by hash and index agree with the UTXO lookups
+    @Test
+    public void testLookupByHashAndIndex() {
+        UTXOPool pool = TxFixtures.poolOf(coinbase);
+        byte[] hash = coinbase.getHash().clone();
+
+        for (int i = 0; i < coinbase.numOutputs(); i++) {
+            assertTrue(pool.contains(hash, i));
+            assertSame(pool.getTxOutput(new UTXO(hash, i)), pool.getTxOutput(hash, i));
+        }
+        assertFalse(pool.contains(hash, coinbase.numOutputs()));
+        assertNull(pool.getTxOutput(hash, -1));
+        assertFalse(pool.contains(null, 0));
+        assertNull(pool.getTxOutput(new byte[hash.length], 0));
+
+        // the lookup reads the array it is given on every call
+        hash[0]++;
+        assertFalse(pool.contains(hash, 0));
+        assertTrue(pool.contains(new UTXO(coinbase.getHash(), 0)));
+    }
+
+    // Test 2: test removeUTXO() by hash and index removes only the matching UTXO
+    @Test
+    public void testRemoveByHashAndIndex() {
+        UTXOPool pool = TxFixtures.poolOf(coinbase);
+
+        pool.removeUTXO(coinbase.getHash(), 0);
+        pool.removeUTXO(null, 1);
+        assertFalse(pool.contains(coinbase.getHash(), 0));
+        assertTrue(pool.contains(coinbase.getHash(), 1));
+        assertEquals(1, pool.getAllUTXO().size());
+        assertEquals(new UTXO(coinbase.getHash(), 1), pool.getAllUTXO().get(0));
+    }
+
+    // Test 3: test lookups by hash and index from several threads at once each answer for their own key
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        UTXOPool pool = TxFixtures.poolOf(coinbase);
+        byte[] absent = new byte[coinbase.getHash().length];
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Integer> present = executor.submit(() -> {
+                int wrong = 0;
+                for (int i = 0; i < LOOKUPS; i++) {
+                    if (!pool.contains(coinbase.getHash(), 0) || pool.getTxOutput(coinbase.getHash(), 1) == null) {
+                        wrong++;
+                    }
+                }
+                return wrong;
+            });
+            Future<Integer> missing = executor.submit(() -> {
+                int wrong = 0;
+                for (int i = 0; i < LOOKUPS; i++) {
+                    if (pool.contains(absent, 0) || pool.getTxOutput(absent, 1) != null) {
+                        wrong++;
+                    }
+                }
+                return wrong;
+            });
+            assertEquals(0, (int) present.get());
+            assertEquals(0, (int) missing.get());
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+}
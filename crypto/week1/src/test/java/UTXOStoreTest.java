@@ -0,0 +1,184 @@
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link UTXOStore}
+ * <p>
+ * Test Strategy:
+ * Test 1: test a store reopened after handleTxs() epochs recovers the pool of the handler
+ * Test 2: test recovery drops a record torn at the end of the log
+ * Test 3: test recovery from a snapshot and the log after it, and group commit losing only buffered epochs
+ * Test 4: test an epoch the store fails to commit is undone in the handler and its metrics, and left out of the store
+ */
+public class UTXOStoreTest {
+
+    private static final int EPOCHS = 5;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static KeyPair owner;
+    private static Transaction root;
+    private static Transaction[] chain;
+
+    @BeforeClass
+    public static void createChain() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        owner = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        root = TxFixtures.coinbase(owner, 10, 20);
+        chain = new Transaction[EPOCHS];
+        Transaction parent = root;
+        for (int i = 0; i < EPOCHS; i++) {
+            parent = TxFixtures.spend(parent, 0, 10, owner);
+            chain[i] = parent;
+        }
+    }
+
+    private static void assertSamePool(UTXOPool expected, UTXOPool actual) {
+        assertEquals(new HashSet<>(expected.getAllUTXO()), new HashSet<>(actual.getAllUTXO()));
+        for (UTXO ut : expected.getAllUTXO()) {
+            assertEquals(expected.getTxOutput(ut).value, actual.getTxOutput(ut).value, 0);
+            assertEquals(expected.getTxOutput(ut).address, actual.getTxOutput(ut).address);
+        }
+    }
+
+    /* @return the pool after the root and the first epochs transactions of the chain */
+    private static UTXOPool poolAfter(int epochs) {
+        UTXOPool pool = TxFixtures.poolOf(root);
+        for (int i = 0; i < epochs; i++) {
+            pool.removeUTXO(chain[i].getInput(0).prevTxHash, 0);
+            pool.addUTXO(new UTXO(chain[i].getHash(), 0), chain[i].getOutput(0));
+        }
+        return pool;
+    }
+
+    // Test 1: test a store reopened after handleTxs() epochs recovers the pool of the handler
+    @Test
+    public void testRecoversCommittedEpochs() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        try (UTXOStore store = UTXOStore.open(dir, new UTXOStore.Options())) {
+            store.commit(new Transaction[]{root});
+            TxHandler txHandler = new TxHandler(store.getUtxoPool());
+            txHandler.setUTXOStore(store);
+            for (Transaction tx : chain) {
+                assertArrayEquals(new Transaction[]{tx}, txHandler.handleTxs(new Transaction[]{tx}));
+            }
+            // a rejected double spend is an empty epoch
+            txHandler.handleTxs(new Transaction[]{chain[0]});
+        }
+
+        try (UTXOStore store = UTXOStore.open(dir, new UTXOStore.Options())) {
+            assertEquals(EPOCHS + 2, store.getEpoch());
+            assertSamePool(poolAfter(EPOCHS), store.getUtxoPool());
+        }
+    }
+
+    // Test 2: test recovery drops a record torn at the end of the log
+    @Test
+    public void testDropsTornRecord() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        try (UTXOStore store = UTXOStore.open(dir, new UTXOStore.Options())) {
+            store.commit(new Transaction[]{root});
+            store.commit(new Transaction[]{chain[0]});
+            store.commit(new Transaction[]{chain[1]});
+        }
+        try (FileChannel log = FileChannel.open(dir.resolve("utxo.log"), StandardOpenOption.WRITE)) {
+            log.truncate(log.size() - 3);
+        }
+
+        try (UTXOStore store = UTXOStore.open(dir, new UTXOStore.Options())) {
+            assertEquals(2, store.getEpoch());
+            assertSamePool(poolAfter(1), store.getUtxoPool());
+            // the store carries on from the recovered epoch
+            store.commit(new Transaction[]{chain[1]});
+        }
+        try (UTXOStore store = UTXOStore.open(dir, new UTXOStore.Options())) {
+            assertEquals(3, store.getEpoch());
+            assertSamePool(poolAfter(2), store.getUtxoPool());
+        }
+    }
+
+    // Test 3: test recovery from a snapshot and the log after it, and group commit losing only buffered epochs
+    @Test
+    public void testSnapshotsAndGroupCommit() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        UTXOStore.Options options = new UTXOStore.Options().setSnapshotEveryEpochs(2).setGroupCommitEpochs(2);
+        UTXOStore crashed = UTXOStore.open(dir, options);
+        crashed.commit(new Transaction[]{root});
+        crashed.commit(new Transaction[]{chain[0]});
+        crashed.commit(new Transaction[]{chain[1]});
+        crashed.commit(new Transaction[]{chain[2]});
+        crashed.commit(new Transaction[]{chain[3]});
+        // not closed: epoch 5 is still buffered for group commit, epoch 4 is snapshotted
+
+        try (UTXOStore store = UTXOStore.open(dir, options)) {
+            assertEquals(4, store.getEpoch());
+            assertSamePool(poolAfter(3), store.getUtxoPool());
+            assertFalse(store.getUtxoPool().contains(chain[3].getHash(), 0));
+        }
+        crashed.close();
+
+        try (UTXOStore store = UTXOStore.open(dir, options)) {
+            assertEquals(5, store.getEpoch());
+            assertTrue(store.getUtxoPool().contains(chain[3].getHash(), 0));
+            assertSamePool(poolAfter(4), store.getUtxoPool());
+        }
+    }
+
+    // Test 4: test an epoch the store fails to commit is undone in the handler and its metrics, and left out of the store
+    @Test
+    public void testFailedCommitIsUndone() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        UTXOStore store = UTXOStore.open(dir, new UTXOStore.Options());
+        store.commit(new Transaction[]{root});
+        TxHandler txHandler = new TxHandler(store.getUtxoPool());
+        txHandler.setUTXOStore(store);
+        TxHandlerMetrics metrics = new TxHandlerMetrics();
+        txHandler.setMetrics(metrics);
+        assertArrayEquals(new Transaction[]{chain[0]}, txHandler.handleTxs(new Transaction[]{chain[0]}));
+        // a closed log fails every write
+        store.close();
+        try {
+            txHandler.handleTxs(new Transaction[]{chain[1]});
+            throw new AssertionError("An epoch the store did not commit was accepted");
+        } catch (UncheckedIOException expected) {
+        }
+        try {
+            txHandler.submit(chain[1]);
+            throw new AssertionError("A transaction the store did not commit was accepted");
+        } catch (UncheckedIOException expected) {
+        }
+
+        assertEquals(1, metrics.getEpochs());
+        assertEquals(1, metrics.getTransactions());
+        assertEquals(1, metrics.getAccepted());
+        assertEquals(2, metrics.getPoolSize());
+        assertEquals(1, txHandler.getEpoch());
+        assertTrue(txHandler.isValidTx(chain[1]));
+        assertFalse(txHandler.isValidTx(chain[2]));
+        assertEquals(2, store.getEpoch());
+        assertSamePool(poolAfter(1), store.getUtxoPool());
+        try (UTXOStore reopened = UTXOStore.open(dir, new UTXOStore.Options())) {
+            assertEquals(2, reopened.getEpoch());
+            assertSamePool(poolAfter(1), reopened.getUtxoPool());
+        }
+    }
+}
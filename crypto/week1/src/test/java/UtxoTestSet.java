@@ -65,7 +65,7 @@ public class UtxoTestSet {
      * @return a copy of the pool
      */
     public UTXOPool getUtxoPool() {
-        return new UTXOPool(utxoPool);
+        return utxoPool.copy();
     }
 
 
@@ -0,0 +1,133 @@
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link TxHandler#validateTx(Transaction)}
+ * <p>
+ * Test Strategy:
+ * Test 1: test validateTx() accepts a valid transaction
+ * Test 2: test validateTx() reports the input claiming an output not in the pool
+ * Test 3: test validateTx() reports the input claiming an already claimed output
+ * Test 4: test validateTx() reports the negative output
+ * Test 5: test validateTx() reports outputs exceeding inputs
+ * Test 6: test validateTx() reports the input with an invalid signature
+ */
+public class ValidateTxTest {
+
+    private static KeyPair owner;
+    private static KeyPair other;
+
+    @BeforeClass
+    public static void createKeys() throws NoSuchAlgorithmException {
+        owner = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        other = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+    }
+
+    private static Transaction signed(Transaction tx, KeyPair... signers)
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        for (int i = 0; i < tx.numInputs(); i++) {
+            tx.addSignature(TxFixtures.sign(signers[i].getPrivate(), tx.getRawDataToSign(i)), i);
+        }
+        tx.finalize();
+        return tx;
+    }
+
+    // Test 1: test validateTx() accepts a valid transaction
+    @Test
+    public void testValid() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        final Transaction root = TxFixtures.coinbase(owner, 5, 5);
+        final Transaction tx = new Transaction();
+        tx.addInput(root.getHash(), 0);
+        tx.addInput(root.getHash(), 1);
+        tx.addOutput(10, other.getPublic());
+
+        final ValidationResult result = new TxHandler(TxFixtures.poolOf(root)).validateTx(signed(tx, owner, owner));
+
+        assertTrue(result.isValid());
+        assertEquals(-1, result.getIndex());
+    }
+
+    // Test 2: test validateTx() reports the input claiming an output not in the pool
+    @Test
+    public void testMissingInput() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        final Transaction root = TxFixtures.coinbase(owner, 5, 5);
+        final Transaction tx = new Transaction();
+        tx.addInput(root.getHash(), 0);
+        tx.addInput(root.getHash(), 2);
+        tx.addOutput(1, other.getPublic());
+
+        final ValidationResult result = new TxHandler(TxFixtures.poolOf(root)).validateTx(signed(tx, owner, owner));
+
+        assertEquals(ValidationResult.Reason.MISSING_INPUT, result.getReason());
+        assertEquals(1, result.getIndex());
+    }
+
+    // Test 3: test validateTx() reports the input claiming an already claimed output
+    @Test
+    public void testDuplicateInput() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        final Transaction root = TxFixtures.coinbase(owner, 5, 5);
+        final Transaction tx = new Transaction();
+        tx.addInput(root.getHash(), 1);
+        tx.addInput(root.getHash(), 0);
+        tx.addInput(root.getHash(), 1);
+        tx.addOutput(1, other.getPublic());
+
+        final ValidationResult result = new TxHandler(TxFixtures.poolOf(root))
+                .validateTx(signed(tx, owner, owner, owner));
+
+        assertEquals(ValidationResult.Reason.DUPLICATE_INPUT, result.getReason());
+        assertEquals(2, result.getIndex());
+    }
+
+    // Test 4: test validateTx() reports the negative output
+    @Test
+    public void testNegativeOutput() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        final Transaction root = TxFixtures.coinbase(owner, 5);
+        final Transaction tx = new Transaction();
+        tx.addInput(root.getHash(), 0);
+        tx.addOutput(1, other.getPublic());
+        tx.addOutput(-1, other.getPublic());
+
+        final ValidationResult result = new TxHandler(TxFixtures.poolOf(root)).validateTx(signed(tx, owner));
+
+        assertEquals(ValidationResult.Reason.NEGATIVE_OUTPUT, result.getReason());
+        assertEquals(1, result.getIndex());
+    }
+
+    // Test 5: test validateTx() reports outputs exceeding inputs
+    @Test
+    public void testInsufficientInput() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        final Transaction root = TxFixtures.coinbase(owner, 5);
+        final Transaction tx = new Transaction();
+        tx.addInput(root.getHash(), 0);
+        tx.addOutput(6, other.getPublic());
+
+        final ValidationResult result = new TxHandler(TxFixtures.poolOf(root)).validateTx(signed(tx, owner));
+
+        assertEquals(ValidationResult.Reason.INSUFFICIENT_INPUT, result.getReason());
+    }
+
+    // Test 6: test validateTx() reports the input with an invalid signature
+    @Test
+    public void testInvalidSignature() throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        final Transaction root = TxFixtures.coinbase(owner, 5, 5);
+        final Transaction tx = new Transaction();
+        tx.addInput(root.getHash(), 0);
+        tx.addInput(root.getHash(), 1);
+        tx.addOutput(10, other.getPublic());
+
+        final ValidationResult result = new TxHandler(TxFixtures.poolOf(root)).validateTx(signed(tx, owner, other));
+
+        assertEquals(ValidationResult.Reason.INVALID_SIGNATURE, result.getReason());
+        assertEquals(1, result.getIndex());
+    }
+}
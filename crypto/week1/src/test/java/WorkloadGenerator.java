@@ -0,0 +1,534 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+/**
+ * A seeded generator of large transaction workloads, for load tests of TxHandler with realistic
+ * shapes where {@link UtxoTestSet} builds small random sets.
+ * <p>
+ * The workload is a genesis file of coinbase transactions, whose outputs make up the starting pool,
+ * and a file of epochs of {@code epochSize} transactions each, both written as
+ * {@link TransactionCodec} records as they are generated, so memory stays bounded by one epoch and
+ * the unspent outputs. Each transaction is one of:
+ * <ul>
+ * <li>a chain link, spending the only output of the previous link in the same epoch;</li>
+ * <li>a fan-in, merging several outputs into one, or a fan-out, splitting one output into several;</li>
+ * <li>a double spend, claiming an output another transaction of the epoch already spends, placed
+ * after every other transaction of the epoch so that it is the one rejected;</li>
+ * <li>a transaction with an invalid signature, whose inputs stay unspent;</li>
+ * <li>a simple transaction of one or two inputs and outputs, for the remaining share.</li>
+ * </ul>
+ * Every choice is drawn from a Random seeded with {@code seed}, and RSA signatures are deterministic,
+ * so the same settings and key pool write the same files on every run. Transactions are signed in
+ * parallel, and written in the order they were planned.
+ * <p>
+ * A generator can be configured by means of a builder:
+ * <pre>
+ * WorkloadGenerator.builder()
+ *     .setSeed(42)
+ *     .setKeyPool(KeyPool.generate(100, 2048, 42))
+ *     .setGenesisOutputs(100000)
+ *     .setTransactions(1000000)
+ *     .setEpochSize(1000)
+ *     .setChainRatio(.2)
+ *     .setFanInRatio(.1)
+ *     .setFanOutRatio(.1)
+ *     .setDoubleSpendRatio(.05)
+ *     .setInvalidSignatureRatio(.05)
+ *     .build();
+ * </pre>
+ */
+public class WorkloadGenerator {
+
+    /** Satoshis in each genesis output */
+    private static final long GENESIS_VALUE = Amounts.COIN;
+
+    /** Genesis outputs per coinbase transaction of the genesis file */
+    private static final int GENESIS_TX_OUTPUTS = 1000;
+
+    /** Satoshis every generated transaction pays as fee, or all it claims if that is less */
+    private static final long FEE = 1000;
+
+    private static final int WRITE_BUFFER = 1 << 20;
+
+    /** Shapes of generated transactions */
+    public enum Kind {
+        SIMPLE, CHAIN, FAN_IN, FAN_OUT, DOUBLE_SPEND, INVALID_SIGNATURE
+    }
+
+    /** What {@link #generate(Path, Path)} wrote */
+    public static class Workload {
+        private final int genesisOutputs;
+        private final int epochSize;
+        private final long[] counts;
+        private final long expectedAccepted;
+
+        Workload(int genesisOutputs, int epochSize, long[] counts, long expectedAccepted) {
+            this.genesisOutputs = genesisOutputs;
+            this.epochSize = epochSize;
+            this.counts = counts;
+            this.expectedAccepted = expectedAccepted;
+        }
+
+        public int getGenesisOutputs() {
+            return genesisOutputs;
+        }
+
+        /** @return the number of transactions in every epoch but the last, which may hold fewer */
+        public int getEpochSize() {
+            return epochSize;
+        }
+
+        /** @return the number of generated transactions of shape {@code kind} */
+        public long getCount(Kind kind) {
+            return counts[kind.ordinal()];
+        }
+
+        public long getTransactions() {
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            return total;
+        }
+
+        /**
+         * @return the number of transactions handleTxs accepts when given the epochs in order, with
+         *         no conflict policy: all but the double spends and those with an invalid signature
+         */
+        public long getExpectedAccepted() {
+            return expectedAccepted;
+        }
+    }
+
+    /**
+     * Factory method that constructs a new builder of WorkloadGenerator
+     * @return a new builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /** Builder for WorkloadGenerator */
+    static class Builder {
+        private long seed;
+        private KeyPool keyPool;
+        private int genesisOutputs = 1000;
+        private int transactions = 1000;
+        private int epochSize = 100;
+        private double chainRatio;
+        private int chainLength = 5;
+        private double fanInRatio;
+        private int maxFanIn = 8;
+        private double fanOutRatio;
+        private int maxFanOut = 8;
+        private double doubleSpendRatio;
+        private double invalidSignatureRatio;
+
+        public Builder setSeed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /** Keys owning the outputs, and signing the inputs, of the workload */
+        public Builder setKeyPool(KeyPool keyPool) {
+            this.keyPool = keyPool;
+            return this;
+        }
+
+        /** Number of outputs of the genesis file, each worth one coin */
+        public Builder setGenesisOutputs(int genesisOutputs) {
+            this.genesisOutputs = genesisOutputs;
+            return this;
+        }
+
+        public Builder setTransactions(int transactions) {
+            this.transactions = transactions;
+            return this;
+        }
+
+        public Builder setEpochSize(int epochSize) {
+            this.epochSize = epochSize;
+            return this;
+        }
+
+        /** Share of transactions that are chain links */
+        public Builder setChainRatio(double chainRatio) {
+            this.chainRatio = chainRatio;
+            return this;
+        }
+
+        /** Number of links of a chain, fewer only at the end of an epoch */
+        public Builder setChainLength(int chainLength) {
+            this.chainLength = chainLength;
+            return this;
+        }
+
+        public Builder setFanInRatio(double fanInRatio) {
+            this.fanInRatio = fanInRatio;
+            return this;
+        }
+
+        /** Largest number of inputs of a fan-in, at least 2 */
+        public Builder setMaxFanIn(int maxFanIn) {
+            this.maxFanIn = maxFanIn;
+            return this;
+        }
+
+        public Builder setFanOutRatio(double fanOutRatio) {
+            this.fanOutRatio = fanOutRatio;
+            return this;
+        }
+
+        /** Largest number of outputs of a fan-out, at least 2 */
+        public Builder setMaxFanOut(int maxFanOut) {
+            this.maxFanOut = maxFanOut;
+            return this;
+        }
+
+        public Builder setDoubleSpendRatio(double doubleSpendRatio) {
+            this.doubleSpendRatio = doubleSpendRatio;
+            return this;
+        }
+
+        public Builder setInvalidSignatureRatio(double invalidSignatureRatio) {
+            this.invalidSignatureRatio = invalidSignatureRatio;
+            return this;
+        }
+
+        /** @throws IllegalArgumentException if a setting is out of range or the ratios add up to more than 1 */
+        public WorkloadGenerator build() {
+            if (keyPool == null) {
+                throw new IllegalArgumentException("A key pool is required");
+            }
+            if (genesisOutputs <= 0 || transactions < 0 || epochSize <= 0 || chainLength <= 0
+                    || maxFanIn < 2 || maxFanOut < 2) {
+                throw new IllegalArgumentException("Sizes out of range");
+            }
+            double[] ratios = {chainRatio, fanInRatio, fanOutRatio, doubleSpendRatio, invalidSignatureRatio};
+            double total = 0;
+            for (double ratio : ratios) {
+                if (!(ratio >= 0)) {
+                    throw new IllegalArgumentException("Ratios must not be negative: " + ratio);
+                }
+                total += ratio;
+            }
+            if (total > 1) {
+                throw new IllegalArgumentException("Ratios add up to more than 1: " + total);
+            }
+            return new WorkloadGenerator(this);
+        }
+    }
+
+    /** An output a planned transaction spends */
+    private static class Spendable {
+        /** Hash of the transaction holding the output, or null for output 0 of the previous link of a chain */
+        private final byte[] txHash;
+        private final int index;
+        private final long value;
+        private final int owner;
+
+        Spendable(byte[] txHash, int index, long value, int owner) {
+            this.txHash = txHash;
+            this.index = index;
+            this.value = value;
+            this.owner = owner;
+        }
+    }
+
+    /** A transaction drawn but not built yet, since its hash depends on its signatures */
+    private static class Plan {
+        private final Kind kind;
+        private final Spendable[] inputs;
+        private final int[] owners;
+        private final long[] values;
+
+        Plan(Kind kind, Spendable[] inputs, int[] owners, long[] values) {
+            this.kind = kind;
+            this.inputs = inputs;
+            this.owners = owners;
+            this.values = values;
+        }
+    }
+
+    private final long seed;
+    private final KeyPool keyPool;
+    private final int genesisOutputs;
+    private final int transactions;
+    private final int epochSize;
+    private final int chainLength;
+    private final int maxFanIn;
+    private final int maxFanOut;
+
+    /** Upper bounds of the chance of drawing each kind but SIMPLE, in Kind order, against a uniform double */
+    private final double[] thresholds;
+
+    private WorkloadGenerator(Builder builder) {
+        this.seed = builder.seed;
+        this.keyPool = builder.keyPool;
+        this.genesisOutputs = builder.genesisOutputs;
+        this.transactions = builder.transactions;
+        this.epochSize = builder.epochSize;
+        this.chainLength = builder.chainLength;
+        this.maxFanIn = builder.maxFanIn;
+        this.maxFanOut = builder.maxFanOut;
+        // a chain draw yields chainLength transactions and any other draw one, so the chance of each
+        // draw is scaled for every kind to make up its ratio of the transactions
+        double chainDraw = builder.chainRatio / (chainLength - builder.chainRatio * (chainLength - 1));
+        double perDraw = 1 + chainDraw * (chainLength - 1);
+        double[] draws = {0, chainDraw, builder.fanInRatio * perDraw, builder.fanOutRatio * perDraw,
+                builder.doubleSpendRatio * perDraw, builder.invalidSignatureRatio * perDraw};
+        this.thresholds = new double[draws.length];
+        for (int i = 1; i < draws.length; i++) {
+            thresholds[i] = thresholds[i - 1] + draws[i];
+        }
+    }
+
+    /**
+     * Writes the genesis transactions to {@code genesisFile} and the epochs to {@code txFile},
+     * replacing their contents
+     *
+     * @throws IllegalStateException if the unspent outputs run out, which more genesis outputs or
+     *                               more fan-outs than fan-ins avoid
+     */
+    public Workload generate(Path genesisFile, Path txFile) throws IOException {
+        Random random = new Random(seed);
+        ArrayList<Spendable> unspent = new ArrayList<>(genesisOutputs);
+        try (RecordWriter out = new RecordWriter(genesisFile)) {
+            for (int first = 0; first < genesisOutputs; first += GENESIS_TX_OUTPUTS) {
+                Transaction coinbase = new Transaction();
+                int[] owners = new int[Math.min(GENESIS_TX_OUTPUTS, genesisOutputs - first)];
+                for (int i = 0; i < owners.length; i++) {
+                    owners[i] = random.nextInt(keyPool.size());
+                    coinbase.addOutput(Amounts.toCoins(GENESIS_VALUE), keyPool.get(owners[i]).getPublic());
+                }
+                // coinbases of the same owners would share their hash without a last output of their own, left unspent
+                coinbase.addOutput(Amounts.toCoins(first), keyPool.get(0).getPublic());
+                coinbase.finalize();
+                out.write(coinbase);
+                for (int i = 0; i < owners.length; i++) {
+                    unspent.add(new Spendable(coinbase.getHash(), i, GENESIS_VALUE, owners[i]));
+                }
+            }
+        }
+
+        long[] counts = new long[Kind.values().length];
+        long expectedAccepted = 0;
+        try (RecordWriter out = new RecordWriter(txFile)) {
+            for (int generated = 0; generated < transactions; generated += epochSize) {
+                int size = Math.min(epochSize, transactions - generated);
+                List<List<Plan>> jobs = planEpoch(random, unspent, size);
+                List<List<Transaction>> built = jobs.parallelStream().map(this::build).collect(Collectors.toList());
+                for (int i = 0; i < jobs.size(); i++) {
+                    List<Plan> job = jobs.get(i);
+                    List<Transaction> txs = built.get(i);
+                    for (Transaction tx : txs) {
+                        out.write(tx);
+                    }
+                    Kind kind = job.get(0).kind;
+                    counts[kind.ordinal()] += txs.size();
+                    if (kind == Kind.INVALID_SIGNATURE) {
+                        for (Spendable input : job.get(0).inputs) {
+                            unspent.add(input);
+                        }
+                    } else if (kind != Kind.DOUBLE_SPEND) {
+                        expectedAccepted += txs.size();
+                        Plan last = job.get(job.size() - 1);
+                        byte[] hash = txs.get(txs.size() - 1).getHash();
+                        for (int j = 0; j < last.owners.length; j++) {
+                            unspent.add(new Spendable(hash, j, last.values[j], last.owners[j]));
+                        }
+                    }
+                }
+            }
+        }
+        return new Workload(genesisOutputs, epochSize, counts, expectedAccepted);
+    }
+
+    /*
+     * Draws the transactions of one epoch, as jobs of transactions that must be built in order: a
+     * chain, or a single transaction. Double spends come last, after the transactions they conflict with.
+     */
+    private List<List<Plan>> planEpoch(Random random, ArrayList<Spendable> unspent, int size) {
+        List<List<Plan>> jobs = new ArrayList<>();
+        List<List<Plan>> doubleSpends = new ArrayList<>();
+        ArrayList<Spendable> spent = new ArrayList<>();
+        int planned = 0;
+        while (planned < size) {
+            Kind kind = draw(random);
+            if (kind == Kind.DOUBLE_SPEND && spent.isEmpty()) {
+                kind = Kind.SIMPLE;
+            }
+            List<Plan> job = new ArrayList<>(1);
+            switch (kind) {
+                case CHAIN:
+                    int links = Math.min(chainLength, size - planned);
+                    Spendable link = take(random, unspent);
+                    spent.add(link);
+                    for (int i = 0; i < links; i++) {
+                        Plan plan = plan(random, Kind.CHAIN, new Spendable[]{link}, 1);
+                        job.add(plan);
+                        link = new Spendable(null, 0, plan.values[0], plan.owners[0]);
+                    }
+                    break;
+                case FAN_IN:
+                    job.add(plan(random, kind, takeAll(random, unspent, spent, 2 + random.nextInt(maxFanIn - 1)), 1));
+                    break;
+                case FAN_OUT:
+                    job.add(plan(random, kind, takeAll(random, unspent, spent, 1), 2 + random.nextInt(maxFanOut - 1)));
+                    break;
+                case DOUBLE_SPEND:
+                    Spendable claimed = spent.get(random.nextInt(spent.size()));
+                    doubleSpends.add(Collections.singletonList(plan(random, kind, new Spendable[]{claimed}, 1)));
+                    break;
+                case INVALID_SIGNATURE:
+                    job.add(plan(random, kind, takeAll(random, unspent, null, 1 + random.nextInt(2)), 1 + random.nextInt(2)));
+                    break;
+                default:
+                    job.add(plan(random, kind, takeAll(random, unspent, spent, 1 + random.nextInt(2)), 1 + random.nextInt(2)));
+            }
+            if (kind == Kind.DOUBLE_SPEND) {
+                planned++;
+            } else {
+                jobs.add(job);
+                planned += job.size();
+            }
+        }
+        jobs.addAll(doubleSpends);
+        return jobs;
+    }
+
+    private Kind draw(Random random) {
+        double r = random.nextDouble();
+        Kind[] kinds = Kind.values();
+        for (int i = 1; i < kinds.length; i++) {
+            if (r < thresholds[i]) {
+                return kinds[i];
+            }
+        }
+        return Kind.SIMPLE;
+    }
+
+    /* Removes a random output from unspent, in constant time since the order of unspent does not matter */
+    private static Spendable take(Random random, ArrayList<Spendable> unspent) {
+        if (unspent.isEmpty()) {
+            throw new IllegalStateException("Ran out of unspent outputs, more genesis outputs are needed");
+        }
+        int i = random.nextInt(unspent.size());
+        Spendable taken = unspent.get(i);
+        unspent.set(i, unspent.get(unspent.size() - 1));
+        unspent.remove(unspent.size() - 1);
+        return taken;
+    }
+
+    /* Takes count random outputs from unspent, adding them to spent if it is not null */
+    private static Spendable[] takeAll(Random random, ArrayList<Spendable> unspent, List<Spendable> spent, int count) {
+        Spendable[] inputs = new Spendable[count];
+        for (int i = 0; i < count; i++) {
+            inputs[i] = take(random, unspent);
+            if (spent != null) {
+                spent.add(inputs[i]);
+            }
+        }
+        return inputs;
+    }
+
+    /* Plans a transaction splitting what inputs claim, less the fee, evenly between outputs random owners */
+    private Plan plan(Random random, Kind kind, Spendable[] inputs, int outputs) {
+        long total = 0;
+        for (Spendable input : inputs) {
+            total += input.value;
+        }
+        total -= Math.min(total, FEE);
+        int[] owners = new int[outputs];
+        long[] values = new long[outputs];
+        for (int i = 0; i < outputs; i++) {
+            owners[i] = random.nextInt(keyPool.size());
+            values[i] = total / outputs;
+        }
+        values[0] += total % outputs;
+        return new Plan(kind, inputs, owners, values);
+    }
+
+    /* Builds and signs the transactions of a job in order, each chain link claiming from the one before */
+    private List<Transaction> build(List<Plan> job) {
+        try {
+            Signature signature = Signature.getInstance("SHA256withRSA");
+            List<Transaction> txs = new ArrayList<>(job.size());
+            Transaction previous = null;
+            for (Plan plan : job) {
+                Transaction tx = new Transaction();
+                for (Spendable input : plan.inputs) {
+                    tx.addInput(input.txHash == null ? previous.getHash() : input.txHash, input.index);
+                }
+                for (int i = 0; i < plan.owners.length; i++) {
+                    tx.addOutput(Amounts.toCoins(plan.values[i]), keyPool.get(plan.owners[i]).getPublic());
+                }
+                for (int i = 0; i < plan.inputs.length; i++) {
+                    signature.initSign(keyPool.get(plan.inputs[i].owner).getPrivate());
+                    signature.update(tx.getRawDataToSign(i));
+                    byte[] signed = signature.sign();
+                    if (plan.kind == Kind.INVALID_SIGNATURE && i == 0) {
+                        signed[signed.length - 1] ^= 1;
+                    }
+                    tx.addSignature(signed, i);
+                }
+                tx.finalize();
+                txs.add(tx);
+                previous = tx;
+            }
+            return txs;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot sign the workload", e);
+        }
+    }
+
+    /** Appends TransactionCodec records to a file through a buffer, replacing its contents */
+    private static class RecordWriter implements Closeable {
+        private final FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER);
+
+        RecordWriter(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        void write(Transaction tx) throws IOException {
+            int size = TransactionCodec.encodedSize(tx);
+            if (buffer.remaining() < size) {
+                flush();
+                if (buffer.capacity() < size) {
+                    buffer = ByteBuffer.allocate(size);
+                }
+            }
+            TransactionCodec.encode(tx, buffer);
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
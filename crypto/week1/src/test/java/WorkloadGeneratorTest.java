@@ -0,0 +1,134 @@
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link WorkloadGenerator} and {@link KeyPool}
+ * <p>
+ * Test Strategy:
+ * Test 1: test the same seed writes the same files, and another seed different ones
+ * Test 2: test handleTxs() accepts the expected transactions of a workload, epoch by epoch, at the configured ratios
+ * Test 3: test a key pool is the same for the same seed and reads back from its file
+ */
+public class WorkloadGeneratorTest {
+
+    private static final int TRANSACTIONS = 2000;
+    private static final int EPOCH_SIZE = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static KeyPool keyPool;
+
+    @BeforeClass
+    public static void createKeyPool() {
+        // small keys keep the test fast, the workload shapes do not depend on their size
+        keyPool = KeyPool.generate(8, 512, 1);
+    }
+
+    private static WorkloadGenerator generator(long seed) {
+        return WorkloadGenerator.builder()
+                .setSeed(seed)
+                .setKeyPool(keyPool)
+                .setGenesisOutputs(500)
+                .setTransactions(TRANSACTIONS)
+                .setEpochSize(EPOCH_SIZE)
+                .setChainRatio(.2)
+                .setFanInRatio(.1)
+                .setFanOutRatio(.15)
+                .setDoubleSpendRatio(.05)
+                .setInvalidSignatureRatio(.05)
+                .build();
+    }
+
+    // Test 1: test the same seed writes the same files, and another seed different ones
+    @Test
+    public void testReproducible() throws IOException {
+        Path[] first = {folder.newFile().toPath(), folder.newFile().toPath()};
+        Path[] second = {folder.newFile().toPath(), folder.newFile().toPath()};
+        Path[] other = {folder.newFile().toPath(), folder.newFile().toPath()};
+        generator(42).generate(first[0], first[1]);
+        generator(42).generate(second[0], second[1]);
+        generator(43).generate(other[0], other[1]);
+        for (int i = 0; i < 2; i++) {
+            assertArrayEquals(Files.readAllBytes(first[i]), Files.readAllBytes(second[i]));
+            assertFalse(Arrays.equals(Files.readAllBytes(first[i]), Files.readAllBytes(other[i])));
+        }
+    }
+
+    // Test 2: test handleTxs() accepts the expected transactions of a workload, epoch by epoch, at the configured ratios
+    @Test
+    public void testWorkloadShapes() throws IOException {
+        Path genesisFile = folder.newFile().toPath();
+        Path txFile = folder.newFile().toPath();
+        WorkloadGenerator.Workload workload = generator(7).generate(genesisFile, txFile);
+        assertEquals(TRANSACTIONS, workload.getTransactions());
+        assertEquals(TRANSACTIONS * .2, workload.getCount(WorkloadGenerator.Kind.CHAIN), TRANSACTIONS * .05);
+        assertEquals(TRANSACTIONS * .15, workload.getCount(WorkloadGenerator.Kind.FAN_OUT), TRANSACTIONS * .05);
+        assertEquals(TRANSACTIONS * .05, workload.getCount(WorkloadGenerator.Kind.DOUBLE_SPEND), TRANSACTIONS * .03);
+
+        UTXOPool utxoPool = new UTXOPool();
+        int genesisOutputs = 0;
+        for (TransactionCodec.EncodedTransaction coinbase : TransactionCodec.readAll(genesisFile)) {
+            // the last output of each coinbase only makes its hash unique
+            for (int i = 0; i < coinbase.numOutputs() - 1; i++) {
+                utxoPool.addUTXO(new UTXO(coinbase.getHash(), i), coinbase.toTransaction().getOutput(i));
+                genesisOutputs++;
+            }
+        }
+        assertEquals(workload.getGenesisOutputs(), genesisOutputs);
+
+        List<TransactionCodec.EncodedTransaction> records = TransactionCodec.readAll(txFile);
+        assertEquals(TRANSACTIONS, records.size());
+        TxHandler txHandler = new TxHandler(utxoPool);
+        HashMap<ByteBuffer, PublicKey> addresses = new HashMap<>();
+        long accepted = 0;
+        for (int from = 0; from < records.size(); from += workload.getEpochSize()) {
+            int to = Math.min(records.size(), from + workload.getEpochSize());
+            Transaction[] epoch = new Transaction[to - from];
+            for (int i = from; i < to; i++) {
+                epoch[i - from] = records.get(i).toTransaction(addresses);
+            }
+            accepted += txHandler.handleTxs(epoch).length;
+        }
+        assertEquals(workload.getExpectedAccepted(), accepted);
+        assertEquals(TRANSACTIONS - workload.getCount(WorkloadGenerator.Kind.DOUBLE_SPEND)
+                - workload.getCount(WorkloadGenerator.Kind.INVALID_SIGNATURE), accepted);
+    }
+
+    // Test 3: test a key pool is the same for the same seed and reads back from its file
+    @Test
+    public void testKeyPool() throws IOException, GeneralSecurityException {
+        KeyPool again = KeyPool.generate(keyPool.size(), 512, 1);
+        Path file = folder.newFile().toPath();
+        keyPool.write(file);
+        KeyPool read = KeyPool.read(file);
+        assertEquals(keyPool.size(), read.size());
+        for (int i = 0; i < keyPool.size(); i++) {
+            assertEquals(keyPool.get(i).getPublic(), again.get(i).getPublic());
+            assertEquals(keyPool.get(i).getPublic(), read.get(i).getPublic());
+            Signature signature = Signature.getInstance("SHA256withRSA");
+            signature.initSign(read.get(i).getPrivate());
+            signature.update(new byte[]{(byte) i});
+            assertTrue(Crypto.verifySignature(keyPool.get(i).getPublic(), new byte[]{(byte) i}, signature.sign()));
+        }
+        assertFalse(keyPool.get(0).getPublic().equals(KeyPool.generate(1, 512, 2).get(0).getPublic()));
+    }
+}